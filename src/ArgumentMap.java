@@ -78,7 +78,12 @@ public class ArgumentMap {
 		if(arg.equalsIgnoreCase("-index") || arg.equalsIgnoreCase("-path") || arg.equalsIgnoreCase("-url") 
 				|| arg.equalsIgnoreCase("-query") || arg.equalsIgnoreCase("-exact") || arg.equalsIgnoreCase("-results")
 				|| arg.equalsIgnoreCase("-threads") || arg.equalsIgnoreCase("-url") || arg.equalsIgnoreCase("-limit") 
-				|| arg.equalsIgnoreCase("-port")) {
+				|| arg.equalsIgnoreCase("-port") || arg.equalsIgnoreCase("-metrics")
+				|| arg.equalsIgnoreCase("-maxthreads") || arg.equalsIgnoreCase("-top")
+				|| arg.equalsIgnoreCase("-rank") || arg.equalsIgnoreCase("-queries") || arg.equalsIgnoreCase("-words")
+				|| arg.equalsIgnoreCase("-fuzzy") || arg.equalsIgnoreCase("-timeout")
+				|| arg.equalsIgnoreCase("-store") || arg.equalsIgnoreCase("-delay")
+				|| arg.equalsIgnoreCase("-perhost")) {
 			return true;
 		}
 		
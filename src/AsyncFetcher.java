@@ -0,0 +1,664 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Fetches web pages over many connections at once from a single thread.
+ *
+ * Each fetch is a non-blocking socket registered with one {@link Selector}.
+ * The selector thread connects, writes the request, and reads the response
+ * as data arrives, so hundreds of pages can be downloading at the same time
+ * without a thread waiting on each one. Once the headers of a response are
+ * read, the listener of the fetch gives a stream for the body, which is
+ * written to as it arrives, and it is told when the fetch is done. Since the
+ * listener runs on the selector thread, it should only do quick work with
+ * the body, such as parsing it as it streams by, and hand anything slower off
+ * (for example, to a {@link WorkQueue}).
+ *
+ * Fetches beyond the connection limit wait in line and start as others
+ * finish. Host names are looked up on a few threads of the fetcher's own, so
+ * a slow name server holds up only the fetches to that host, and neither the
+ * selector nor the thread asking for fetches.
+ *
+ * Connections are kept open after a response and pooled by host, so the next
+ * page from the same host skips the TCP handshake. The end of each response
+ * is found from its framing by {@link HTTPResponse}. A pooled connection that
+ * sits idle too long, or that the server closes, is dropped. If a pooled
+ * connection fails before any of the response arrives, the fetch is tried
+ * once more on a new connection, since the server may have closed it just as
+ * the request was sent.
+ *
+ * Pages are asked for with gzip or deflate compression, and decompressed as
+ * they arrive.
+ */
+public class AsyncFetcher implements Closeable {
+
+	/** Most connections open at once, unless given */
+	public static final int DEFAULT_CONNECTIONS = 256;
+
+	/** How long a fetch may take before it is given up on */
+	public static final long TIMEOUT_MILLIS = 30000;
+
+	/** How long a pooled connection may sit idle before it is closed */
+	public static final long IDLE_MILLIS = 15000;
+
+	/** Most idle connections kept open to one host */
+	public static final int IDLE_PER_HOST = 64;
+
+	/** Longest the selector waits before looking for timed out fetches */
+	private static final long SELECT_MILLIS = 1000;
+
+	/** Size of the buffer responses are read through */
+	private static final int BUFFER = 1 << 16;
+
+	/** Most host names looked up at once */
+	private static final int RESOLVERS = 8;
+
+	/**
+	 * Given the body of a fetch as it arrives, and told when the fetch is done.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on the selector thread once the headers of the response are
+		 * read.
+		 *
+		 * @param url
+		 *            url being fetched
+		 * @param response
+		 *            response whose headers were read
+		 * @return stream to write the decoded body to as it arrives, closed
+		 *         once the body is complete, or null to skip the body
+		 * @throws IOException
+		 *             to fail the fetch
+		 */
+		public OutputStream open(URL url, HTTPResponse response) throws IOException;
+
+		/**
+		 * Called once per fetch, on the selector thread or, if the fetch could
+		 * not start, on the thread that looked up its host or the thread that
+		 * asked for it.
+		 *
+		 * @param url
+		 *            url that was fetched
+		 * @param complete
+		 *            true if the whole response was read
+		 */
+		public void fetched(URL url, boolean complete);
+	}
+
+	/** Watches every open connection */
+	private final Selector selector;
+
+	/** Fetches asked for since the selector last looked; guarded by itself */
+	private final Queue<Fetch> added;
+
+	/** Fetches waiting for a free connection; only used by the selector thread */
+	private final Queue<Fetch> waiting;
+
+	/** Most connections open at once */
+	private final int connections;
+
+	/** Connections in use by a fetch now; only used by the selector thread */
+	private int open;
+
+	/** Idle connections by host and port, oldest first; only used by the selector thread */
+	private final Map<String, Queue<Idle>> idle;
+
+	/** Buffer responses are read through; only used by the selector thread */
+	private final ByteBuffer buffer;
+
+	/** Runs the selector */
+	private final Thread thread;
+
+	/** Looks up host names off the selector thread */
+	private final WorkQueue resolvers;
+
+	/** Set by close() */
+	private volatile boolean closed;
+
+	/**
+	 * Initializes a fetcher with {@link #DEFAULT_CONNECTIONS} connections and
+	 * starts its thread.
+	 *
+	 * @throws IOException
+	 */
+	public AsyncFetcher() throws IOException {
+		this(DEFAULT_CONNECTIONS);
+	}
+
+	/**
+	 * Initializes a fetcher and starts its thread.
+	 *
+	 * @param connections
+	 *            most connections to keep open at once
+	 * @throws IOException
+	 */
+	public AsyncFetcher(int connections) throws IOException {
+		this.selector = Selector.open();
+		this.added = new ArrayDeque<>();
+		this.waiting = new ArrayDeque<>();
+		this.connections = Math.max(1, connections);
+		this.open = 0;
+		this.idle = new HashMap<>();
+		this.buffer = ByteBuffer.allocate(BUFFER);
+		this.closed = false;
+		this.resolvers = new WorkQueue(1, RESOLVERS);
+
+		this.thread = new Thread(this::loop, "AsyncFetcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Starts fetching a page. Returns right away, even before the host name is
+	 * looked up; the listener is given the body as it arrives, and told once
+	 * the page is fetched or the fetch fails.
+	 *
+	 * @param url
+	 *            url to fetch
+	 * @param listener
+	 *            told when the fetch is done
+	 */
+	public void fetch(URL url, Listener listener) {
+		Fetch fetch = new Fetch(url, listener);
+
+		/** Under the lock, so close() cannot shut the resolvers down in between */
+		synchronized(added) {
+			if(!closed) {
+				resolvers.execute(() -> resolve(fetch));
+				return;
+			}
+		}
+
+		fetch.done(false);
+	}
+
+	/**
+	 * Runs on a resolver thread: looks up the host of a fetch, then hands it
+	 * to the selector, or fails it if the host is not found.
+	 *
+	 * @param fetch
+	 *            fetch whose host to look up
+	 */
+	private void resolve(Fetch fetch) {
+		try {
+			fetch.address = new InetSocketAddress(InetAddress.getByName(fetch.url.getHost()), fetch.port);
+		}
+		catch(UnknownHostException | SecurityException e) {
+			fetch.done(false);
+			return;
+		}
+
+		synchronized(added) {
+			if(!closed) {
+				added.add(fetch);
+				selector.wakeup();
+				return;
+			}
+		}
+
+		fetch.done(false);
+	}
+
+	/**
+	 * Stops the selector thread. Fetches that have not finished are failed,
+	 * and so are fetches whose host is still being looked up, once it is.
+	 */
+	@Override
+	public void close() {
+		synchronized(added) {
+			closed = true;
+		}
+
+		selector.wakeup();
+
+		try {
+			thread.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		resolvers.shutdown();
+	}
+
+	/**
+	 * Runs on the selector thread until the fetcher is closed: starts waiting
+	 * fetches while connections are free, then moves every connection that is
+	 * ready along a step.
+	 */
+	private void loop() {
+		long checked = System.currentTimeMillis();
+
+		try {
+			while(!closed) {
+				synchronized(added) {
+					waiting.addAll(added);
+					added.clear();
+				}
+
+				while(open < connections && !waiting.isEmpty()) {
+					start(waiting.poll());
+				}
+
+				selector.select(SELECT_MILLIS);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					step(key);
+				}
+
+				long now = System.currentTimeMillis();
+
+				if(now - checked >= SELECT_MILLIS) {
+					expire(now);
+					checked = now;
+				}
+			}
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			closed = true;
+
+			for(SelectionKey key : new ArrayList<>(selector.keys())) {
+				if(key.attachment() instanceof Fetch) {
+					finish((Fetch) key.attachment(), false);
+				}
+				else {
+					drop((Idle) key.attachment());
+				}
+			}
+
+			synchronized(added) {
+				waiting.addAll(added);
+				added.clear();
+			}
+
+			for(Fetch fetch : waiting) {
+				fetch.done(false);
+			}
+
+			waiting.clear();
+
+			try {
+				selector.close();
+			}
+			catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Starts a fetch on an idle connection to its host if there is one, or
+	 * opens a new connection and starts connecting.
+	 *
+	 * @param fetch
+	 *            fetch to start
+	 */
+	private void start(Fetch fetch) {
+		open++;
+		fetch.deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+		Queue<Idle> pooled = idle.get(fetch.host);
+		Idle reuse = pooled == null ? null : pooled.poll();
+
+		if(reuse != null) {
+			fetch.channel = reuse.channel;
+			fetch.reused = true;
+
+			SelectionKey key = reuse.channel.keyFor(selector);
+			key.attach(fetch);
+			key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+
+		connect(fetch);
+	}
+
+	/**
+	 * Opens a new connection for a fetch and starts connecting.
+	 *
+	 * @param fetch
+	 *            fetch to connect
+	 */
+	private void connect(Fetch fetch) {
+		try {
+			fetch.channel = SocketChannel.open();
+			fetch.channel.configureBlocking(false);
+
+			if(fetch.channel.connect(fetch.address)) {
+				fetch.channel.register(selector, SelectionKey.OP_WRITE, fetch);
+			}
+			else {
+				fetch.channel.register(selector, SelectionKey.OP_CONNECT, fetch);
+			}
+		}
+		catch(IOException e) {
+			finish(fetch, false);
+		}
+	}
+
+	/**
+	 * Moves a ready connection along: finishes connecting, writes more of the
+	 * request, or reads more of the response. An idle connection is only ready
+	 * when the server closed it or sent something unasked, so it is dropped.
+	 *
+	 * @param key
+	 *            selection key of a ready connection
+	 */
+	private void step(SelectionKey key) {
+		if(key.attachment() instanceof Idle) {
+			drop((Idle) key.attachment());
+			return;
+		}
+
+		Fetch fetch = (Fetch) key.attachment();
+
+		try {
+			if(key.isConnectable()) {
+				if(fetch.channel.finishConnect()) {
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+			}
+			else if(key.isWritable()) {
+				fetch.channel.write(fetch.request);
+
+				if(!fetch.request.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			}
+			else if(key.isReadable()) {
+				buffer.clear();
+				int read = fetch.channel.read(buffer);
+
+				if(read < 0) {
+					if(fetch.response.end()) {
+						finish(fetch, true);
+					}
+					else {
+						fail(fetch);
+					}
+				}
+				else if(fetch.response.read(buffer.array(), 0, read)) {
+					finish(fetch, true);
+				}
+			}
+		}
+		catch(IOException e) {
+			fail(fetch);
+		}
+		catch(RuntimeException e) {
+			/** A listener's stream that breaks should not stop every other fetch */
+			e.printStackTrace();
+			finish(fetch, false);
+		}
+	}
+
+	/**
+	 * Fails every fetch that has taken too long, and closes every connection
+	 * that has been idle too long.
+	 *
+	 * @param now
+	 *            current time in milliseconds
+	 */
+	private void expire(long now) {
+		for(SelectionKey key : new ArrayList<>(selector.keys())) {
+			if(!key.isValid()) {
+				continue;
+			}
+
+			if(key.attachment() instanceof Idle) {
+				Idle connection = (Idle) key.attachment();
+
+				if(now - connection.since > IDLE_MILLIS) {
+					drop(connection);
+				}
+			}
+			else {
+				Fetch fetch = (Fetch) key.attachment();
+
+				if(now > fetch.deadline) {
+					finish(fetch, false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handles a connection that failed. A fetch on a pooled connection that
+	 * failed before any of the response arrived is tried again on a new
+	 * connection; any other fetch fails.
+	 *
+	 * @param fetch
+	 *            fetch whose connection failed
+	 */
+	private void fail(Fetch fetch) {
+		if(fetch.reused && fetch.response.empty()) {
+			close(fetch.channel);
+			fetch.channel = null;
+			fetch.reused = false;
+			fetch.request.rewind();
+			fetch.response = fetch.response();
+			connect(fetch);
+			return;
+		}
+
+		finish(fetch, false);
+	}
+
+	/**
+	 * Closes the connection of a fetch and tells its listener.
+	 *
+	 * @param fetch
+	 *            fetch that is done
+	 * @param complete
+	 *            true if the whole response was read
+	 */
+	private void finish(Fetch fetch, boolean complete) {
+		if(fetch.done) {
+			return;
+		}
+
+		if(fetch.channel != null) {
+			if(complete && fetch.response.keepAlive() && !closed) {
+				pool(fetch);
+			}
+			else {
+				close(fetch.channel);
+			}
+
+			fetch.channel = null;
+		}
+
+		open--;
+		fetch.done(complete);
+	}
+
+	/**
+	 * Keeps the connection of a finished fetch open for the next fetch from the
+	 * same host. While idle, the connection is watched for reads, which only
+	 * happen if the server closes it.
+	 *
+	 * @param fetch
+	 *            fetch whose response was read completely
+	 */
+	private void pool(Fetch fetch) {
+		Queue<Idle> pooled = idle.get(fetch.host);
+
+		if(pooled == null) {
+			pooled = new ArrayDeque<>();
+			idle.put(fetch.host, pooled);
+		}
+
+		if(pooled.size() >= IDLE_PER_HOST) {
+			drop(pooled.peek());
+		}
+
+		Idle connection = new Idle(fetch.host, fetch.channel, System.currentTimeMillis());
+		pooled.add(connection);
+
+		SelectionKey key = fetch.channel.keyFor(selector);
+		key.attach(connection);
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Closes an idle connection and takes it out of the pool.
+	 *
+	 * @param connection
+	 *            idle connection
+	 */
+	private void drop(Idle connection) {
+		Queue<Idle> pooled = idle.get(connection.host);
+
+		if(pooled != null) {
+			pooled.remove(connection);
+
+			if(pooled.isEmpty()) {
+				idle.remove(connection.host);
+			}
+		}
+
+		close(connection.channel);
+	}
+
+	/**
+	 * Closes a connection, which also takes it off the selector.
+	 *
+	 * @param channel
+	 *            connection to close
+	 */
+	private static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * One page being fetched.
+	 */
+	private static class Fetch {
+
+		/** Url to fetch */
+		private final URL url;
+
+		/** Told when the fetch is done */
+		private final Listener listener;
+
+		/** Port to connect to */
+		private final int port;
+
+		/** Resolved address of the host, or null until it is looked up */
+		private InetSocketAddress address;
+
+		/** Host and port, which connections are pooled by */
+		private final String host;
+
+		/** Request still to be written */
+		private final ByteBuffer request;
+
+		/** Response read so far */
+		private HTTPResponse response;
+
+		/** Connection, or null before it is opened and after it is done */
+		private SocketChannel channel;
+
+		/** True if the connection was taken from the pool */
+		private boolean reused;
+
+		/** When the fetch is given up on, in milliseconds */
+		private long deadline;
+
+		/** Set once the listener was told */
+		private boolean done;
+
+		private Fetch(URL url, Listener listener) {
+			this.url = url;
+			this.listener = listener;
+			this.port = url.getPort() < 0 ? LinkParser.DEFAULT_PORT : url.getPort();
+			this.address = null;
+			this.host = url.getHost().toLowerCase() + ":" + port;
+			this.request = ByteBuffer.wrap(LinkParser.craftHTTPRequest(url, LinkParser.HTTP.GET, true, true)
+					.getBytes(StandardCharsets.UTF_8));
+			this.response = response();
+			this.reused = false;
+			this.done = false;
+		}
+
+		/**
+		 * Returns a new reader for the response, which writes the body where
+		 * the listener says.
+		 *
+		 * @return response reader
+		 */
+		private HTTPResponse response() {
+			return new HTTPResponse(response -> listener.open(url, response));
+		}
+
+		/**
+		 * Tells the listener, once.
+		 *
+		 * @param complete
+		 *            true if the whole response was read
+		 */
+		private void done(boolean complete) {
+			if(done) {
+				return;
+			}
+
+			done = true;
+
+			try {
+				listener.fetched(url, complete);
+			}
+			catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A pooled connection waiting for the next fetch from its host.
+	 */
+	private static class Idle {
+
+		/** Host and port the connection is to */
+		private final String host;
+
+		/** Open connection */
+		private final SocketChannel channel;
+
+		/** When the connection became idle, in milliseconds */
+		private final long since;
+
+		private Idle(String host, SocketChannel channel, long since) {
+			this.host = host;
+			this.channel = channel;
+			this.since = since;
+		}
+	}
+}
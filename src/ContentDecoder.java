@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a gzip or deflate body as its bytes arrive, so a compressed
+ * page never has to be held in memory before it is decoded.
+ *
+ * Each piece of compressed body is inflated as soon as it is written, and the
+ * decoded bytes are written to the output right away. A gzip header and
+ * trailer are read by hand around the raw deflate data, since
+ * {@link Inflater} only reads deflate. The trailer's checksum and length are
+ * checked, and a body made of several gzip members is decoded member after
+ * member. A deflate body is usually wrapped in zlib, but some servers send it
+ * raw, so the first two bytes decide which one it is.
+ *
+ * @see HTTPResponse
+ */
+public class ContentDecoder {
+
+	/** Largest decoded body, so a small compressed page cannot fill memory */
+	public static final int MAX_DECODED = 1 << 26;
+
+	/** Fixed part of a gzip header */
+	private static final int GZIP_HEADER = 10;
+
+	/** Length of a gzip trailer: CRC-32 and size */
+	private static final int GZIP_TRAILER = 8;
+
+	/** Gzip flag bits */
+	private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+	/** True for gzip, false for deflate */
+	private final boolean gzip;
+
+	/** Where decoded bytes go */
+	private final OutputStream out;
+
+	/** Bytes decoded so far, across every member */
+	private long decoded;
+
+	/** Inflates the deflate data, or null while reading a gzip header */
+	private Inflater inflater;
+
+	/** Bytes of a header or trailer not complete yet */
+	private byte[] pending;
+
+	/** Checksum of the current gzip member's decoded bytes */
+	private final CRC32 crc;
+
+	/** Decoded bytes of the current gzip member */
+	private long size;
+
+	/** True between the end of a member and the start of the next */
+	private boolean between;
+
+	/** Buffer decoded bytes are inflated into */
+	private final byte[] buffer;
+
+	/**
+	 * Initializes a decoder.
+	 *
+	 * @param encoding
+	 *            value of the Content-Encoding header: gzip, x-gzip or deflate
+	 * @param out
+	 *            where decoded bytes go
+	 */
+	private ContentDecoder(String encoding, OutputStream out) {
+		this.gzip = !encoding.equals("deflate");
+		this.out = out;
+		this.decoded = 0;
+		this.inflater = null;
+		this.pending = new byte[0];
+		this.crc = new CRC32();
+		this.size = 0;
+		this.between = true;
+		this.buffer = new byte[1 << 14];
+	}
+
+	/**
+	 * Returns a decoder for a Content-Encoding, or null if the body is not
+	 * encoded.
+	 *
+	 * @param encoding
+	 *            value of the Content-Encoding header, or an empty string
+	 * @param out
+	 *            where decoded bytes go
+	 * @return decoder, or null for identity
+	 * @throws IOException
+	 *             if the encoding is not supported
+	 */
+	public static ContentDecoder of(String encoding, OutputStream out) throws IOException {
+		encoding = encoding.trim().toLowerCase();
+
+		if(encoding.isEmpty() || encoding.equals("identity")) {
+			return null;
+		}
+
+		if(encoding.equals("gzip") || encoding.equals("x-gzip") || encoding.equals("deflate")) {
+			return new ContentDecoder(encoding, out);
+		}
+
+		throw new IOException("unsupported Content-Encoding: " + encoding);
+	}
+
+	/**
+	 * Decodes the next piece of the body.
+	 *
+	 * @param data
+	 *            compressed bytes
+	 * @param offset
+	 *            first byte
+	 * @param length
+	 *            number of bytes
+	 * @throws IOException
+	 *             if the data is corrupt or decodes to too much
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if(pending.length > 0) {
+			byte[] joined = Arrays.copyOf(pending, pending.length + length);
+			System.arraycopy(data, offset, joined, pending.length, length);
+			pending = new byte[0];
+			data = joined;
+			offset = 0;
+			length = joined.length;
+		}
+
+		int end = offset + length;
+
+		while(offset < end) {
+			if(inflater == null) {
+				int header = gzip ? gzipHeader(data, offset, end) : deflateHeader(data, offset, end);
+
+				if(header < 0) {
+					pending = Arrays.copyOfRange(data, offset, end);
+					return;
+				}
+
+				offset += header;
+				continue;
+			}
+
+			if(inflater.finished()) {
+				if(!gzip) {
+					/** Anything after the end of a deflate stream is ignored */
+					return;
+				}
+
+				if(end - offset < GZIP_TRAILER) {
+					pending = Arrays.copyOfRange(data, offset, end);
+					return;
+				}
+
+				checkTrailer(data, offset);
+				offset += GZIP_TRAILER;
+				inflater.end();
+				inflater = null;
+				between = true;
+				continue;
+			}
+
+			inflater.setInput(data, offset, end - offset);
+			inflate();
+			offset = end - inflater.getRemaining();
+		}
+	}
+
+	/**
+	 * Inflates as much as the input given so far allows.
+	 *
+	 * @throws IOException
+	 */
+	private void inflate() throws IOException {
+		try {
+			while(!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+
+				if(n == 0) {
+					if(inflater.needsDictionary()) {
+						throw new IOException("deflate dictionaries are not supported");
+					}
+
+					if(inflater.needsInput()) {
+						return;
+					}
+				}
+
+				decoded += n;
+
+				if(decoded > MAX_DECODED) {
+					throw new IOException("decoded body is too large");
+				}
+
+				out.write(buffer, 0, n);
+
+				if(gzip) {
+					crc.update(buffer, 0, n);
+					size += n;
+				}
+			}
+		}
+		catch(DataFormatException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Reads a gzip member header and starts inflating.
+	 *
+	 * @return length of the header, or -1 if it is not all here yet
+	 * @throws IOException
+	 *             if it is not a gzip header
+	 */
+	private int gzipHeader(byte[] data, int offset, int end) throws IOException {
+		if(end - offset < GZIP_HEADER) {
+			return -1;
+		}
+
+		if((data[offset] & 0xFF) != 0x1F || (data[offset + 1] & 0xFF) != 0x8B || data[offset + 2] != 8) {
+			throw new IOException("not gzip data");
+		}
+
+		int flags = data[offset + 3] & 0xFF;
+		int i = offset + GZIP_HEADER;
+
+		if((flags & FEXTRA) != 0) {
+			if(end - i < 2) {
+				return -1;
+			}
+
+			i += 2 + ((data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8);
+		}
+
+		for(int field : new int[] { FNAME, FCOMMENT }) {
+			if((flags & field) != 0) {
+				while(i < end && data[i] != 0) {
+					i++;
+				}
+
+				if(i++ >= end) {
+					return -1;
+				}
+			}
+		}
+
+		if((flags & FHCRC) != 0) {
+			i += 2;
+		}
+
+		if(i > end) {
+			return -1;
+		}
+
+		inflater = new Inflater(true);
+		crc.reset();
+		size = 0;
+		between = false;
+		return i - offset;
+	}
+
+	/**
+	 * Looks at the first two bytes of a deflate body to tell a zlib wrapper
+	 * from raw deflate, and starts inflating.
+	 *
+	 * @return zero, since the header is left for the inflater, or -1 if two
+	 *         bytes are not here yet
+	 */
+	private int deflateHeader(byte[] data, int offset, int end) {
+		if(end - offset < 2) {
+			return -1;
+		}
+
+		int cmf = data[offset] & 0xFF;
+		int flg = data[offset + 1] & 0xFF;
+		boolean zlib = (cmf & 0x0F) == 8 && (cmf << 8 | flg) % 31 == 0;
+
+		inflater = new Inflater(!zlib);
+		between = false;
+		return 0;
+	}
+
+	/**
+	 * Checks a gzip trailer against the decoded member.
+	 *
+	 * @throws IOException
+	 *             if the checksum or size is wrong
+	 */
+	private void checkTrailer(byte[] data, int offset) throws IOException {
+		long expectedCrc = 0;
+		long expectedSize = 0;
+
+		for(int b = 3; b >= 0; b--) {
+			expectedCrc = expectedCrc << 8 | (data[offset + b] & 0xFF);
+			expectedSize = expectedSize << 8 | (data[offset + 4 + b] & 0xFF);
+		}
+
+		if(expectedCrc != crc.getValue() || expectedSize != (size & 0xFFFFFFFFL)) {
+			throw new IOException("gzip checksum does not match");
+		}
+	}
+
+	/**
+	 * Tests whether the body decoded completely: it ended at the end of a gzip
+	 * member or deflate stream, or was empty. Frees the inflater.
+	 *
+	 * @return true if no compressed data is missing
+	 */
+	public boolean finish() {
+		boolean complete = pending.length == 0 && (between || inflater != null && inflater.finished() && !gzip);
+
+		if(inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+
+		return complete;
+	}
+}
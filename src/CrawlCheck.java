@@ -0,0 +1,409 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that a {@link CrawlFrontier} is polite to a host. Starts a small
+ * HTTP server on a free local port, crawls it, and checks what the server
+ * saw: a polite pace by default, no more fetches at once than the per-host
+ * limit, fetches started at least the delay apart, a longer Crawl-delay from
+ * robots.txt obeyed, disallowed paths never fetched, and nothing but
+ * robots.txt fetched when robots.txt answers 503.
+ *
+ * Prints one line per check and exits with status 1 if any failed, so it can
+ * be run after changing the crawler.
+ *
+ * Usage: <code>java CrawlCheck</code>
+ *
+ * @see CrawlFrontier
+ * @see RobotsTxt
+ */
+public class CrawlCheck {
+
+	/** Timers may fire a little early, so gaps this much short of the delay still pass */
+	private static final long SLACK_MILLIS = 20;
+
+	/** Longest a check may wait for its fetches */
+	private static final long TIMEOUT_SECONDS = 20;
+
+	/** Number of checks that failed */
+	private static int failed = 0;
+
+	public static void main(String[] args) throws Exception {
+
+		checkDefaults();
+		checkDelay();
+		checkPerHost();
+		checkCrawlDelay();
+		checkDisallow();
+		checkUnavailable();
+
+		System.out.println(failed == 0 ? "all checks passed" : failed + " checks failed");
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * A frontier made without limits is still polite: fetches start the
+	 * default delay apart, and no more than the default number are in flight.
+	 */
+	private static void checkDefaults() throws Exception {
+
+		try(StandIn server = new StandIn(404, "", 0)) {
+			Map<String, Boolean> results = crawl(server, new CrawlFrontier(), "/a.html", "/b.html", "/c.html");
+
+			check("defaults", results.size() == 3 && !results.containsValue(false)
+					&& server.shortestGap() >= CrawlFrontier.DEFAULT_DELAY_MILLIS - SLACK_MILLIS
+					&& server.most() <= CrawlFrontier.DEFAULT_PER_HOST, "shortest gap " + server.shortestGap()
+					+ " ms, most at once " + server.most());
+		}
+	}
+
+	/**
+	 * Fetches from a host start at least the frontier's delay apart, counting
+	 * from the robots.txt fetch.
+	 */
+	private static void checkDelay() throws Exception {
+		long delay = 200;
+
+		try(StandIn server = new StandIn(404, "", 0)) {
+			Map<String, Boolean> results = crawl(server, new CrawlFrontier(delay, 6), "/a.html", "/b.html", "/c.html",
+					"/d.html");
+
+			check("delay", results.size() == 4 && !results.containsValue(false)
+					&& server.shortestGap() >= delay - SLACK_MILLIS,
+					"shortest gap " + server.shortestGap() + " ms, asked for " + delay);
+		}
+	}
+
+	/**
+	 * A host never has more fetches in flight than the per-host limit, and
+	 * does get that many when there is enough waiting.
+	 */
+	private static void checkPerHost() throws Exception {
+		int perHost = 2;
+
+		try(StandIn server = new StandIn(404, "", 100)) {
+			String[] paths = new String[10];
+
+			for(int i = 0; i < paths.length; i++)
+				paths[i] = "/p" + i + ".html";
+
+			Map<String, Boolean> results = crawl(server, new CrawlFrontier(0, perHost), paths);
+
+			check("per host", results.size() == paths.length && !results.containsValue(false)
+					&& server.most() == perHost, "most at once " + server.most() + ", limit " + perHost);
+		}
+	}
+
+	/**
+	 * A Crawl-delay longer than the frontier's delay spaces out the fetches
+	 * instead.
+	 */
+	private static void checkCrawlDelay() throws Exception {
+		long crawlDelay = 150;
+
+		try(StandIn server = new StandIn(200, "User-agent: *\nCrawl-delay: 0.15\n", 0)) {
+			Map<String, Boolean> results = crawl(server, new CrawlFrontier(0, 6), "/a.html", "/b.html", "/c.html");
+
+			check("crawl-delay", results.size() == 3 && !results.containsValue(false)
+					&& server.shortestGap() >= crawlDelay - SLACK_MILLIS,
+					"shortest gap " + server.shortestGap() + " ms, asked for " + crawlDelay);
+		}
+	}
+
+	/**
+	 * Disallowed urls fail without being fetched, and a longer Allow still
+	 * lets a url through.
+	 */
+	private static void checkDisallow() throws Exception {
+		String robots = "User-agent: other\nDisallow: /\n\nUser-agent: *\nDisallow: /private/\n"
+				+ "Allow: /private/open.html\n";
+
+		try(StandIn server = new StandIn(200, robots, 0)) {
+			Map<String, Boolean> results = crawl(server, new CrawlFrontier(0, 6), "/public.html", "/private/secret.html",
+					"/private/open.html");
+
+			check("disallow", Boolean.TRUE.equals(results.get("/public.html"))
+					&& Boolean.FALSE.equals(results.get("/private/secret.html"))
+					&& Boolean.TRUE.equals(results.get("/private/open.html"))
+					&& !server.paths().contains("/private/secret.html"), "results " + results + ", server saw "
+					+ server.paths());
+		}
+	}
+
+	/**
+	 * A robots.txt that answers with a server error disallows the whole host,
+	 * so only robots.txt itself is fetched.
+	 */
+	private static void checkUnavailable() throws Exception {
+
+		try(StandIn server = new StandIn(503, "", 0)) {
+			Map<String, Boolean> results = crawl(server, new CrawlFrontier(0, 6), "/a.html", "/b.html");
+
+			check("503", results.size() == 2 && !results.containsValue(true)
+					&& server.paths().size() == 1 && server.paths().contains("/robots.txt"),
+					"results " + results + ", server saw " + server.paths());
+		}
+	}
+
+	/**
+	 * Fetches some paths from the server through a frontier, waits for all of
+	 * them, and closes the frontier.
+	 *
+	 * @param server
+	 *            server to fetch from
+	 * @param frontier
+	 *            frontier to check
+	 * @param paths
+	 *            paths to fetch, in order
+	 * @return whether each path's fetch completed, by path; missing if it
+	 *         did not finish in time
+	 */
+	private static Map<String, Boolean> crawl(StandIn server, CrawlFrontier frontier, String... paths)
+			throws Exception {
+		Map<String, Boolean> results = new HashMap<>();
+		CountDownLatch done = new CountDownLatch(paths.length);
+
+		try {
+			for(String path : paths) {
+				frontier.fetch(server.url(path), new AsyncFetcher.Listener() {
+
+					@Override
+					public OutputStream open(URL url, HTTPResponse response) {
+						return null;
+					}
+
+					@Override
+					public void fetched(URL url, boolean complete) {
+						synchronized(results) {
+							results.put(url.getFile(), complete);
+						}
+
+						done.countDown();
+					}
+				});
+			}
+
+			done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		}
+		finally {
+			frontier.close();
+		}
+
+		synchronized(results) {
+			return new HashMap<>(results);
+		}
+	}
+
+	/**
+	 * Prints the outcome of a check and counts it if it failed.
+	 *
+	 * @param name
+	 *            name of the check
+	 * @param passed
+	 *            true if the check passed
+	 * @param detail
+	 *            what was seen
+	 */
+	private static void check(String name, boolean passed, String detail) {
+		System.out.printf("%-12s %s  %s%n", name, passed ? "ok" : "FAILED", detail);
+
+		if(!passed)
+			failed++;
+	}
+
+	/**
+	 * A local HTTP server that answers every page with a small document,
+	 * robots.txt with a set status and text, and remembers when each request
+	 * came and how many were open at once. Every response closes its
+	 * connection, so open requests are fetches in flight.
+	 */
+	private static class StandIn implements Closeable {
+
+		private final ServerSocket socket;
+
+		/** Status of robots.txt responses */
+		private final int robotsStatus;
+
+		/** Body of robots.txt responses */
+		private final String robots;
+
+		/** How long each response is held back, in milliseconds */
+		private final long hold;
+
+		/** Paths in the order they were asked for; guarded by this */
+		private final List<String> paths;
+
+		/** When each request came, in milliseconds; guarded by this */
+		private final List<Long> times;
+
+		/** Requests being answered; guarded by this */
+		private int active;
+
+		/** Most requests answered at once; guarded by this */
+		private int most;
+
+		/**
+		 * Initializes a server on a free local port and starts taking
+		 * connections.
+		 *
+		 * @param robotsStatus
+		 *            status of robots.txt responses
+		 * @param robots
+		 *            body of robots.txt responses
+		 * @param hold
+		 *            how long each response is held back, in milliseconds
+		 * @throws IOException
+		 *             if no port could be opened
+		 */
+		private StandIn(int robotsStatus, String robots, long hold) throws IOException {
+			this.socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			this.robotsStatus = robotsStatus;
+			this.robots = robots;
+			this.hold = hold;
+			this.paths = new ArrayList<>();
+			this.times = new ArrayList<>();
+
+			Thread thread = new Thread(this::accept, "StandIn");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Returns the url of a path on this server.
+		 *
+		 * @param path
+		 *            path starting with /
+		 * @return url on this server
+		 * @throws IOException
+		 *             if the url is malformed
+		 */
+		private URL url(String path) throws IOException {
+			return new URL("http", "localhost", socket.getLocalPort(), path);
+		}
+
+		/**
+		 * Returns the paths asked for so far.
+		 *
+		 * @return paths in the order they were asked for
+		 */
+		private synchronized List<String> paths() {
+			return new ArrayList<>(paths);
+		}
+
+		/**
+		 * Returns the most requests that were answered at once.
+		 *
+		 * @return most requests at once
+		 */
+		private synchronized int most() {
+			return most;
+		}
+
+		/**
+		 * Returns the shortest time between two requests in a row.
+		 *
+		 * @return shortest gap in milliseconds, or Long.MAX_VALUE if there
+		 *         were fewer than two requests
+		 */
+		private synchronized long shortestGap() {
+			long shortest = Long.MAX_VALUE;
+
+			for(int i = 1; i < times.size(); i++)
+				shortest = Math.min(shortest, times.get(i) - times.get(i - 1));
+
+			return shortest;
+		}
+
+		/**
+		 * Takes connections until closed, each on its own thread.
+		 */
+		private void accept() {
+			try {
+				while(true) {
+					Socket client = socket.accept();
+					Thread thread = new Thread(() -> answer(client), "StandIn client");
+					thread.setDaemon(true);
+					thread.start();
+				}
+			}
+			catch(IOException e) {
+				// Closed
+			}
+		}
+
+		/**
+		 * Reads one request and answers it.
+		 *
+		 * @param client
+		 *            connection to answer
+		 */
+		private void answer(Socket client) {
+			try(Socket connection = client) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+						StandardCharsets.ISO_8859_1));
+				String request = in.readLine();
+				String line;
+
+				while((line = in.readLine()) != null && !line.isEmpty()) {
+					// Headers are not needed
+				}
+
+				if(request == null || request.split(" ").length < 2) {
+					return;
+				}
+
+				String path = request.split(" ")[1];
+
+				synchronized(this) {
+					paths.add(path);
+					times.add(System.nanoTime() / 1000000);
+					most = Math.max(most, ++active);
+				}
+
+				int status = path.equals("/robots.txt") ? robotsStatus : 200;
+				String body = path.equals("/robots.txt") ? robots : "<html><body>page " + path + "</body></html>";
+				byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+				try {
+					Thread.sleep(hold);
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				/** Counted as done before the fetcher can see the response end */
+				synchronized(this) {
+					active--;
+				}
+
+				OutputStream out = connection.getOutputStream();
+				out.write(("HTTP/1.1 " + status + " Stand-in\r\nContent-Type: text/html\r\nContent-Length: "
+						+ bytes.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				out.write(bytes);
+				out.flush();
+			}
+			catch(IOException e) {
+				// The fetcher hung up
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,387 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+/**
+ * Decides when each url of a crawl is fetched, so no host is sent more than
+ * it should take.
+ *
+ * Urls wait in a queue for their host, and are handed to an
+ * {@link AsyncFetcher} one at a time by a single thread. A host never has more
+ * than a set number of fetches in flight, and its fetches start at least a
+ * set delay apart. If the host's robots.txt asks for a longer Crawl-delay,
+ * that is used instead, up to {@link #MAX_CRAWL_DELAY_MILLIS}.
+ *
+ * Before the first url of a host is fetched, its robots.txt is fetched and
+ * kept for the rest of the crawl, so it is only asked for once per host. Urls
+ * it disallows are failed without being fetched. A robots.txt that is
+ * missing allows everything, and one that cannot be read because of a server
+ * error or a failed connection allows nothing, as RFC 9309 says.
+ *
+ * Hosts that can start a fetch are kept in a queue by the time they may
+ * start it, so the thread only wakes when some host is ready.
+ *
+ * @see RobotsTxt
+ */
+public class CrawlFrontier implements Closeable {
+
+	/** Least time between the starts of two fetches from a host, unless given; a second, as most crawlers wait */
+	public static final long DEFAULT_DELAY_MILLIS = 1000;
+
+	/** Most fetches in flight to one host, unless given */
+	public static final int DEFAULT_PER_HOST = 2;
+
+	/** Longest Crawl-delay from a robots.txt that is obeyed */
+	public static final long MAX_CRAWL_DELAY_MILLIS = 10000;
+
+	/** Fetches pages */
+	private final AsyncFetcher fetcher;
+
+	/** Least time between the starts of two fetches from a host */
+	private final long delay;
+
+	/** Most fetches in flight to one host */
+	private final int perHost;
+
+	/** Hosts by host and port; guarded by this */
+	private final Map<String, Host> hosts;
+
+	/** Hosts that can start a fetch, by when they may; guarded by this */
+	private final PriorityQueue<Host> ready;
+
+	/** Hands urls to the fetcher */
+	private final Thread thread;
+
+	/** Set by close(); guarded by this */
+	private boolean closed;
+
+	/**
+	 * Initializes a frontier with {@link #DEFAULT_DELAY_MILLIS} and
+	 * {@link #DEFAULT_PER_HOST}, and starts its thread.
+	 *
+	 * @throws IOException
+	 *             if the fetcher could not start
+	 */
+	public CrawlFrontier() throws IOException {
+		this(DEFAULT_DELAY_MILLIS, DEFAULT_PER_HOST);
+	}
+
+	/**
+	 * Initializes a frontier and starts its thread.
+	 *
+	 * @param delay
+	 *            least time between the starts of two fetches from a host, in
+	 *            milliseconds
+	 * @param perHost
+	 *            most fetches in flight to one host
+	 * @throws IOException
+	 *             if the fetcher could not start
+	 */
+	public CrawlFrontier(long delay, int perHost) throws IOException {
+		this.fetcher = new AsyncFetcher();
+		this.delay = Math.max(0, delay);
+		this.perHost = Math.max(1, perHost);
+		this.hosts = new HashMap<>();
+		this.ready = new PriorityQueue<>((a, b) -> Long.compare(a.next, b.next));
+		this.closed = false;
+
+		this.thread = new Thread(this::loop, "CrawlFrontier");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Adds a url to its host's queue. Returns right away; the listener is told
+	 * about the fetch the same way {@link AsyncFetcher} tells it, or told it
+	 * failed if robots.txt disallows the url.
+	 *
+	 * @param url
+	 *            url to fetch
+	 * @param listener
+	 *            given the body and told when the fetch is done
+	 */
+	public void fetch(URL url, AsyncFetcher.Listener listener) {
+		URL robots = null;
+		Host host;
+
+		synchronized(this) {
+			if(closed) {
+				host = null;
+			}
+			else {
+				String key = url.getHost().toLowerCase() + ":"
+						+ (url.getPort() < 0 ? LinkParser.DEFAULT_PORT : url.getPort());
+				host = hosts.get(key);
+
+				if(host == null) {
+					host = new Host();
+					hosts.put(key, host);
+					robots = robotsTxt(url);
+				}
+
+				host.pending.add(new Pending(url, listener));
+				schedule(host);
+			}
+		}
+
+		if(host == null) {
+			listener.fetched(url, false);
+		}
+		else if(robots != null) {
+			fetcher.fetch(robots, new RobotsListener(host));
+		}
+	}
+
+	/**
+	 * Stops the thread and the fetcher. Urls still waiting are failed, and so
+	 * are fetches that have not finished.
+	 */
+	@Override
+	public void close() {
+		List<Pending> failed = new ArrayList<>();
+
+		synchronized(this) {
+			closed = true;
+			this.notifyAll();
+
+			for(Host host : hosts.values()) {
+				failed.addAll(host.pending);
+				host.pending.clear();
+			}
+
+			ready.clear();
+		}
+
+		try {
+			thread.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		for(Pending pending : failed) {
+			pending.listener.fetched(pending.url, false);
+		}
+
+		fetcher.close();
+	}
+
+	/**
+	 * Runs on the frontier's thread until it is closed: waits for the host
+	 * that may start a fetch soonest, then hands its next url to the fetcher.
+	 */
+	private void loop() {
+		while(true) {
+			Host host;
+			Pending pending;
+			boolean allowed;
+
+			synchronized(this) {
+				try {
+					while(!closed && (ready.isEmpty() || ready.peek().next > System.currentTimeMillis())) {
+						if(ready.isEmpty()) {
+							this.wait();
+						}
+						else {
+							this.wait(Math.max(1, ready.peek().next - System.currentTimeMillis()));
+						}
+					}
+				}
+				catch(InterruptedException e) {
+					return;
+				}
+
+				if(closed) {
+					return;
+				}
+
+				host = ready.poll();
+				host.queued = false;
+				pending = host.pending.poll();
+				allowed = host.robots.allowed(pending.url);
+
+				if(allowed) {
+					host.active++;
+					host.next = System.currentTimeMillis() + host.delay;
+				}
+
+				schedule(host);
+			}
+
+			if(allowed) {
+				fetcher.fetch(pending.url, new Release(host, pending.listener));
+			}
+			else {
+				pending.listener.fetched(pending.url, false);
+			}
+		}
+	}
+
+	/**
+	 * Puts a host in the ready queue if it has a url waiting, its robots.txt
+	 * was read, and it has fewer fetches in flight than allowed. Must be
+	 * called while holding the lock.
+	 *
+	 * @param host
+	 *            host whose state changed
+	 */
+	private void schedule(Host host) {
+		if(!host.queued && host.robots != null && !host.pending.isEmpty() && host.active < perHost) {
+			host.queued = true;
+			ready.add(host);
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the url of the robots.txt for a url's host.
+	 *
+	 * @param url
+	 *            any url on the host
+	 * @return url of robots.txt
+	 */
+	private static URL robotsTxt(URL url) {
+		try {
+			return new URL(url.getProtocol(), url.getHost(), url.getPort(), "/robots.txt");
+		}
+		catch(MalformedURLException e) {
+			// Cannot happen, since the parts came from a url
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * One host of the crawl.
+	 */
+	private static class Host {
+
+		/** Urls waiting to be fetched, oldest first */
+		private final Queue<Pending> pending = new ArrayDeque<>();
+
+		/** Fetches in flight */
+		private int active = 0;
+
+		/** When the next fetch may start, in milliseconds */
+		private long next = 0;
+
+		/** Least time between the starts of two fetches, once robots.txt is read */
+		private long delay = 0;
+
+		/** Rules from robots.txt, or null until it is read */
+		private RobotsTxt robots = null;
+
+		/** True while in the ready queue */
+		private boolean queued = false;
+	}
+
+	/**
+	 * A url waiting to be fetched.
+	 */
+	private static class Pending {
+
+		private final URL url;
+
+		private final AsyncFetcher.Listener listener;
+
+		private Pending(URL url, AsyncFetcher.Listener listener) {
+			this.url = url;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Passes a fetch on to its listener, and frees its host's slot when it is
+	 * done.
+	 */
+	private class Release implements AsyncFetcher.Listener {
+
+		private final Host host;
+
+		private final AsyncFetcher.Listener listener;
+
+		private Release(Host host, AsyncFetcher.Listener listener) {
+			this.host = host;
+			this.listener = listener;
+		}
+
+		@Override
+		public OutputStream open(URL url, HTTPResponse response) throws IOException {
+			return listener.open(url, response);
+		}
+
+		@Override
+		public void fetched(URL url, boolean complete) {
+			synchronized(CrawlFrontier.this) {
+				host.active--;
+				schedule(host);
+			}
+
+			listener.fetched(url, complete);
+		}
+	}
+
+	/**
+	 * Reads a host's robots.txt, then lets its urls be fetched.
+	 */
+	private class RobotsListener implements AsyncFetcher.Listener {
+
+		private final Host host;
+
+		/** Status code of the response, or 0 if none came */
+		private int status;
+
+		/** Body of a successful response */
+		private ByteArrayOutputStream body;
+
+		private RobotsListener(Host host) {
+			this.host = host;
+			this.status = 0;
+			this.body = null;
+		}
+
+		@Override
+		public OutputStream open(URL url, HTTPResponse response) {
+			status = response.status();
+
+			if(status >= 200 && status < 300) {
+				body = new ByteArrayOutputStream();
+			}
+
+			return body;
+		}
+
+		@Override
+		public void fetched(URL url, boolean complete) {
+			RobotsTxt robots;
+
+			if(!complete || status >= 500) {
+				robots = RobotsTxt.DISALLOW_ALL;
+			}
+			else if(body != null) {
+				robots = RobotsTxt.parse(new String(body.toByteArray(), StandardCharsets.UTF_8));
+			}
+			else {
+				robots = RobotsTxt.ALLOW_ALL;
+			}
+
+			synchronized(CrawlFrontier.this) {
+				host.robots = robots;
+				host.delay = Math.max(delay, Math.min(robots.crawlDelay(), MAX_CRAWL_DELAY_MILLIS));
+				/** robots.txt was the host's first fetch, and it was surely sent before its answer came */
+				host.next = System.currentTimeMillis() + host.delay;
+				schedule(host);
+			}
+		}
+	}
+}
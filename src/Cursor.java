@@ -0,0 +1,113 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Marks where a page of search results ended, so the next page can start
+ * right after it. A cursor holds the sort key of the last result shown (its
+ * score, frequency, position and path) and the index generation the page was
+ * searched at. It is handed out as an opaque URL-safe string.
+ *
+ * Since the next page starts from a sort key rather than a count of results,
+ * a result is never shown twice or skipped while paging, even if results
+ * before it changed. The generation tells whether the index changed since
+ * the page was searched.
+ *
+ * @see WordIndex#search(Query, boolean, WordIndex.Ranking, int, Deadline, Word)
+ */
+public class Cursor {
+
+	/** Separates the fields of an encoded cursor; never part of a path */
+	private static final char SEPARATOR = '\n';
+
+	/** Index generation the page was searched at */
+	private final long generation;
+
+	/** Last result of the page */
+	private final Word last;
+
+	/**
+	 * Initializes a cursor.
+	 *
+	 * @param generation
+	 *            index generation the page was searched at
+	 * @param last
+	 *            last result of the page
+	 */
+	private Cursor(long generation, Word last) {
+		this.generation = generation;
+		this.last = last;
+	}
+
+	/**
+	 * Returns the index generation the page was searched at.
+	 *
+	 * @return generation
+	 * @see ThreadSafeWordIndex#generation()
+	 */
+	public long generation() {
+		return generation;
+	}
+
+	/**
+	 * Returns the last result of the page, to search after.
+	 *
+	 * @return last result
+	 */
+	public Word last() {
+		return last;
+	}
+
+	/**
+	 * Encodes a cursor for the page that ended with a result.
+	 *
+	 * @param search
+	 *            describes the search, such as the query and its options; the
+	 *            cursor only works for the same search
+	 * @param generation
+	 *            index generation the page was searched at
+	 * @param last
+	 *            last result of the page
+	 * @return opaque URL-safe cursor
+	 */
+	public static String encode(String search, long generation, Word last) {
+		String text = Integer.toHexString(search.hashCode()) + SEPARATOR + generation + SEPARATOR
+				+ Long.toHexString(Double.doubleToLongBits(last.getScore())) + SEPARATOR + last.getFrequency()
+				+ SEPARATOR + last.getPosition() + SEPARATOR + last.getPath();
+
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Decodes a cursor.
+	 *
+	 * @param cursor
+	 *            cursor from {@link #encode(String, long, Word)}
+	 * @param search
+	 *            describes the search the cursor is used for
+	 * @return decoded cursor, or null if it is malformed or was made for another
+	 *         search
+	 */
+	public static Cursor decode(String cursor, String search) {
+		if(cursor == null || cursor.isEmpty()) {
+			return null;
+		}
+
+		try {
+			String text = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+			String[] fields = text.split(String.valueOf(SEPARATOR), 6);
+
+			if(fields.length != 6 || !fields[0].equals(Integer.toHexString(search.hashCode()))) {
+				return null;
+			}
+
+			double score = Double.longBitsToDouble(Long.parseUnsignedLong(fields[2], 16));
+			Word last = new Word(fields[5], Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), score);
+
+			return new Cursor(Long.parseLong(fields[1]), last);
+		}
+		catch(IllegalArgumentException e) {
+			// includes NumberFormatException
+			return null;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * A time limit for one search, which can also be cancelled early. The search
+ * checks {@link #expired()} as it goes and stops at the next check once the
+ * time is up, keeping the results it found so far. Afterwards,
+ * {@link #truncated()} tells whether that happened.
+ *
+ * @see WordIndex#search(Query, boolean, WordIndex.Ranking, int, Deadline)
+ */
+public class Deadline {
+
+	/** Time limit as a System.nanoTime() value; only used if limited */
+	private final long end;
+
+	/** False for a deadline that never passes */
+	private final boolean limited;
+
+	/** Set by cancel() */
+	private volatile boolean cancelled;
+
+	/** Set once a search saw this deadline expired */
+	private volatile boolean truncated;
+
+	/**
+	 * Initializes a deadline.
+	 *
+	 * @param end
+	 *            time limit as a System.nanoTime() value
+	 * @param limited
+	 *            false for a deadline that never passes
+	 */
+	private Deadline(long end, boolean limited) {
+		this.end = end;
+		this.limited = limited;
+		this.cancelled = false;
+		this.truncated = false;
+	}
+
+	/**
+	 * Returns a deadline some time from now.
+	 *
+	 * @param millis
+	 *            milliseconds from now; zero or negative for no time limit
+	 * @return new deadline
+	 */
+	public static Deadline after(long millis) {
+		return new Deadline(System.nanoTime() + millis * 1000000, millis > 0);
+	}
+
+	/**
+	 * Returns a deadline that only passes if it is cancelled.
+	 *
+	 * @return new deadline
+	 */
+	public static Deadline none() {
+		return new Deadline(0, false);
+	}
+
+	/**
+	 * Cancels the search, which stops at its next check as if time were up.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Tests whether the search should stop. Once this returns true, the search
+	 * counts as truncated.
+	 *
+	 * @return true if the time is up or the deadline was cancelled
+	 */
+	public boolean expired() {
+		if(!truncated && (cancelled || limited && System.nanoTime() - end >= 0)) {
+			truncated = true;
+		}
+
+		return truncated;
+	}
+
+	/**
+	 * Tests whether a search stopped early because of this deadline.
+	 *
+	 * @return true if the results are only the ones found before the deadline
+	 */
+	public boolean truncated() {
+		return truncated;
+	}
+}
@@ -0,0 +1,260 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the cleaned text of every indexed document on disk, compressed, so
+ * result pages can show a snippet of text around a match.
+ *
+ * The words of a document are split into blocks of {@link #BLOCK} words, and
+ * each block is compressed on its own and appended to one file. Only the
+ * file offset of each block is kept in memory. The word at position p (the
+ * same positions the index uses, starting at 1) is in block (p - 1) / BLOCK,
+ * so reading a few words around a position only reads and decompresses the
+ * one or two blocks they are in, never the whole document.
+ *
+ * Safe to add to and read from many threads at once. Blocks are compressed
+ * by the thread adding them; only appending to the file is synchronized.
+ */
+public class DocumentStore implements Closeable {
+
+	/** Words per compressed block */
+	public static final int BLOCK = 128;
+
+	/** File holding the compressed blocks */
+	private final FileChannel channel;
+
+	/** Block offsets of each document by path */
+	private final Map<String, Entry> entries;
+
+	/** End of the file, where the next document is appended */
+	private long end;
+
+	/**
+	 * Initializes an empty store, replacing the file if it exists.
+	 *
+	 * @param path
+	 *            file to keep the compressed text in
+	 * @throws IOException
+	 */
+	public DocumentStore(Path path) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.entries = new ConcurrentHashMap<>();
+		this.end = 0;
+	}
+
+	/**
+	 * Initializes an empty store in a temporary file that is deleted when the
+	 * program exits.
+	 *
+	 * @return new store
+	 * @throws IOException
+	 */
+	public static DocumentStore temporary() throws IOException {
+		Path path = Files.createTempFile("documents", ".store");
+		path.toFile().deleteOnExit();
+		return new DocumentStore(path);
+	}
+
+	/**
+	 * Stores the cleaned words of a document, replacing any earlier text for
+	 * the same path.
+	 *
+	 * @param path
+	 *            path or URL of the document, as used in the index
+	 * @param words
+	 *            cleaned words; the word at index i is at position i + 1
+	 * @throws IOException
+	 */
+	public void add(String path, String[] words) throws IOException {
+		int blocks = (words.length + BLOCK - 1) / BLOCK;
+		long[] offsets = new long[blocks + 1];
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		byte[] buffer = new byte[4096];
+
+		try {
+			for(int b = 0; b < blocks; b++) {
+				String text = String.join(" ", Arrays.copyOfRange(words, b * BLOCK,
+						Math.min(words.length, (b + 1) * BLOCK)));
+
+				deflater.reset();
+				deflater.setInput(text.getBytes(StandardCharsets.UTF_8));
+				deflater.finish();
+
+				while(!deflater.finished()) {
+					bytes.write(buffer, 0, deflater.deflate(buffer));
+				}
+
+				offsets[b + 1] = bytes.size();
+			}
+		}
+		finally {
+			deflater.end();
+		}
+
+		long start;
+
+		synchronized(this) {
+			start = end;
+			ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+
+			while(data.hasRemaining()) {
+				channel.write(data, start + data.position());
+			}
+
+			end += bytes.size();
+		}
+
+		for(int b = 0; b <= blocks; b++) {
+			offsets[b] += start;
+		}
+
+		entries.put(path, new Entry(offsets, words.length));
+	}
+
+	/**
+	 * Tests whether a document has stored text.
+	 *
+	 * @param path
+	 *            path or URL of the document
+	 * @return true if the document was stored
+	 */
+	public boolean contains(String path) {
+		return entries.containsKey(path);
+	}
+
+	/**
+	 * Returns the words of a document between two positions, reading only the
+	 * blocks they are in.
+	 *
+	 * @param path
+	 *            path or URL of the document
+	 * @param from
+	 *            first position, starting at 1
+	 * @param to
+	 *            last position
+	 * @return words at those positions, fewer near the ends of the document, or
+	 *         an empty array if the document was not stored
+	 * @throws IOException
+	 */
+	public String[] words(String path, int from, int to) throws IOException {
+		Entry entry = entries.get(path);
+
+		if(entry == null) {
+			return new String[0];
+		}
+
+		from = Math.max(from, 1);
+		to = Math.min(to, entry.words);
+
+		if(from > to) {
+			return new String[0];
+		}
+
+		String[] window = new String[to - from + 1];
+		int filled = 0;
+
+		for(int b = (from - 1) / BLOCK; b <= (to - 1) / BLOCK; b++) {
+			String[] block = readBlock(entry, b).split(" ", -1);
+			int first = b * BLOCK + 1;
+
+			for(int i = Math.max(from, first); i <= Math.min(to, first + block.length - 1); i++) {
+				window[filled++] = block[i - first];
+			}
+		}
+
+		return filled == window.length ? window : Arrays.copyOf(window, filled);
+	}
+
+	/**
+	 * Reads and decompresses one block of a document.
+	 *
+	 * @param entry
+	 *            block offsets of the document
+	 * @param b
+	 *            block number
+	 * @return the block's words separated by spaces
+	 * @throws IOException
+	 */
+	private String readBlock(Entry entry, int b) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate((int) (entry.offsets[b + 1] - entry.offsets[b]));
+
+		while(data.hasRemaining()) {
+			if(channel.read(data, entry.offsets[b] + data.position()) < 0) {
+				throw new IOException("document store is truncated");
+			}
+		}
+
+		Inflater inflater = new Inflater();
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+
+		try {
+			inflater.setInput(data.array());
+
+			while(!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("document store block is corrupt");
+				}
+
+				text.write(buffer, 0, n);
+			}
+		}
+		catch(DataFormatException e) {
+			throw new IOException(e);
+		}
+		finally {
+			inflater.end();
+		}
+
+		return new String(text.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the number of bytes of compressed text stored so far.
+	 *
+	 * @return size of the file
+	 */
+	public synchronized long size() {
+		return end;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Where the blocks of one document are in the file.
+	 */
+	private static class Entry {
+
+		/** Start of each block, then the end of the last block */
+		private final long[] offsets;
+
+		/** Number of words */
+		private final int words;
+
+		private Entry(long[] offsets, int words) {
+			this.offsets = offsets;
+			this.words = words;
+		}
+	}
+}
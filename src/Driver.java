@@ -1,3 +1,5 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -27,13 +29,35 @@ public class Driver {
 		}
 		//System.out.println("Number of threads: " + threads);
 		
-		WorkQueue queue = new WorkQueue(threads);
+		/** Pool only grows past -threads under load, up to -maxthreads, if that is given */
+		int maxThreads = Math.max(threads, argMap.getInt("-maxthreads", threads));
+		
+		WorkQueue queue = new WorkQueue(threads, maxThreads);
+		
+		/** -delay millis between fetches from one host, and -perhost fetches to one host at once, for every crawl; -delay 0 turns the delay off */
+		int delay = argMap.hasValue("-delay") ? argMap.getInteger("-delay", (int) CrawlFrontier.DEFAULT_DELAY_MILLIS)
+				: (int) CrawlFrontier.DEFAULT_DELAY_MILLIS;
+		int perHost = argMap.getInt("-perhost", CrawlFrontier.DEFAULT_PER_HOST);
+		
+		/** -store file keeps the compressed text of each document for snippets; the server always keeps one */
+		DocumentStore store = null;
+		
+		if(argMap.hasFlag("-store") || argMap.hasFlag("-port")) {
+			try {
+				if(argMap.hasValue("-store"))
+					store = new DocumentStore(Paths.get(argMap.getString("-store")).toAbsolutePath().normalize());
+				else
+					store = DocumentStore.temporary();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		
 		if(argMap.hasFlag("-path") && argMap.hasValue("-path")) { 
 			Path p = Paths.get(argMap.getString("-path"));	
 			File file = new File(p.normalize().toString());
 			
-			IndexHelper idxHelper = new IndexHelper(wordIndex, queue);
+			IndexHelper idxHelper = new IndexHelper(wordIndex, queue, store);
 			/** Start building the index with file/dir */
 			idxHelper.dirTraverse(file);
 			
@@ -45,8 +69,10 @@ public class Driver {
 			try {
 				URL url = new URL(argMap.getString("-url"));
 				int limit = argMap.getInt("-limit", 50);
-				WebCrawler webCrawler = new WebCrawler(wordIndex, queue, url, limit);
+				WebCrawler webCrawler = new WebCrawler(wordIndex, queue, url, limit, store, delay, perHost);
 				webCrawler.crawl();	
+				/** Pages are fetched in the background, so wait for the crawl itself */
+				webCrawler.finish();
 			} catch (MalformedURLException e) {
 				e.printStackTrace();
 			}
@@ -74,11 +100,32 @@ public class Driver {
 		
 		//QueryHelper queryHelper = new QueryHelper(queue);
 		QueryHelper queryHelper;
+		QueryCache queryCache = new QueryCache(QueryCache.DEFAULT_CAPACITY);
+		SortedResultsWriter resultsWriter = null;
+		
+		//As long as writing out results happens after finish(), it's safe.
+		String resultsDefaultPathStr = Paths.get(".", "results.json").toString();
+		Path resultsPath = Paths.get(argMap.getString("-results", resultsDefaultPathStr));
+		resultsPath = resultsPath.toAbsolutePath().normalize();
 		
 		if(argMap.hasFlag("-query") && argMap.hasValue("-query")) {
 			
 			Path queryPath = Paths.get(argMap.getString("-query"));
-			queryHelper = new QueryHelper(queue, argMap.hasFlag("-exact"));
+			/** Keep only the best -top results per query, or all results if not given */
+			int top = argMap.getInt("-top", 0);
+			/** -rank bm25 orders results by BM25 score instead of frequency; bm25f also boosts titles and headings */
+			WordIndex.Ranking ranking = WordIndex.Ranking.of(argMap.getString("-rank", "frequency"));
+			/** -fuzzy n matches plain words within n edits */
+			int fuzzy = argMap.getInt("-fuzzy", 0);
+			queryHelper = new QueryHelper(queue, argMap.hasFlag("-exact"), queryCache, top, ranking, fuzzy);
+			/** -timeout ms cuts each query short after that long, keeping the best results so far */
+			queryHelper.setTimeout(argMap.getInt("-timeout", 0));
+			
+			/** Results are written out as searches finish rather than all kept until the end */
+			if(argMap.hasFlag("-results")) {
+				resultsWriter = new SortedResultsWriter(resultsPath);
+				queryHelper.streamTo(resultsWriter);
+			}
 			
 			try {
 				queryHelper.parseAndSearchFile(queryPath, wordIndex);
@@ -94,13 +141,12 @@ public class Driver {
 		queue.finish();
 		if(argMap.hasFlag("-results")) {
 			
-			//As long as writing out results happens after finish(), it's safe.
-			String resultsDefaultPathStr = Paths.get(".", "results.json").toString();
-			Path resultsPath = Paths.get(argMap.getString("-results", resultsDefaultPathStr));
-			resultsPath = resultsPath.toAbsolutePath().normalize();
-			
 			try {
-				JSONWriter.asQueriesResults(queryHelper, resultsPath);
+				if(resultsWriter != null)
+					resultsWriter.finish();
+				else
+					JSONWriter.asQueriesResults(queryHelper, resultsPath);
+				
 				System.out.println("query results can be found at: " + resultsPath.toString());
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -111,6 +157,10 @@ public class Driver {
 			Integer port = argMap.getInt("-port", 8080);
 			try {
 				//Change main arguments to int?
+				/** Default time limit for every search on the server */
+				SearchEngineServer.setTimeout(argMap.getInt("-timeout", 0));
+				SearchEngineServer.setDocumentStore(store);
+				SearchEngineServer.setCrawlLimits(delay, perHost);
 				SearchEngineServer.main(new String[] {port.toString()});
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -118,6 +168,25 @@ public class Driver {
 		}
 		
 		queue.shutdown();
+		
+		if(argMap.hasFlag("-metrics")) {
+			/** Dump the queue metrics to the given file, or to the console if no file was given */
+			String metrics = queue.metrics().toString() + "query cache: " + queryCache + System.lineSeparator();
+			
+			if(argMap.hasValue("-metrics")) {
+				Path metricsPath = Paths.get(argMap.getString("-metrics")).toAbsolutePath().normalize();
+				
+				try {
+					Files.write(metricsPath, metrics.getBytes(StandardCharsets.UTF_8));
+					System.out.println("queue metrics can be found at: " + metricsPath.toString());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			else {
+				System.out.print(metrics);
+			}
+		}
 	} // main
 
 }
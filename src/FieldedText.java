@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The cleaned words of an HTML document along with the part of the page each
+ * word is in: the body, a heading or the text of a link. Also keeps the words
+ * of the title, which is part of the head and so is not among the words.
+ *
+ * The words are exactly the ones {@link HTMLCleaner#stripHTML(String)} gives,
+ * in the same order, so indexing them with their fields gives the same
+ * positions as before.
+ *
+ * Fields are bits, so one byte per posting can hold every field a word was
+ * found in within a document.
+ *
+ * @see PostingList#fields(int)
+ */
+public class FieldedText {
+
+	/** Plain text of the body */
+	public static final byte BODY = 1;
+
+	/** Text of the title */
+	public static final byte TITLE = 2;
+
+	/** Text of an h1 to h6 heading */
+	public static final byte HEADING = 4;
+
+	/** Text of a link */
+	public static final byte ANCHOR = 8;
+
+	/** Any tag, found the same way as {@link HTMLCleaner#stripTags(String)} does */
+	private static final Pattern TAG = Pattern.compile("<\\/*[\\s\\S]*?>");
+
+	/** Start or end tag of a heading or link */
+	private static final Pattern FIELD_TAG = Pattern.compile("<(/?)(h[1-6]|a)(?:[\\s/][\\s\\S]*)?>",
+			Pattern.CASE_INSENSITIVE);
+
+	/** Contents of the title element */
+	private static final Pattern TITLE_ELEMENT = Pattern.compile("<title[^>]*>([\\s\\S]*?)</title",
+			Pattern.CASE_INSENSITIVE);
+
+	/** Cleaned words; the word at index i is at position i + 1 */
+	public final String[] words;
+
+	/** Field bits of each word */
+	public final byte[] fields;
+
+	/** Cleaned words of the title, in the order they first appear */
+	public final Set<String> title;
+
+	/**
+	 * Initializes fielded text. Used by {@link HTMLStreamParser}, which finds
+	 * the words and fields as a page arrives instead of parsing it whole.
+	 *
+	 * @param words
+	 *            cleaned words
+	 * @param fields
+	 *            field bits of each word
+	 * @param title
+	 *            cleaned words of the title
+	 */
+	FieldedText(String[] words, byte[] fields, Set<String> title) {
+		this.words = words;
+		this.fields = fields;
+		this.title = title;
+	}
+
+	/**
+	 * Cleans an HTML document and finds the field of each word. The text
+	 * between heading and link tags is cleaned piece by piece, and each piece's
+	 * words get the fields of the tags it is inside. Tags are found the same
+	 * way stripTags finds them, so the pieces split exactly where it would put
+	 * a space.
+	 *
+	 * @param html
+	 *            HTML document
+	 * @return cleaned words with their fields
+	 */
+	public static FieldedText parse(String html) {
+		Set<String> title = new LinkedHashSet<>();
+		Matcher element = TITLE_ELEMENT.matcher(HTMLCleaner.stripComments(html));
+
+		if(element.find()) {
+			String text = HTMLCleaner.stripText(element.group(1));
+
+			if(!text.isEmpty()) {
+				title.addAll(Arrays.asList(text.split(" ")));
+			}
+		}
+
+		html = HTMLCleaner.stripHidden(html);
+
+		List<String> words = new ArrayList<>();
+		byte[] fields = new byte[16];
+
+		int headings = 0;
+		int anchors = 0;
+		int start = 0;
+		Matcher tag = TAG.matcher(html);
+
+		while(true) {
+			boolean found = tag.find();
+			Matcher named = null;
+
+			while(found && !(named = FIELD_TAG.matcher(tag.group())).matches()) {
+				found = tag.find();
+			}
+
+			String text = HTMLCleaner.stripText(html.substring(start, found ? tag.start() : html.length()));
+
+			if(!text.isEmpty()) {
+				byte field = headings > 0 ? HEADING : anchors > 0 ? ANCHOR : BODY;
+
+				if(headings > 0 && anchors > 0) {
+					field = (byte) (HEADING | ANCHOR);
+				}
+
+				for(String word : text.split(" ")) {
+					if(words.size() == fields.length) {
+						fields = Arrays.copyOf(fields, fields.length * 2);
+					}
+
+					fields[words.size()] = field;
+					words.add(word);
+				}
+			}
+
+			if(!found) {
+				break;
+			}
+
+			/** Unbalanced tags in messy HTML should not leave a field open forever */
+			int change = named.group(1).isEmpty() ? 1 : -1;
+
+			if(named.group(2).equalsIgnoreCase("a")) {
+				anchors = Math.max(0, anchors + change);
+			}
+			else {
+				headings = Math.max(0, headings + change);
+			}
+
+			start = tag.end();
+		}
+
+		return new FieldedText(words.toArray(new String[words.size()]), Arrays.copyOf(fields, words.size()), title);
+	}
+}
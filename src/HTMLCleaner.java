@@ -172,12 +172,40 @@ public class HTMLCleaner {
 	 * @return text without any HTML, CSS, or JavaScript
 	 */
 	public static String stripHTML(String html) {
+		return stripText(stripHidden(html));
+	}
+	
+	/**
+	 * Removes comments and the head, style and script elements, which have no
+	 * words to index.
+	 *
+	 * @param html
+	 *            HTML to clean
+	 * @return HTML without comments, head, style or script
+	 */
+	public static String stripHidden(String html) {
 		
 		html = stripComments(html);
 		
 		html = stripElement(html, "head");	
 		html = stripElement(html, "style");
 		html = stripElement(html, "script");
+		
+		return html;
+	}
+	
+	/**
+	 * Removes the tags, entities, numbers and punctuation from HTML, leaving
+	 * lower case words separated by single spaces. Since every tag becomes a
+	 * space, cleaning the pieces of some HTML between two tags gives the same
+	 * words as cleaning all of it.
+	 *
+	 * @param html
+	 *            HTML without comments or hidden elements
+	 * @return cleaned words separated by single spaces
+	 * @see #stripHidden(String)
+	 */
+	public static String stripText(String html) {
 
 		html = stripTags(html);
 		
@@ -198,4 +226,4 @@ public class HTMLCleaner {
 	}
 
 	
-}
\ No newline at end of file
+}
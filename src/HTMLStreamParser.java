@@ -0,0 +1,831 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parses an HTML page in one pass as its bytes arrive, finding its links and
+ * its cleaned words without ever holding the whole page.
+ *
+ * The page is written to the parser a piece at a time, for example by an
+ * {@link HTTPResponse} as the body is downloaded and decompressed. Every
+ * piece is decoded as UTF-8 and run through a few small state machines, each
+ * doing in a single pass what one of the regular expressions does over the
+ * whole page:
+ *
+ * <ul>
+ * <li>anchor tags are found the way {@link LinkParser#listLinks(URL, String)}
+ * finds them, and their links are handed to the listener at the end of the
+ * piece they were completed in, long before the page is all here</li>
+ * <li>comments, and the head, style and script elements, are skipped the way
+ * {@link HTMLCleaner#stripHidden(String)} removes them</li>
+ * <li>tags, entities, numbers and punctuation split the rest into words the
+ * way {@link HTMLCleaner#stripText(String)} does, and each word gets its
+ * field the way {@link FieldedText#parse(String)} gives it</li>
+ * <li>the title is found the way FieldedText finds it</li>
+ * </ul>
+ *
+ * So the words, fields and links are the ones the regular expressions give.
+ * The one difference is at the end of a page: a comment, tag or hidden
+ * element that is never closed hides the rest of the page, the way a browser
+ * shows it, where the regular expressions would keep it as text. Knowing it
+ * will not be closed would mean holding on to the rest of the page.
+ *
+ * Memory for a page is a few fixed buffers plus the words found. A tag is
+ * only kept if it is an anchor, up to {@link #MAX_TAG} characters, and a
+ * possible entity up to {@link #MAX_ENTITY}.
+ *
+ * @see WebCrawler
+ */
+public class HTMLStreamParser extends OutputStream {
+
+	/** Longest anchor tag kept to look for its link in */
+	public static final int MAX_TAG = 1 << 13;
+
+	/** Longest run of characters after an ampersand looked at as an entity */
+	public static final int MAX_ENTITY = 1 << 10;
+
+	/** Longest title kept */
+	public static final int MAX_TITLE = 1 << 12;
+
+	/** Size of the buffers bytes are decoded through */
+	private static final int BUFFER = 1 << 13;
+
+	/** Start of a comment */
+	private static final String COMMENT = "<!--";
+
+	/** Start of the title element, in lower case */
+	private static final String TITLE = "<title";
+
+	/** End of the title element, in lower case */
+	private static final String TITLE_END = "</title";
+
+	/** Elements whose contents are not text, in lower case, in the order they are taken out */
+	private static final String[] HIDDEN = { "head", "style", "script" };
+
+	/** Most characters needed to tell what tag a "<" starts */
+	private static final int NAME = 7;
+
+	/**
+	 * Told about the links of a page as they are found.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on the thread writing the page, once per piece of the page
+		 * that completed one or more anchor tags.
+		 *
+		 * @param links
+		 *            cleaned absolute links, in the order they were found
+		 */
+		public void found(ArrayList<URL> links);
+	}
+
+	/** Where the parser is in the text, once comments and hidden elements are out */
+	private static enum State {
+		/** Text between tags */
+		TEXT,
+		/** The first few characters of a tag */
+		TAG_NAME,
+		/** The rest of a tag */
+		TAG
+	}
+
+	/** Url relative links are resolved against */
+	private final URL base;
+
+	/** Told about links, or null */
+	private final Listener listener;
+
+	/** Decodes the bytes as UTF-8 */
+	private final CharsetDecoder decoder;
+
+	/** Bytes waiting to be decoded */
+	private final ByteBuffer bytes;
+
+	/** Characters decoded and not parsed yet */
+	private final CharBuffer chars;
+
+	/** Links found in the piece being written */
+	private final ArrayList<URL> links;
+
+	/** 0 outside an anchor tag, 1 right after a "<", 2 inside an anchor tag */
+	private int anchorState;
+
+	/** Anchor tag read so far */
+	private final StringBuilder anchor;
+
+	/** Characters of {@link #COMMENT} matched and held back */
+	private int commentStart;
+
+	/** True inside a comment */
+	private boolean comment;
+
+	/** Dashes in a row inside a comment */
+	private int dashes;
+
+	/** Where the parser is between tags */
+	private State state;
+
+	/** First characters after a tag's "<", in lower case */
+	private final char[] name;
+
+	/** Characters after the tag's "<" read so far */
+	private int nameLength;
+
+	/** Takes out the first hidden element, which hands on to the next one */
+	private final Hidden hidden;
+
+	/** Open headings */
+	private int headings;
+
+	/** Open anchors */
+	private int anchors;
+
+	/** True after an ampersand that might start an entity */
+	private boolean inEntity;
+
+	/** Characters after the ampersand of a possible entity */
+	private final StringBuilder entity;
+
+	/** Letters of the word being read */
+	private final StringBuilder word;
+
+	/** Cleaned words */
+	private final List<String> words;
+
+	/** Field bits of each word */
+	private byte[] fields;
+
+	/** 0 looking for the title, 1 in its start tag, 2 in the title, 3 done */
+	private int titleState;
+
+	/** Characters of the title's start or end tag matched */
+	private int titleMatched;
+
+	/** Text of the title element */
+	private final StringBuilder title;
+
+	/** Set once the whole page was written */
+	private boolean closed;
+
+	/**
+	 * Initializes a parser for one page.
+	 *
+	 * @param base
+	 *            url relative links are resolved against
+	 * @param listener
+	 *            told about links as they are found, or null
+	 */
+	public HTMLStreamParser(URL base, Listener listener) {
+		this.base = base;
+		this.listener = listener;
+		this.decoder = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.bytes = ByteBuffer.allocate(BUFFER);
+		this.chars = CharBuffer.allocate(BUFFER);
+		this.links = new ArrayList<>();
+		this.anchorState = 0;
+		this.anchor = new StringBuilder();
+		this.commentStart = 0;
+		this.comment = false;
+		this.dashes = 0;
+		this.state = State.TEXT;
+		this.name = new char[NAME];
+		this.nameLength = 0;
+		this.hidden = new Hidden(0);
+		this.headings = 0;
+		this.anchors = 0;
+		this.inEntity = false;
+		this.entity = new StringBuilder();
+		this.word = new StringBuilder();
+		this.words = new ArrayList<>();
+		this.fields = new byte[16];
+		this.titleState = 0;
+		this.titleMatched = 0;
+		this.title = new StringBuilder();
+		this.closed = false;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	/**
+	 * Parses the next piece of the page, then tells the listener about the
+	 * links completed in it.
+	 */
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if(closed) {
+			throw new IOException("page is already parsed");
+		}
+
+		int end = offset + length;
+
+		while(offset < end) {
+			int n = Math.min(bytes.remaining(), end - offset);
+			bytes.put(data, offset, n);
+			offset += n;
+
+			bytes.flip();
+			decoder.decode(bytes, chars, false);
+			bytes.compact();
+			parse();
+		}
+
+		tell();
+	}
+
+	/**
+	 * Parses the end of the page. Any word, tag or element still open is
+	 * ended.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+
+		bytes.flip();
+		decoder.decode(bytes, chars, true);
+		decoder.flush(chars);
+		parse();
+		closed = true;
+
+		/** A "<!-" that never became a comment is text */
+		for(int i = 0; i < commentStart; i++) {
+			stripped(COMMENT.charAt(i));
+		}
+
+		commentStart = 0;
+
+		if(hidden.end() && state == State.TEXT) {
+			endText();
+		}
+
+		tell();
+	}
+
+	/**
+	 * Returns the cleaned words of the page with their fields and the words of
+	 * its title. Only complete once the parser is closed.
+	 *
+	 * @return fielded text of the page
+	 */
+	public FieldedText text() {
+		Set<String> titleWords = new LinkedHashSet<>();
+
+		if(titleState == 3) {
+			String text = HTMLCleaner.stripText(title.toString());
+
+			if(!text.isEmpty()) {
+				titleWords.addAll(Arrays.asList(text.split(" ")));
+			}
+		}
+
+		return new FieldedText(words.toArray(new String[words.size()]), Arrays.copyOf(fields, words.size()),
+				titleWords);
+	}
+
+	/**
+	 * Parses every decoded character.
+	 */
+	private void parse() {
+		chars.flip();
+
+		while(chars.hasRemaining()) {
+			char c = chars.get();
+			findAnchor(c);
+			stripComment(c);
+		}
+
+		chars.clear();
+	}
+
+	/**
+	 * Hands the links found so far to the listener.
+	 */
+	private void tell() {
+		if(!links.isEmpty()) {
+			ArrayList<URL> found = new ArrayList<>(links);
+			links.clear();
+
+			if(listener != null) {
+				listener.found(found);
+			}
+		}
+	}
+
+	/**
+	 * Looks for anchor tags in the page as it is, comments and all, the same
+	 * way listLinks does: a "<" and an "a" in either case start one, and the
+	 * first ">" ends it.
+	 *
+	 * @param c
+	 *            next character of the page
+	 */
+	private void findAnchor(char c) {
+		switch(anchorState) {
+		case 0:
+			if(c == '<') {
+				anchorState = 1;
+			}
+			break;
+
+		case 1:
+			if(c == 'a' || c == 'A') {
+				anchor.setLength(0);
+				anchor.append('<').append(c);
+				anchorState = 2;
+			}
+			else if(c != '<') {
+				anchorState = 0;
+			}
+			break;
+
+		default:
+			if(anchor.length() < MAX_TAG) {
+				anchor.append(c);
+			}
+
+			if(c == '>') {
+				URL link = LinkParser.linkIn(base, anchor.toString());
+
+				if(link != null) {
+					links.add(link);
+				}
+
+				anchor.setLength(0);
+				anchorState = 0;
+			}
+		}
+	}
+
+	/**
+	 * Takes out comments, the same way stripComments does: each one becomes a
+	 * single space. A "<" that might start a comment is held back until it is
+	 * clear whether it does.
+	 *
+	 * @param c
+	 *            next character of the page
+	 */
+	private void stripComment(char c) {
+		if(comment) {
+			if(c == '>' && dashes >= 2) {
+				comment = false;
+				stripped(' ');
+			}
+			else {
+				dashes = c == '-' ? dashes + 1 : 0;
+			}
+			return;
+		}
+
+		if(c == COMMENT.charAt(commentStart)) {
+			commentStart++;
+
+			if(commentStart == COMMENT.length()) {
+				commentStart = 0;
+				comment = true;
+				dashes = 0;
+			}
+			return;
+		}
+
+		/** Only the first character of "<!--" can start it again */
+		for(int i = 0; i < commentStart; i++) {
+			stripped(COMMENT.charAt(i));
+		}
+
+		if(commentStart > 0) {
+			commentStart = 0;
+			stripComment(c);
+			return;
+		}
+
+		stripped(c);
+	}
+
+	/**
+	 * Parses the next character of the page without comments.
+	 *
+	 * @param c
+	 *            next character without comments
+	 */
+	private void stripped(char c) {
+		findTitle(c);
+		hidden.put(c);
+	}
+
+	/**
+	 * Parses the next character of the page without comments or hidden
+	 * elements, finding tags the same way stripTags does: from a "<" to the
+	 * first ">".
+	 *
+	 * @param c
+	 *            next character without comments or hidden elements
+	 */
+	private void tagged(char c) {
+		switch(state) {
+		case TEXT:
+			if(c == '<') {
+				endText();
+				nameLength = 0;
+				state = State.TAG_NAME;
+			}
+			else {
+				text(c);
+			}
+			break;
+
+		case TAG_NAME:
+			if(c == '>') {
+				endTag();
+				break;
+			}
+
+			name[nameLength++] = lower(c);
+
+			if(nameLength == NAME) {
+				state = State.TAG;
+			}
+			break;
+
+		case TAG:
+			if(c == '>') {
+				endTag();
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Ends a tag. A heading or anchor tag opens or closes its field, the same
+	 * way FieldedText matches them.
+	 */
+	private void endTag() {
+		state = State.TEXT;
+
+		int i = nameLength > 0 && name[0] == '/' ? 1 : 0;
+		boolean start = i == 0;
+		boolean isAnchor = false;
+		int end;
+
+		if(i < nameLength && name[i] == 'a') {
+			isAnchor = true;
+			end = i + 1;
+		}
+		else if(i + 1 < nameLength && name[i] == 'h' && name[i + 1] >= '1' && name[i + 1] <= '6') {
+			end = i + 2;
+		}
+		else {
+			return;
+		}
+
+		if(end < nameLength && !isSpace(name[end]) && name[end] != '/') {
+			return;
+		}
+
+		/** Unbalanced tags in messy HTML should not leave a field open forever */
+		int change = start ? 1 : -1;
+
+		if(isAnchor) {
+			anchors = Math.max(0, anchors + change);
+		}
+		else {
+			headings = Math.max(0, headings + change);
+		}
+	}
+
+	/**
+	 * Reads a character of text, taking out entities the same way
+	 * stripEntities does: an ampersand, then anything but whitespace up to the
+	 * first semicolon.
+	 *
+	 * @param c
+	 *            character between tags
+	 */
+	private void text(char c) {
+		if(inEntity) {
+			if(c == ';') {
+				inEntity = false;
+				entity.setLength(0);
+			}
+			else if(isSpace(c) || entity.length() >= MAX_ENTITY) {
+				notEntity();
+				text(c);
+			}
+			else {
+				entity.append(c);
+			}
+		}
+		else if(c == '&') {
+			endWord();
+			inEntity = true;
+		}
+		else {
+			letter(c);
+		}
+	}
+
+	/**
+	 * Reads back the characters after an ampersand that turned out not to
+	 * start an entity. None of them can start one either, since they run into
+	 * the same whitespace before any semicolon.
+	 */
+	private void notEntity() {
+		inEntity = false;
+
+		for(int i = 0; i < entity.length(); i++) {
+			letter(entity.charAt(i));
+		}
+
+		entity.setLength(0);
+	}
+
+	/**
+	 * Reads a character that is not part of an entity. Letters are kept, and
+	 * anything stripNumbers or stripPunctuations would make a space ends the
+	 * word.
+	 *
+	 * @param c
+	 *            character of text
+	 */
+	private void letter(char c) {
+		if(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= 'À' && c <= 'ÿ') {
+			word.append(c);
+		}
+		else {
+			endWord();
+		}
+	}
+
+	/**
+	 * Ends the text before a tag, which stripTags makes a space.
+	 */
+	private void endText() {
+		if(inEntity) {
+			notEntity();
+		}
+
+		endWord();
+	}
+
+	/**
+	 * Adds the word read so far, in lower case, with the fields open now.
+	 */
+	private void endWord() {
+		if(word.length() == 0) {
+			return;
+		}
+
+		byte field = headings > 0 ? FieldedText.HEADING : anchors > 0 ? FieldedText.ANCHOR : FieldedText.BODY;
+
+		if(headings > 0 && anchors > 0) {
+			field = (byte) (FieldedText.HEADING | FieldedText.ANCHOR);
+		}
+
+		if(words.size() == fields.length) {
+			fields = Arrays.copyOf(fields, fields.length * 2);
+		}
+
+		fields[words.size()] = field;
+		words.add(word.toString().toLowerCase());
+		word.setLength(0);
+	}
+
+	/**
+	 * Looks for the text of the first title element, the same way FieldedText
+	 * does, in the page without comments. Characters that might start the end
+	 * tag are held back until it is clear whether they do.
+	 *
+	 * @param c
+	 *            next character without comments
+	 */
+	private void findTitle(char c) {
+		switch(titleState) {
+		case 0:
+			if(lower(c) == TITLE.charAt(titleMatched)) {
+				titleMatched++;
+
+				if(titleMatched == TITLE.length()) {
+					titleMatched = 0;
+					titleState = 1;
+				}
+			}
+			else {
+				titleMatched = c == '<' ? 1 : 0;
+			}
+			break;
+
+		case 1:
+			if(c == '>') {
+				titleState = 2;
+			}
+			break;
+
+		case 2:
+			if(lower(c) == TITLE_END.charAt(titleMatched)) {
+				titleMatched++;
+
+				if(titleMatched == TITLE_END.length()) {
+					titleState = 3;
+				}
+				break;
+			}
+
+			for(int i = 0; i < titleMatched; i++) {
+				addTitle(TITLE_END.charAt(i));
+			}
+
+			if(c == '<') {
+				titleMatched = 1;
+			}
+			else {
+				titleMatched = 0;
+				addTitle(c);
+			}
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Adds a character to the title, up to {@link #MAX_TITLE}.
+	 *
+	 * @param c
+	 *            character of the title
+	 */
+	private void addTitle(char c) {
+		if(title.length() < MAX_TITLE) {
+			title.append(c);
+		}
+	}
+
+	/**
+	 * Tests for the characters a regular expression's \s matches.
+	 *
+	 * @param c
+	 *            character
+	 * @return true for whitespace
+	 */
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Lower cases an ASCII letter, the way case insensitive regular expressions
+	 * compare them.
+	 *
+	 * @param c
+	 *            character
+	 * @return c in lower case if it is an ASCII letter, else c
+	 */
+	private static char lower(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	/**
+	 * Takes out one kind of hidden element, the same way stripElement does:
+	 * from a "<" and the name in any case, to the first end tag with the name,
+	 * and each becomes a single space. stripHidden takes out the head, style
+	 * and script elements one after another, each from what the one before
+	 * left, so the same is done here with one of these for each name, each
+	 * handing what it keeps to the next. Since they come before tags are
+	 * looked for, one inside a tag, or after a "<" in the text, is taken out
+	 * too.
+	 */
+	private class Hidden {
+
+		/** Start of the element, in lower case */
+		private final String start;
+
+		/** Start of the element's end tag, in lower case */
+		private final String end;
+
+		/** Takes out the next kind of element, or null if this is the last */
+		private final Hidden next;
+
+		/** Characters that might start the element, held back */
+		private final char[] held;
+
+		/** Characters held back */
+		private int heldLength;
+
+		/** True inside the element */
+		private boolean inside;
+
+		/** Characters of the end tag matched; once all are, the ">" is looked for */
+		private int matched;
+
+		/**
+		 * Initializes the filters for the hidden elements from one on.
+		 *
+		 * @param index
+		 *            index of the element in {@link HTMLStreamParser#HIDDEN}
+		 */
+		private Hidden(int index) {
+			this.start = "<" + HIDDEN[index];
+			this.end = "</" + HIDDEN[index];
+			this.next = index + 1 < HIDDEN.length ? new Hidden(index + 1) : null;
+			this.held = new char[start.length()];
+			this.heldLength = 0;
+			this.inside = false;
+			this.matched = 0;
+		}
+
+		/**
+		 * Takes the next character. Only a "<" can start the element or its
+		 * end tag, so after a mismatch only the character itself needs to be
+		 * looked at again.
+		 *
+		 * @param c
+		 *            next character
+		 */
+		private void put(char c) {
+			if(inside) {
+				if(matched == end.length()) {
+					if(c == '>') {
+						inside = false;
+						keep(' ');
+					}
+				}
+				else if(lower(c) == end.charAt(matched)) {
+					matched++;
+				}
+				else {
+					matched = c == '<' ? 1 : 0;
+				}
+				return;
+			}
+
+			if(lower(c) == start.charAt(heldLength)) {
+				held[heldLength++] = c;
+
+				if(heldLength == start.length()) {
+					heldLength = 0;
+					inside = true;
+					matched = 0;
+				}
+				return;
+			}
+
+			if(heldLength == 0) {
+				keep(c);
+				return;
+			}
+
+			for(int i = 0; i < heldLength; i++) {
+				keep(held[i]);
+			}
+
+			heldLength = 0;
+			put(c);
+		}
+
+		/**
+		 * Hands on anything held back at the end of the page.
+		 *
+		 * @return true if the page did not end inside a hidden element
+		 */
+		private boolean end() {
+			for(int i = 0; i < heldLength; i++) {
+				keep(held[i]);
+			}
+
+			heldLength = 0;
+			boolean closed = next == null || next.end();
+			return closed && !inside;
+		}
+
+		/**
+		 * Hands a character that is not hidden on to the next filter, or to the
+		 * tag parser after the last one.
+		 *
+		 * @param c
+		 *            character kept
+		 */
+		private void keep(char c) {
+			if(next != null) {
+				next.put(c);
+			}
+			else {
+				tagged(c);
+			}
+		}
+	}
+}
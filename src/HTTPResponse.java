@@ -0,0 +1,463 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads one HTTP/1.1 response as its bytes arrive, in pieces of any size.
+ *
+ * The end of the body is found the way HTTP/1.1 frames it: by the
+ * Content-Length header, by the last chunk of a chunked body, or, if neither
+ * is given, by the server closing the connection. Knowing where the response
+ * ends without waiting for the connection to close is what lets a connection
+ * be kept open and used for the next request.
+ *
+ * A body sent with a gzip or deflate Content-Encoding is decompressed by a
+ * {@link ContentDecoder} as it arrives, after any chunked framing is taken
+ * off, so {@link #body()} is always the decoded page.
+ *
+ * Instead of keeping the body, a {@link BodyHandler} can be given a stream to
+ * write it to as it arrives, chosen once the headers are read. The stream is
+ * closed when the body is complete, so a page can be parsed while it is still
+ * downloading.
+ *
+ * @see AsyncFetcher
+ */
+public class HTTPResponse {
+
+	/**
+	 * Decides where the body of a response goes.
+	 */
+	public interface BodyHandler {
+
+		/**
+		 * Called once the headers of the response are read, before any of the
+		 * body.
+		 *
+		 * @param response
+		 *            response whose headers were read
+		 * @return stream to write the decoded body to, closed once the body is
+		 *         complete, or null to skip the body
+		 * @throws IOException
+		 */
+		public OutputStream open(HTTPResponse response) throws IOException;
+	}
+
+	/** Stream for a body that is skipped */
+	private static final OutputStream SKIP = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) {
+		}
+	};
+
+	/** Where the reader is within the response */
+	private static enum State {
+		/** Status line and header lines */
+		HEADERS,
+		/** Body of a known length */
+		LENGTH,
+		/** Line with the size of the next chunk */
+		CHUNK_SIZE,
+		/** Data of a chunk */
+		CHUNK_DATA,
+		/** Line break after the data of a chunk */
+		CHUNK_END,
+		/** Trailer lines after the last chunk */
+		TRAILERS,
+		/** Body that ends when the connection closes */
+		UNTIL_CLOSE,
+		/** Whole response read */
+		DONE
+	}
+
+	/** Where the reader is within the response */
+	private State state;
+
+	/** Bytes of the line being read */
+	private final ByteArrayOutputStream line;
+
+	/** Status line and header lines, without line breaks */
+	private final List<String> headerLines;
+
+	/** Header fields by name, ignoring case */
+	private final Map<String, String> headers;
+
+	/** Status code, or zero before the status line is read */
+	private int status;
+
+	/** True if the server asked to close the connection after this response */
+	private boolean close;
+
+	/** Body bytes, with any chunked framing and compression removed */
+	private final ByteArrayOutputStream body;
+
+	/** Decides where the body goes, or null to keep it in {@link #body} */
+	private final BodyHandler handler;
+
+	/** Where the body is written, once the headers are read */
+	private OutputStream sink;
+
+	/** Decompresses the body, or null if it is not compressed */
+	private ContentDecoder decoder;
+
+	/** Bytes left in the body or the current chunk */
+	private long remaining;
+
+	/** True if bytes came after the end of the response */
+	private boolean extra;
+
+	/**
+	 * Initializes a reader for a response that has not started arriving, which
+	 * keeps the body.
+	 */
+	public HTTPResponse() {
+		this(null);
+	}
+
+	/**
+	 * Initializes a reader for a response that has not started arriving, which
+	 * writes the body where the handler says.
+	 *
+	 * @param handler
+	 *            decides where the body goes, or null to keep it
+	 */
+	public HTTPResponse(BodyHandler handler) {
+		this.state = State.HEADERS;
+		this.line = new ByteArrayOutputStream();
+		this.headerLines = new ArrayList<>();
+		this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		this.status = 0;
+		this.close = false;
+		this.body = new ByteArrayOutputStream();
+		this.handler = handler;
+		this.sink = null;
+		this.decoder = null;
+		this.remaining = 0;
+		this.extra = false;
+	}
+
+	/**
+	 * Reads the next piece of the response.
+	 *
+	 * @param data
+	 *            bytes read from the connection
+	 * @param offset
+	 *            first byte to read
+	 * @param length
+	 *            number of bytes to read
+	 * @return true once the whole response has been read
+	 * @throws IOException
+	 *             if the response is not valid HTTP
+	 */
+	public boolean read(byte[] data, int offset, int length) throws IOException {
+		int end = offset + length;
+		int i = offset;
+
+		while(i < end && state != State.DONE) {
+			switch(state) {
+			case LENGTH:
+			case CHUNK_DATA:
+				int n = (int) Math.min(remaining, end - i);
+				writeBody(data, i, n);
+				remaining -= n;
+				i += n;
+
+				if(remaining == 0) {
+					if(state == State.LENGTH) {
+						complete();
+					}
+					else {
+						state = State.CHUNK_END;
+					}
+				}
+				break;
+
+			case UNTIL_CLOSE:
+				writeBody(data, i, end - i);
+				i = end;
+				break;
+
+			default:
+				/** Every other state reads a line at a time */
+				byte b = data[i++];
+
+				if(b != '\n') {
+					line.write(b);
+				}
+				else {
+					String text = new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+					line.reset();
+
+					if(text.endsWith("\r")) {
+						text = text.substring(0, text.length() - 1);
+					}
+
+					readLine(text);
+				}
+			}
+		}
+
+		if(i < end) {
+			extra = true;
+		}
+
+		return state == State.DONE;
+	}
+
+	/**
+	 * Reads one line of the headers or of the chunked framing.
+	 *
+	 * @param text
+	 *            line without its line break
+	 * @throws IOException
+	 *             if the line is not valid here
+	 */
+	private void readLine(String text) throws IOException {
+		switch(state) {
+		case HEADERS:
+			if(!text.isEmpty()) {
+				if(headerLines.isEmpty() && !text.startsWith("HTTP/")) {
+					throw new IOException("not an HTTP response: " + text);
+				}
+
+				headerLines.add(text);
+			}
+			else if(!headerLines.isEmpty()) {
+				startBody();
+			}
+			break;
+
+		case CHUNK_SIZE:
+			int semicolon = text.indexOf(';');
+			String size = (semicolon < 0 ? text : text.substring(0, semicolon)).trim();
+
+			try {
+				remaining = Long.parseLong(size, 16);
+			}
+			catch(NumberFormatException e) {
+				throw new IOException("bad chunk size: " + text);
+			}
+
+			state = remaining > 0 ? State.CHUNK_DATA : State.TRAILERS;
+			break;
+
+		case CHUNK_END:
+			if(!text.isEmpty()) {
+				throw new IOException("chunk is longer than its size");
+			}
+
+			state = State.CHUNK_SIZE;
+			break;
+
+		case TRAILERS:
+			if(text.isEmpty()) {
+				complete();
+			}
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Parses the status line and header fields, then decides how the body is
+	 * framed.
+	 *
+	 * @throws IOException
+	 *             if the status line is not valid
+	 */
+	private void startBody() throws IOException {
+		String[] statusLine = headerLines.get(0).split(" ", 3);
+
+		try {
+			status = Integer.parseInt(statusLine.length > 1 ? statusLine[1] : "");
+		}
+		catch(NumberFormatException e) {
+			throw new IOException("bad status line: " + headerLines.get(0));
+		}
+
+		for(String field : headerLines.subList(1, headerLines.size())) {
+			String[] pair = field.split(":", 2);
+
+			if(pair.length == 2) {
+				headers.put(pair[0].trim(), pair[1].trim());
+			}
+		}
+
+		/** An informational response is followed by the real one */
+		if(status >= 100 && status < 200) {
+			headerLines.clear();
+			headers.clear();
+			return;
+		}
+
+		String connection = header("Connection").toLowerCase();
+		boolean http10 = statusLine[0].equals("HTTP/1.0");
+		close = connection.contains("close") || http10 && !connection.contains("keep-alive");
+
+		String length = headers.get("Content-Length");
+		sink = handler == null ? body : handler.open(this);
+
+		if(sink == null) {
+			sink = SKIP;
+		}
+
+		decoder = ContentDecoder.of(header("Content-Encoding"), sink);
+
+		if(status == 204 || status == 304) {
+			complete();
+		}
+		else if(header("Transfer-Encoding").toLowerCase().contains("chunked")) {
+			state = State.CHUNK_SIZE;
+		}
+		else if(length != null) {
+			try {
+				remaining = Long.parseLong(length.trim());
+			}
+			catch(NumberFormatException e) {
+				throw new IOException("bad Content-Length: " + length);
+			}
+
+			state = State.LENGTH;
+
+			if(remaining == 0) {
+				complete();
+			}
+		}
+		else {
+			state = State.UNTIL_CLOSE;
+		}
+	}
+
+	/**
+	 * Adds bytes of the body, decompressing them if needed.
+	 *
+	 * @throws IOException
+	 *             if compressed data is corrupt
+	 */
+	private void writeBody(byte[] data, int offset, int length) throws IOException {
+		if(decoder == null) {
+			sink.write(data, offset, length);
+		}
+		else {
+			decoder.write(data, offset, length);
+		}
+	}
+
+	/**
+	 * Marks the response as read, once its framing says the body is over, and
+	 * closes the stream the body was written to.
+	 *
+	 * @throws IOException
+	 *             if the compressed body stopped partway, or the stream could
+	 *             not take the end of it
+	 */
+	private void complete() throws IOException {
+		state = State.DONE;
+
+		if(decoder != null && !decoder.finish()) {
+			throw new IOException("compressed body is cut short");
+		}
+
+		sink.close();
+	}
+
+	/**
+	 * Tells the reader the server closed the connection.
+	 *
+	 * @return true if the whole response had been read, which is the case
+	 *         when the body ends at the close
+	 */
+	public boolean end() {
+		if(state == State.UNTIL_CLOSE) {
+			close = true;
+
+			try {
+				complete();
+			}
+			catch(IOException e) {
+				return false;
+			}
+		}
+
+		return state == State.DONE;
+	}
+
+	/**
+	 * Tests whether the whole response has been read.
+	 *
+	 * @return true if done
+	 */
+	public boolean done() {
+		return state == State.DONE;
+	}
+
+	/**
+	 * Tests whether any of the response has been read.
+	 *
+	 * @return true if no bytes arrived yet
+	 */
+	public boolean empty() {
+		return state == State.HEADERS && headerLines.isEmpty() && line.size() == 0;
+	}
+
+	/**
+	 * Tests whether the connection can be used for another request once this
+	 * response is done: the server did not ask to close it, the body did not
+	 * end at the close, and nothing came after the response.
+	 *
+	 * @return true if the connection can be kept open
+	 */
+	public boolean keepAlive() {
+		return state == State.DONE && !close && !extra;
+	}
+
+	/**
+	 * Returns the status code.
+	 *
+	 * @return status code, or zero if the headers are not read yet
+	 */
+	public int status() {
+		return status;
+	}
+
+	/**
+	 * Returns a header field, or an empty string if it is not there.
+	 *
+	 * @param name
+	 *            field name, in any case
+	 * @return field value
+	 */
+	public String header(String name) {
+		String value = headers.get(name);
+		return value == null ? "" : value;
+	}
+
+	/**
+	 * Returns the header fields by name, ignoring case.
+	 *
+	 * @return header fields
+	 */
+	public Map<String, String> headers() {
+		return headers;
+	}
+
+	/**
+	 * Returns the body, without any chunked framing. Empty if a handler was
+	 * given, since the body was written where it said instead.
+	 *
+	 * @return body bytes
+	 */
+	public byte[] body() {
+		return body.toByteArray();
+	}
+}
@@ -15,6 +15,9 @@ public class IndexHelper {
 	/** Shared index */
 	private ThreadSafeWordIndex idx;
 	
+	/** Where the cleaned text of each file is kept for snippets, or null */
+	private final DocumentStore store;
+	
 	/**
 	 * Initializes with index to populate and the queue to use.
 	 * 
@@ -24,8 +27,24 @@ public class IndexHelper {
 	 * 			WorkQueue to use
 	 */
 	public IndexHelper(ThreadSafeWordIndex idx, WorkQueue queue) {
+		this(idx, queue, null);
+	}
+	
+	/**
+	 * Initializes with index to populate, the queue to use, and a store for
+	 * the cleaned text of each file.
+	 * 
+	 * @param idx
+	 * 			WordIndex to populate
+	 * @param queue
+	 * 			WorkQueue to use
+	 * @param store
+	 * 			store for the cleaned text, or null to not keep it
+	 */
+	public IndexHelper(ThreadSafeWordIndex idx, WorkQueue queue, DocumentStore store) {
 		this.idx = idx;
 		this.queue = queue;
+		this.store = store;
 	}
 	
 	/**
@@ -67,8 +86,9 @@ public class IndexHelper {
 	 * 			File used to populate wordIndex
 	 * 
 	 * @see Driver#readFile(File)       
-	 * @see HTMLCleaner#stripHTML(String)
-	 * @see WordIndex#addAll(String[], String)
+	 * @see FieldedText#parse(String)
+	 * @see WordIndex#addAll(FieldedText, String)
+	 * @see DocumentStore#add(String, String[])
 	 */
 	public void buildIndex(WordIndex wordIndex, File file) {
 		
@@ -78,11 +98,15 @@ public class IndexHelper {
 			
 			txt = readFile(file.toPath());
 			
-			txt = HTMLCleaner.stripHTML(txt);
+			/** Same words as HTMLCleaner.stripHTML, plus the title, headings and links they are in */
+			FieldedText text = FieldedText.parse(txt);
 			
 			// Avoid empty files
-			if(!txt.equals("")) { 
-				wordIndex.addAll(txt.split(" "), file.toPath().toString());
+			if(text.words.length > 0) { 
+				wordIndex.addAll(text, file.toPath().toString());
+				
+				if(store != null)
+					store.add(file.toPath().toString(), text.words);
 			}
 			
 		} catch (IOException e) {
@@ -28,14 +28,15 @@ public class JSONWriter {
 	}
 
 	/**
-	 * Returns a quoted version of the provided text.
+	 * Returns a quoted version of the provided text. Backslashes and quotes in
+	 * the text (for example, from phrase queries) are escaped.
 	 *
 	 * @param text
 	 *            text to surround in quotes
 	 * @return text surrounded by quotes
 	 */
 	public static String quote(String text) {
-		return String.format("\"%s\"", text);
+		return String.format("\"%s\"", text.replace("\\", "\\\\").replace("\"", "\\\""));
 	}
 
 	/**
@@ -293,7 +294,77 @@ public class JSONWriter {
 		writer.write(indent(level) + "{\n");
 		writer.write(indent(level + 1) + "\"where\": " + quote(word.getPath()) + ",\n");
 		writer.write(indent(level + 1) + "\"count\": " + word.getFrequency() + ",\n");
-		writer.write(indent(level + 1) + "\"index\": " + word.getPosition() + "\n");
+		writer.write(indent(level + 1) + "\"index\": " + word.getPosition());
+		
+		/** Only results ranked by score have one */
+		if(word.getScore() != 0) {
+			writer.write(",\n" + indent(level + 1) + "\"score\": " + String.format("%.6f", word.getScore()));
+		}
+		
+		writer.write("\n" + indent(level) + "}");
+	}
+	
+	
+	/**
+	 * Writes one query and its results as a JSON object with the indicated
+	 * number of levels.
+	 *
+	 * @param writer
+	 *            where to write to
+	 * @param query
+	 *            query the results are for
+	 * @param results
+	 *            results, already sorted
+	 * @param level
+	 * 			  indent level
+	 * @throws IOException 
+	 */
+	public static void asQueryResults(Writer writer, String query, List<Word> results, int level) throws IOException {
+		asQueryResults(writer, query, results, false, level);
+	}
+	
+	/**
+	 * Writes one query and its results as a JSON object with the indicated
+	 * number of levels, marking results that were cut short by a timeout.
+	 *
+	 * @param writer
+	 *            where to write to
+	 * @param query
+	 *            query the results are for
+	 * @param results
+	 *            results, already sorted
+	 * @param truncated
+	 *            true to add <code>"truncated": true</code>
+	 * @param level
+	 * 			  indent level
+	 * @throws IOException 
+	 */
+	public static void asQueryResults(Writer writer, String query, List<Word> results, boolean truncated, int level)
+			throws IOException {
+		
+		writer.write(indent(level) + "{\n");
+		
+		writer.write(indent(level + 1) + "\"queries\": " + quote(query) + ",\n");
+		
+		/** Only results cut short have one */
+		if(truncated) {
+			writer.write(indent(level + 1) + "\"truncated\": true,\n");
+		}
+		
+		writer.write(indent(level + 1) + "\"results\": " + "[\n");
+		
+		for(int i = 0; i < results.size(); i++) {
+			
+			asWord(writer, results.get(i), level + 2);
+			
+			if(i != (results.size() - 1))
+				writer.write(",");
+			
+			writer.write("\n");
+		}
+		
+		writer.write(indent(level + 1) + "]\n");
+		
 		writer.write(indent(level) + "}");
 	}
 	
@@ -319,28 +390,8 @@ public class JSONWriter {
 			
 			for(String query : queriesTreeSet) {
 				
-				writer.write(indent(1) + "{\n");
-				
-				writer.write(indent(2) + "\"queries\": " + quote(query) + ",\n");
-		
-				writer.write(indent(2) + "\"results\": " + "[\n");
-				
-				List<Word> resultsList = Word.listByNaturalOrder(queriesResults.copyResults(query));
-				
-				for(int i = 0; i< resultsList.size(); i++) {
-						
-					asWord(writer, resultsList.get(i), 3);
-					
-					if(i != (resultsList.size() - 1))
-						writer.write(",");
-				
-					writer.newLine();
-					
-				}
-				
-				writer.write(indent(2) + "]\n");
-				
-				writer.write(indent(1) + "}");
+				asQueryResults(writer, query, Word.listByNaturalOrder(queriesResults.copyResults(query)),
+						queriesResults.isTruncated(query), 1);
 				
 				if(!query.equals(queriesTreeSet.last()))
 					writer.write(",");
@@ -0,0 +1,227 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps every k characters in a row (a k-gram) to the words that contain them,
+ * so wildcard patterns like <code>*ing</code> or <code>*arch*</code> can be
+ * answered without reading every word. Words are padded with
+ * {@link #BOUNDARY} on both ends, so grams at the start or end of a word are
+ * told apart from grams in the middle.
+ *
+ * Shorter grams, down to single letters, are kept too, so a fixed part of a
+ * pattern shorter than k, like the <code>ab</code> of <code>*ab*</code>, is
+ * looked up as one gram instead of needing every word to be read.
+ *
+ * Words get increasing IDs as they are added, so each gram's list of IDs is
+ * always sorted and adding a word only appends to lists.
+ *
+ * Not thread-safe; {@link WordIndex} keeps one and adds to it along with
+ * everything else.
+ */
+public class KGramIndex {
+
+	/** Marks the start and end of a word */
+	public static final char BOUNDARY = '$';
+
+	/** Marks any number of characters in a pattern */
+	public static final char WILDCARD = '*';
+
+	/** Length of each gram */
+	private final int k;
+
+	/** Words by ID */
+	private final List<String> words;
+
+	/** Sorted word IDs by gram */
+	private final Map<String, Ids> grams;
+
+	/**
+	 * Initializes an empty index.
+	 *
+	 * @param k
+	 *            length of each gram, usually 3
+	 */
+	public KGramIndex(int k) {
+		this.k = k;
+		this.words = new ArrayList<>();
+		this.grams = new HashMap<>();
+	}
+
+	/**
+	 * Adds a word that is not in the index yet.
+	 *
+	 * @param word
+	 *            new word
+	 */
+	public void add(String word) {
+		int id = words.size();
+		words.add(word);
+
+		String padded = BOUNDARY + word + BOUNDARY;
+
+		for(int n = 1; n <= k; n++) {
+			for(int i = 0; i + n <= padded.length(); i++) {
+				String gram = padded.substring(i, i + n);
+
+				/** A lone boundary would list every word, and no pattern asks for it */
+				if(gram.equals(String.valueOf(BOUNDARY))) {
+					continue;
+				}
+
+				Ids ids = grams.get(gram);
+
+				if(ids == null) {
+					ids = new Ids();
+					grams.put(gram, ids);
+				}
+
+				/** The same gram can appear twice in one word */
+				if(ids.size == 0 || ids.values[ids.size - 1] != id) {
+					ids.add(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of words in the index.
+	 *
+	 * @return number of words
+	 */
+	public int size() {
+		return words.size();
+	}
+
+	/**
+	 * Returns the words that match a wildcard pattern, sorted. Intersects the
+	 * lists of every k-gram in the fixed parts of the pattern, or of the whole
+	 * part if it is shorter than k, starting from the shortest list, then
+	 * checks the few words left against the whole pattern.
+	 *
+	 * @param pattern
+	 *            cleaned words with {@link #WILDCARD} between or around them
+	 * @return sorted matching words
+	 */
+	public List<String> match(String pattern) {
+		String padded = (pattern.charAt(0) == WILDCARD ? "" : String.valueOf(BOUNDARY)) + pattern
+				+ (pattern.charAt(pattern.length() - 1) == WILDCARD ? "" : String.valueOf(BOUNDARY));
+
+		List<Ids> lists = new ArrayList<>();
+
+		for(String part : padded.split("\\" + WILDCARD)) {
+			if(part.isEmpty()) {
+				continue;
+			}
+
+			for(int i = 0; i + Math.min(k, part.length()) <= part.length(); i++) {
+				Ids ids = grams.get(part.substring(i, i + Math.min(k, part.length())));
+
+				if(ids == null) {
+					return new ArrayList<>();
+				}
+
+				lists.add(ids);
+			}
+		}
+
+		/** Only a pattern of nothing but wildcards, which matches every word */
+		if(lists.isEmpty()) {
+			List<String> all = new ArrayList<>(words);
+			Collections.sort(all);
+			return all;
+		}
+
+		lists.sort((a, b) -> Integer.compare(a.size, b.size));
+
+		List<String> matches = new ArrayList<>();
+		Ids rarest = lists.get(0);
+		int[] cursors = new int[lists.size()];
+
+		candidates:
+		for(int j = 0; j < rarest.size; j++) {
+			int id = rarest.values[j];
+
+			for(int i = 1; i < lists.size(); i++) {
+				Ids ids = lists.get(i);
+				cursors[i] = PostingList.gallop(ids.values, cursors[i], ids.size, id);
+
+				if(cursors[i] == ids.size) {
+					break candidates;
+				}
+
+				if(ids.values[cursors[i]] != id) {
+					continue candidates;
+				}
+			}
+
+			if(matches(pattern, words.get(id))) {
+				matches.add(words.get(id));
+			}
+		}
+
+		Collections.sort(matches);
+		return matches;
+	}
+
+	/**
+	 * Tests whether a word matches a wildcard pattern.
+	 *
+	 * @param pattern
+	 *            cleaned words with {@link #WILDCARD} between or around them
+	 * @param word
+	 *            word to test
+	 * @return true if the word matches
+	 */
+	public static boolean matches(String pattern, String word) {
+		String[] parts = pattern.split("\\" + WILDCARD, -1);
+
+		/** A pattern without a wildcard only matches itself */
+		if(parts.length == 1) {
+			return pattern.equals(word);
+		}
+
+		String first = parts[0];
+		String last = parts[parts.length - 1];
+
+		if(word.length() < first.length() + last.length() || !word.startsWith(first) || !word.endsWith(last)) {
+			return false;
+		}
+
+		int from = first.length();
+		int to = word.length() - last.length();
+
+		for(int i = 1; i < parts.length - 1; i++) {
+			int found = word.indexOf(parts[i], from);
+
+			if(found < 0 || found + parts[i].length() > to) {
+				return false;
+			}
+
+			from = found + parts[i].length();
+		}
+
+		return true;
+	}
+
+	/**
+	 * A growing, sorted array of word IDs.
+	 */
+	private static class Ids {
+
+		private int[] values = new int[2];
+
+		private int size;
+
+		private void add(int id) {
+			if(size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+
+			values[size++] = id;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Accepts the words within a small edit distance of a query word. A state is
+ * the row of the edit distance table for the characters read so far: entry i
+ * is the distance between those characters and the first i characters of the
+ * query word, capped at one more than the largest allowed distance.
+ *
+ * Reading a term one character at a time lets a sorted dictionary share the
+ * work for common prefixes, and {@link #canMatch(int[])} tells when no word
+ * starting with the characters read so far can match, so the whole range of
+ * words with that prefix can be skipped.
+ *
+ * @see WordIndex#fuzzyTerms(String, int)
+ */
+public class LevenshteinAutomaton {
+
+	/** Word to match */
+	private final String word;
+
+	/** Largest allowed edit distance */
+	private final int distance;
+
+	/**
+	 * Initializes an automaton for a word.
+	 *
+	 * @param word
+	 *            word to match
+	 * @param distance
+	 *            largest allowed edit distance, usually 1 or 2
+	 */
+	public LevenshteinAutomaton(String word, int distance) {
+		this.word = word;
+		this.distance = distance;
+	}
+
+	/**
+	 * Returns the state before any characters are read.
+	 *
+	 * @return start state
+	 */
+	public int[] start() {
+		int[] state = new int[word.length() + 1];
+
+		for(int i = 0; i < state.length; i++)
+			state[i] = Math.min(i, distance + 1);
+
+		return state;
+	}
+
+	/**
+	 * Returns the state after reading one more character.
+	 *
+	 * @param state
+	 *            current state, which is not changed
+	 * @param c
+	 *            character read
+	 * @return next state
+	 */
+	public int[] step(int[] state, char c) {
+		return step(state, c, new int[state.length]);
+	}
+
+	/**
+	 * Writes the state after reading one more character into an existing
+	 * array, so walking many words does not allocate a new state per character.
+	 *
+	 * @param state
+	 *            current state, which is not changed
+	 * @param c
+	 *            character read
+	 * @param next
+	 *            array to write the next state into, as long as the state
+	 * @return the next state
+	 */
+	public int[] step(int[] state, char c, int[] next) {
+		next[0] = Math.min(state[0] + 1, distance + 1);
+
+		for(int i = 1; i < state.length; i++) {
+			int replace = state[i - 1] + (word.charAt(i - 1) == c ? 0 : 1);
+			int insert = state[i] + 1;
+			int delete = next[i - 1] + 1;
+
+			next[i] = Math.min(Math.min(replace, insert), Math.min(delete, distance + 1));
+		}
+
+		return next;
+	}
+
+	/**
+	 * Tests whether the characters read so far are within the distance of the
+	 * word.
+	 *
+	 * @param state
+	 *            current state
+	 * @return true if the characters read so far match
+	 */
+	public boolean isMatch(int[] state) {
+		return state[state.length - 1] <= distance;
+	}
+
+	/**
+	 * Tests whether reading more characters could still lead to a match.
+	 *
+	 * @param state
+	 *            current state
+	 * @return false if no word starting with the characters read so far matches
+	 */
+	public boolean canMatch(int[] state) {
+		for(int value : state)
+			if(value <= distance)
+				return true;
+
+		return false;
+	}
+}
@@ -11,9 +11,9 @@ import java.util.regex.Matcher;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Retrieves html files using sockets and parses them using regex.
@@ -62,12 +62,56 @@ public class LinkParser {
 	 * @see {@link HTTP}
 	 */
 	public static String craftHTTPRequest(URL url, HTTP type) {
+		return craftHTTPRequest(url, type, false);
+	}
+	
+	/**
+	 * Crafts a minimal HTTP/1.1 request that may ask the server to keep the
+	 * connection open for the next request.
+	 *
+	 * @param url
+	 *            - url to fetch
+	 * @param type
+	 *            - HTTP method to use
+	 * @param keepAlive
+	 *            - true to keep the connection open, false to close it after
+	 *            the response
+	 *
+	 * @return HTTP/1.1 request
+	 *
+	 * @see HTTPResponse#keepAlive()
+	 */
+	public static String craftHTTPRequest(URL url, HTTP type, boolean keepAlive) {
+		return craftHTTPRequest(url, type, keepAlive, false);
+	}
+	
+	/**
+	 * Crafts a minimal HTTP/1.1 request that may also ask for a compressed
+	 * body. Only ask for one if the response is read by {@link HTTPResponse},
+	 * which decompresses it.
+	 *
+	 * @param url
+	 *            - url to fetch
+	 * @param type
+	 *            - HTTP method to use
+	 * @param keepAlive
+	 *            - true to keep the connection open, false to close it after
+	 *            the response
+	 * @param compressed
+	 *            - true to accept a gzip or deflate body
+	 *
+	 * @return HTTP/1.1 request
+	 *
+	 * @see ContentDecoder
+	 */
+	public static String craftHTTPRequest(URL url, HTTP type, boolean keepAlive, boolean compressed) {
 		String host = url.getHost();
 		String resource = url.getFile().isEmpty() ? "/" : url.getFile();
+		String encoding = compressed ? "Accept-Encoding: gzip, deflate\r\n" : "";
 
 		// The specification is specific about where to use a new line
-		return String.format("%s %s %s\r\n" + "Host: %s\r\n" + "Connection: close\r\n" + "\r\n", type.name(), resource,
-				version, host);
+		return String.format("%s %s %s\r\n" + "Host: %s\r\n" + "Connection: %s\r\n" + "%s" + "\r\n", type.name(),
+				resource, version, host, keepAlive ? "keep-alive" : "close", encoding);
 	}
 	
 	/**
@@ -110,7 +154,8 @@ public class LinkParser {
 	/**
 	 * Helper method that parses HTTP headers into a map where the key is the
 	 * field name and the value is the field value. The status code will be
-	 * stored under the key "Status".
+	 * stored under the key "Status". Field names are not case sensitive, so
+	 * "Content-type" is found as "Content-Type".
 	 *
 	 * @param headers
 	 *            - HTTP/1.1 header lines
@@ -118,7 +163,7 @@ public class LinkParser {
 	 *         formatted
 	 */
 	public static Map<String, String> parseHeaders(List<String> headers) {
-		Map<String, String> fields = new HashMap<>();
+		Map<String, String> fields = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 
 		if (headers.size() > 0 && headers.get(0).startsWith(version)) {
 			fields.put("Status", headers.get(0).substring(version.length()).trim());
@@ -135,47 +180,6 @@ public class LinkParser {
 		return fields;
 	}
 	
-	/**
-	 * Fetches the HTML for the specified URL (without headers).
-	 *
-	 * @param url
-	 *            - url to fetch
-	 * @return HTML as a single {@link String}, or null if not HTML
-	 *
-	 * @throws UnknownHostException
-	 * @throws MalformedURLException
-	 * @throws IOException
-	 */
-	public static String fetchHTML(URL target) {
-	
-		String request = craftHTTPRequest(target, HTTP.GET);
-		List<String> lines;
-		try {
-			lines = fetchLines(target, request);
-			
-			int start = 0;
-			int end = lines.size();
-
-			// Determines start of HTML versus headers.
-			while (!lines.get(start).trim().isEmpty() && start < end) {
-				start++;
-			}
-
-			// Double-check this is an HTML file.
-			Map<String, String> fields = parseHeaders(lines.subList(0, start + 1));
-			String type = fields.get("Content-Type");
-
-			if (type != null && type.toLowerCase().contains("html")) {
-				return String.join(System.lineSeparator(), lines.subList(start + 1, end));
-			}
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return null;
-	}
-
 	/**
 	 * Returns a list of all the HTTP(S) links found in the href attribute of the
 	 * anchor tags in the provided HTML. The links will be converted to absolute
@@ -199,20 +203,10 @@ public class LinkParser {
 		
 		while(m.find()) {
 			
-			String link = getHrefLink(m.group());	
-			if(link != "") {
-				
-				try {
-					URL absolute = new URL(base, link);
-					
-					//If no authority, don't add
-					if(absolute.getAuthority() != null) {
-						links.add(clean(absolute));
-					}
-						
-				} catch (MalformedURLException e) {
-					e.printStackTrace();
-				}
+			URL link = linkIn(base, m.group());
+			
+			if(link != null) {
+				links.add(link);
 			}
 
 		} //while
@@ -220,6 +214,39 @@ public class LinkParser {
 		return links;
 	}
 	
+	/**
+	 * Returns the link in the href attribute of an anchor tag, made absolute
+	 * using the base URL and cleaned, the same way {@link #listLinks(URL, String)}
+	 * does for each tag it finds.
+	 * 
+	 * @param base
+	 *            base url used to convert relative links to absolute
+	 * @param tag
+	 *            anchor tag, from the "<" to the ">"
+	 * @return cleaned link, or null if the tag has none or it has no authority
+	 */
+	public static URL linkIn(URL base, String tag) {
+		
+		String link = getHrefLink(tag);
+		
+		if(link != "") {
+			
+			try {
+				URL absolute = new URL(base, link);
+				
+				//If no authority, don't add
+				if(absolute.getAuthority() != null) {
+					return clean(absolute);
+				}
+					
+			} catch (MalformedURLException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		return null;
+	}
+	
 	/**
 	 * Uses regex to search for href attribute, if found returns it's value. If not found or if
 	 * the value is empty, returns "".
@@ -0,0 +1,334 @@
+import java.util.Arrays;
+
+/**
+ * The postings of one word: the documents it was found in, sorted by document
+ * ID, and the sorted positions it was found at in each document. Stored as
+ * parallel primitive arrays rather than maps and sets of boxed integers.
+ *
+ * Documents are usually added in increasing ID order, so adding is normally an
+ * append. Every {@link #SKIP}th document ID is also kept in a skip list, so
+ * skipping ahead first gallops over the skip list and then only searches
+ * within one block of documents. Skipping a distance of d documents costs
+ * O(log d).
+ *
+ * Each document also has a byte of {@link FieldedText} bits for the parts of
+ * the page the word was found in, such as the title or a heading, so ranking
+ * can boost those matches for one byte per document.
+ *
+ * @see WordIndex
+ */
+public class PostingList {
+
+	/** Document IDs, sorted */
+	private int[] docs;
+
+	/** Positions in each document, sorted; only the first counts[i] are used */
+	private int[][] positions;
+
+	/** Number of positions in each document */
+	private int[] counts;
+
+	/** Field bits of each document */
+	private byte[] fields;
+
+	/** Number of documents */
+	private int size;
+
+	/** Number of documents between skip pointers */
+	public static final int SKIP = 32;
+
+	/** Document ID at every SKIP-th index: skips[b] == docs[b * SKIP] */
+	private int[] skips;
+
+	/** Number of skip pointers */
+	private int skipCount;
+
+	/**
+	 * Initializes an empty posting list.
+	 */
+	public PostingList() {
+		this.docs = new int[2];
+		this.positions = new int[2][];
+		this.counts = new int[2];
+		this.fields = new byte[2];
+		this.size = 0;
+		this.skips = new int[1];
+		this.skipCount = 0;
+	}
+
+	/**
+	 * Adds a position for a document. Adding a position that is already present
+	 * has no effect.
+	 *
+	 * @param doc
+	 *            document ID
+	 * @param position
+	 *            position the word was found
+	 * @return true if the position was new
+	 */
+	public boolean add(int doc, int position) {
+		int i = size > 0 && docs[size - 1] == doc ? size - 1 : insertDoc(doc);
+
+		int count = counts[i];
+		int[] list = positions[i];
+
+		if(count > 0 && list[count - 1] >= position) {
+			// out of order; rare since positions are usually added in order
+			int slot = Arrays.binarySearch(list, 0, count, position);
+
+			if(slot >= 0) {
+				return false;
+			}
+
+			slot = -slot - 1;
+			list = grow(list, count);
+			System.arraycopy(list, slot, list, slot + 1, count - slot);
+			list[slot] = position;
+		}
+		else {
+			list = grow(list, count);
+			list[count] = position;
+		}
+
+		positions[i] = list;
+		counts[i] = count + 1;
+		return true;
+	}
+
+	/**
+	 * Adds field bits for a document that is already in the list.
+	 *
+	 * @param doc
+	 *            document ID
+	 * @param field
+	 *            {@link FieldedText} bits to add
+	 */
+	public void mark(int doc, byte field) {
+		int i = size > 0 && docs[size - 1] == doc ? size - 1 : find(doc);
+
+		if(i >= 0) {
+			fields[i] |= field;
+		}
+	}
+
+	/**
+	 * Returns the index of a document, inserting it if not present.
+	 *
+	 * @param doc
+	 *            document ID
+	 * @return index of the document in this list
+	 */
+	private int insertDoc(int doc) {
+		int i = size == 0 || docs[size - 1] < doc ? -size - 1 : Arrays.binarySearch(docs, 0, size, doc);
+
+		if(i >= 0) {
+			return i;
+		}
+
+		i = -i - 1;
+
+		if(size == docs.length) {
+			docs = Arrays.copyOf(docs, size * 2);
+			positions = Arrays.copyOf(positions, size * 2);
+			counts = Arrays.copyOf(counts, size * 2);
+			fields = Arrays.copyOf(fields, size * 2);
+		}
+
+		System.arraycopy(docs, i, docs, i + 1, size - i);
+		System.arraycopy(positions, i, positions, i + 1, size - i);
+		System.arraycopy(counts, i, counts, i + 1, size - i);
+		System.arraycopy(fields, i, fields, i + 1, size - i);
+
+		docs[i] = doc;
+		positions[i] = new int[2];
+		counts[i] = 0;
+		fields[i] = 0;
+		size++;
+
+		if(i == size - 1 && i % SKIP != 0) {
+			// appended inside the last block; skip pointers are unchanged
+		}
+		else if(i == size - 1) {
+			addSkip(doc);
+		}
+		else {
+			// inserted in the middle (rare); every later pointer moved
+			skipCount = 0;
+
+			for(int j = 0; j < size; j += SKIP)
+				addSkip(docs[j]);
+		}
+
+		return i;
+	}
+
+	/**
+	 * Appends a skip pointer.
+	 *
+	 * @param doc
+	 *            document ID at the start of the next block
+	 */
+	private void addSkip(int doc) {
+		if(skipCount == skips.length) {
+			skips = Arrays.copyOf(skips, skipCount * 2);
+		}
+
+		skips[skipCount++] = doc;
+	}
+
+	/**
+	 * Returns the array, or a larger copy of it if it is full.
+	 */
+	private static int[] grow(int[] list, int count) {
+		return count < list.length ? list : Arrays.copyOf(list, Math.max(2, count * 2));
+	}
+
+	/**
+	 * Returns the number of documents in this list.
+	 *
+	 * @return number of documents
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the document ID at an index.
+	 *
+	 * @param i
+	 *            index between 0 and size() - 1
+	 * @return document ID
+	 */
+	public int doc(int i) {
+		return docs[i];
+	}
+
+	/**
+	 * Returns the number of positions for the document at an index.
+	 *
+	 * @param i
+	 *            index between 0 and size() - 1
+	 * @return number of positions, which is the word's frequency in the document
+	 */
+	public int count(int i) {
+		return counts[i];
+	}
+
+	/**
+	 * Returns the field bits for the document at an index.
+	 *
+	 * @param i
+	 *            index between 0 and size() - 1
+	 * @return {@link FieldedText} bits, or 0 if no fields were recorded
+	 */
+	public byte fields(int i) {
+		return fields[i];
+	}
+
+	/**
+	 * Returns the first position for the document at an index.
+	 *
+	 * @param i
+	 *            index between 0 and size() - 1
+	 * @return smallest position
+	 */
+	public int first(int i) {
+		return positions[i][0];
+	}
+
+	/**
+	 * Returns the sorted positions for the document at an index. Only the first
+	 * {@link #count(int)} entries are used, and the array must not be modified.
+	 *
+	 * @param i
+	 *            index between 0 and size() - 1
+	 * @return sorted positions
+	 */
+	public int[] positions(int i) {
+		return positions[i];
+	}
+
+	/**
+	 * Returns the index of a document.
+	 *
+	 * @param doc
+	 *            document ID
+	 * @return index of the document, or a negative number if not present
+	 */
+	public int find(int doc) {
+		return Arrays.binarySearch(docs, 0, size, doc);
+	}
+
+	/**
+	 * Returns the first index at or after from whose document ID is at least the
+	 * target. Follows the skip pointers to the last block starting at or before
+	 * the target, then searches only within that block.
+	 *
+	 * @param from
+	 *            index to start from
+	 * @param target
+	 *            document ID to skip to
+	 * @return index of the first document at least the target, or size() if none
+	 */
+	public int advance(int from, int target) {
+		if(from >= size || docs[from] >= target) {
+			return from;
+		}
+
+		/** First block whose start is past the target, then back up one */
+		int block = gallop(skips, from / SKIP, skipCount, target + 1) - 1;
+		int start = Math.max(from, block * SKIP);
+
+		return gallop(docs, start, Math.min(size, (block + 1) * SKIP), target);
+	}
+
+	/**
+	 * Returns the first index between from and to whose value is at least the
+	 * target. Checks from, from + 1, from + 3, from + 7, ... until passing the
+	 * target, then binary searches the last gap.
+	 *
+	 * @param values
+	 *            sorted values
+	 * @param from
+	 *            first index to consider
+	 * @param to
+	 *            one past the last index to consider
+	 * @param target
+	 *            value to find
+	 * @return index of the first value at least the target, or to if none
+	 */
+	public static int gallop(int[] values, int from, int to, int target) {
+		if(from >= to || values[from] >= target) {
+			return from;
+		}
+
+		int low = from;
+		int step = 1;
+
+		while(low + step < to && values[low + step] < target) {
+			low += step;
+			step <<= 1;
+		}
+
+		int high = Math.min(low + step, to);
+		int slot = Arrays.binarySearch(values, low + 1, high, target);
+
+		// binarySearch returns the first match only if values are unique
+		return slot >= 0 ? slot : -slot - 1;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("{");
+
+		for(int i = 0; i < size; i++) {
+			if(i > 0) {
+				builder.append(", ");
+			}
+
+			builder.append(docs[i]).append('=').append(Arrays.toString(Arrays.copyOf(positions[i], counts[i])));
+		}
+
+		return builder.append('}').toString();
+	}
+}
@@ -0,0 +1,440 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed query line. Besides plain words, a query may contain quoted phrases
+ * that must appear as consecutive words, like <code>"binary search"</code>,
+ * and proximity clauses that match two words within k positions of each
+ * other, like <code>binary NEAR/3 search</code>.
+ *
+ * Words joined by <code>AND</code> must all appear in a document, like
+ * <code>binary AND search AND tree</code>, and a word after <code>NOT</code>
+ * must not appear, like <code>search NOT linear</code>. Everything else is
+ * still an implicit <code>OR</code>, which may also be written out. Operators
+ * are only recognized in upper case, so a plain "and" is still a word.
+ *
+ * A word with a <code>*</code> in it is a wildcard pattern that matches any
+ * characters in that spot, like <code>*ing</code> or <code>*arch*</code>.
+ *
+ * Words are cleaned the same way as before, so a line with only plain words
+ * parses to exactly the sorted, cleaned words it always did.
+ *
+ * @see QueryHelper#cleanTxt(String)
+ */
+public class Query {
+
+	/** Matches a quoted phrase or a single token */
+	private static final Pattern TOKENS = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+	/** Matches a proximity operator */
+	private static final Pattern NEAR = Pattern.compile("NEAR/(\\d+)");
+
+	/** Largest NEAR distance; more than any document needs, and safe to add to a position */
+	public static final int MAX_DISTANCE = Integer.MAX_VALUE / 2;
+
+	private static final String AND = "AND";
+
+	private static final String OR = "OR";
+
+	private static final String NOT = "NOT";
+
+	/** Plain words, sorted */
+	private final List<String> terms;
+
+	/** Phrases of two or more words */
+	private final List<List<String>> phrases;
+
+	/** Proximity clauses */
+	private final List<Near> near;
+
+	/** Groups of two or more words that must all appear, each sorted */
+	private final List<List<String>> all;
+
+	/** Words that must not appear */
+	private final List<String> excluded;
+
+	/** Wildcard patterns, like *ing */
+	private final List<String> wildcards;
+
+	/**
+	 * Initializes a query of plain words.
+	 *
+	 * @param terms
+	 *            cleaned words
+	 */
+	public Query(List<String> terms) {
+		this(terms, new ArrayList<List<String>>(), new ArrayList<Near>(), new ArrayList<List<String>>(),
+				new ArrayList<String>(), new ArrayList<String>());
+	}
+
+	/**
+	 * Initializes a query.
+	 *
+	 * @param terms
+	 *            cleaned words
+	 * @param phrases
+	 *            phrases of cleaned words
+	 * @param near
+	 *            proximity clauses
+	 * @param all
+	 *            groups of cleaned words that must all appear
+	 * @param excluded
+	 *            cleaned words that must not appear
+	 * @param wildcards
+	 *            wildcard patterns
+	 */
+	private Query(List<String> terms, List<List<String>> phrases, List<Near> near, List<List<String>> all,
+			List<String> excluded, List<String> wildcards) {
+		List<String> sorted = new ArrayList<>(terms);
+		Collections.sort(sorted);
+
+		this.terms = Collections.unmodifiableList(sorted);
+		this.phrases = Collections.unmodifiableList(phrases);
+		this.near = Collections.unmodifiableList(near);
+		this.all = Collections.unmodifiableList(all);
+		this.excluded = Collections.unmodifiableList(excluded);
+		this.wildcards = Collections.unmodifiableList(wildcards);
+	}
+
+	/**
+	 * Parses a query line.
+	 *
+	 * @param line
+	 *            raw query line
+	 * @return parsed query, which may be empty
+	 */
+	public static Query parse(String line) {
+
+		/** Each item is a list of cleaned words, a phrase, or an operator */
+		List<Item> items = new ArrayList<>();
+		List<String> wildcards = new ArrayList<>();
+
+		Matcher m = TOKENS.matcher(line);
+
+		while(m.find()) {
+			String token = m.group(2);
+			Matcher near = token == null ? null : NEAR.matcher(token);
+
+			if(near != null && near.matches()) {
+				items.add(new Item(distance(near.group(1))));
+			}
+			else if(token != null && (token.equals(AND) || token.equals(OR) || token.equals(NOT))) {
+				items.add(new Item(token));
+			}
+			else if(token != null && token.indexOf(KGramIndex.WILDCARD) >= 0) {
+				/** Kept as an item so it is not taken as a neighbor of an operator */
+				items.add(new Item(token));
+				String pattern = pattern(token);
+
+				if(pattern != null) {
+					wildcards.add(pattern);
+				}
+			}
+			else {
+				items.add(new Item(words(token != null ? token : m.group(1)), token == null));
+			}
+		}
+
+		List<String> terms = new ArrayList<>();
+		List<List<String>> phrases = new ArrayList<>();
+		List<Near> near = new ArrayList<>();
+		List<List<String>> all = new ArrayList<>();
+		List<String> excluded = new ArrayList<>();
+
+		/** Pair each proximity operator with the words just before and after it */
+		for(int i = 1; i + 1 < items.size(); i++) {
+			if(items.get(i).distance >= 0 && isWords(items, i - 1) && isWords(items, i + 1)) {
+				List<String> before = items.get(i - 1).words;
+				List<String> after = items.get(i + 1).words;
+
+				near.add(new Near(before.remove(before.size() - 1), after.remove(0), items.get(i).distance));
+			}
+		}
+
+		/** Take the word after each NOT out of the query */
+		for(int i = 0; i + 1 < items.size(); i++) {
+			if(NOT.equals(items.get(i).operator) && isWords(items, i + 1)) {
+				excluded.add(items.get(i + 1).words.remove(0));
+			}
+		}
+
+		/** Join the words on either side of each AND; a chain like a AND b AND c is one group */
+		List<String> group = null;
+		int groupEnd = -1;
+
+		for(int i = 1; i + 1 < items.size(); i++) {
+			if(!AND.equals(items.get(i).operator) || !isWords(items, i + 1)) {
+				continue;
+			}
+
+			if(group == null || groupEnd != i - 1 || !items.get(i - 1).words.isEmpty()) {
+				if(!isWords(items, i - 1)) {
+					continue;
+				}
+
+				List<String> before = items.get(i - 1).words;
+				group = new ArrayList<>();
+				group.add(before.remove(before.size() - 1));
+				all.add(group);
+			}
+
+			group.add(items.get(i + 1).words.remove(0));
+			groupEnd = i + 1;
+		}
+
+		for(Item item : items) {
+			if(item.words == null) {
+				continue;
+			}
+			else if(item.quoted && item.words.size() > 1) {
+				phrases.add(item.words);
+			}
+			else {
+				terms.addAll(item.words);
+			}
+		}
+
+		for(List<String> words : all)
+			Collections.sort(words);
+
+		return new Query(terms, phrases, near, all, excluded, wildcards);
+	}
+
+	/**
+	 * Reads the distance of a NEAR operator, capped at {@link #MAX_DISTANCE}
+	 * so a long run of digits is not an error.
+	 *
+	 * @param digits
+	 *            distance as written
+	 * @return distance
+	 */
+	private static int distance(String digits) {
+		try {
+			return (int) Math.min(Long.parseLong(digits), MAX_DISTANCE);
+		}
+		catch(NumberFormatException e) {
+			/** Too many digits even for a long */
+			return MAX_DISTANCE;
+		}
+	}
+
+	/**
+	 * Cleans each part of a wildcard pattern, keeping the wildcards.
+	 *
+	 * @param token
+	 *            raw token with at least one wildcard
+	 * @return cleaned pattern, or null if nothing but wildcards is left
+	 */
+	private static String pattern(String token) {
+		List<String> parts = new ArrayList<>();
+
+		for(String part : token.split("\\" + KGramIndex.WILDCARD, -1))
+			parts.add(QueryHelper.cleanTxt(part).replace(" ", ""));
+
+		String pattern = String.join(String.valueOf(KGramIndex.WILDCARD), parts).replaceAll("\\*+", "*");
+		return pattern.replace(String.valueOf(KGramIndex.WILDCARD), "").isEmpty() ? null : pattern;
+	}
+
+	/**
+	 * Tests whether an item is an unquoted, non-empty list of words.
+	 */
+	private static boolean isWords(List<Item> items, int i) {
+		Item item = items.get(i);
+		return item.words != null && !item.quoted && !item.words.isEmpty();
+	}
+
+	/**
+	 * Cleans text into a list of words.
+	 *
+	 * @param text
+	 *            text to clean
+	 * @return cleaned words, possibly empty
+	 * @see QueryHelper#cleanTxt(String)
+	 */
+	private static List<String> words(String text) {
+		String cleaned = QueryHelper.cleanTxt(text);
+		return cleaned.isEmpty() ? new ArrayList<String>() : new ArrayList<>(Arrays.asList(cleaned.split(" ")));
+	}
+
+	/**
+	 * Returns a copy of this query with different plain words and the same
+	 * phrases, proximity clauses, groups and exclusions.
+	 *
+	 * @param terms
+	 *            cleaned words
+	 * @return copy of this query
+	 */
+	public Query withTerms(List<String> terms) {
+		return new Query(terms, phrases, near, all, excluded, wildcards);
+	}
+
+	/**
+	 * Returns the plain words of this query, sorted.
+	 *
+	 * @return plain words
+	 */
+	public List<String> terms() {
+		return terms;
+	}
+
+	/**
+	 * Returns the phrases of this query.
+	 *
+	 * @return phrases of two or more words
+	 */
+	public List<List<String>> phrases() {
+		return phrases;
+	}
+
+	/**
+	 * Returns the proximity clauses of this query.
+	 *
+	 * @return proximity clauses
+	 */
+	public List<Near> near() {
+		return near;
+	}
+
+	/**
+	 * Returns the groups of words joined by AND.
+	 *
+	 * @return groups of two or more words, each sorted
+	 */
+	public List<List<String>> all() {
+		return all;
+	}
+
+	/**
+	 * Returns the words after NOT.
+	 *
+	 * @return words that must not appear
+	 */
+	public List<String> excluded() {
+		return excluded;
+	}
+
+	/**
+	 * Returns the wildcard patterns of this query.
+	 *
+	 * @return cleaned patterns with * for any characters
+	 */
+	public List<String> wildcards() {
+		return wildcards;
+	}
+
+	/**
+	 * Tests whether this query has nothing to search for. A query of only
+	 * excluded words is empty, since it cannot match anything.
+	 *
+	 * @return true if there are no words, phrases, proximity clauses, groups or
+	 *         patterns
+	 */
+	public boolean isEmpty() {
+		return terms.isEmpty() && phrases.isEmpty() && near.isEmpty() && all.isEmpty() && wildcards.isEmpty();
+	}
+
+	/**
+	 * Returns the normalized form of this query: every clause, sorted and
+	 * separated by spaces. Equivalent queries have the same normalized form, and
+	 * a query of plain words is just its sorted words.
+	 */
+	@Override
+	public String toString() {
+		List<String> clauses = new ArrayList<>(terms);
+
+		for(List<String> phrase : phrases)
+			clauses.add("\"" + String.join(" ", phrase) + "\"");
+
+		for(Near clause : near)
+			clauses.add(clause.toString());
+
+		for(List<String> group : all)
+			clauses.add(String.join(" AND ", group));
+
+		for(String word : excluded)
+			clauses.add("NOT " + word);
+
+		clauses.addAll(wildcards);
+
+		Collections.sort(clauses);
+		return String.join(" ", clauses);
+	}
+
+	/**
+	 * One token of a query line: a list of cleaned words, or an operator.
+	 */
+	private static class Item {
+
+		/** Cleaned words, or null for an operator */
+		private final List<String> words;
+
+		/** Whether the words were a quoted phrase */
+		private final boolean quoted;
+
+		/** AND, OR or NOT, or null */
+		private final String operator;
+
+		/** Distance of a NEAR operator, or -1 */
+		private final int distance;
+
+		private Item(List<String> words, boolean quoted) {
+			this(words, quoted, null, -1);
+		}
+
+		private Item(String operator) {
+			this(null, false, operator, -1);
+		}
+
+		private Item(int distance) {
+			this(null, false, null, distance);
+		}
+
+		private Item(List<String> words, boolean quoted, String operator, int distance) {
+			this.words = words;
+			this.quoted = quoted;
+			this.operator = operator;
+			this.distance = distance;
+		}
+	}
+
+	/**
+	 * Two words that must appear within a number of positions of each other, in
+	 * either order.
+	 */
+	public static class Near {
+
+		public final String left;
+
+		public final String right;
+
+		/** Largest allowed difference between the positions of the two words */
+		public final int distance;
+
+		/**
+		 * Initializes a proximity clause. The words are stored in sorted order,
+		 * since the clause matches them in either order.
+		 *
+		 * @param first
+		 *            one word
+		 * @param second
+		 *            the other word
+		 * @param distance
+		 *            largest allowed difference between their positions
+		 */
+		public Near(String first, String second, int distance) {
+			boolean ordered = first.compareTo(second) <= 0;
+			this.left = ordered ? first : second;
+			this.right = ordered ? second : first;
+			this.distance = distance;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s NEAR/%d %s", left, distance, right);
+		}
+	}
+}
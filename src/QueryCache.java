@@ -0,0 +1,359 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A bounded, thread-safe, least-recently-used cache of search results. Results
+ * are keyed by search mode, result limit and the cleaned, sorted query string,
+ * and remember the index generation they were computed against. Once the
+ * index changes, the old results are treated as a miss and dropped.
+ *
+ * The cache is split into segments by key hash, each with its own lock, so
+ * concurrent searches for different queries rarely wait on each other.
+ *
+ * Identical searches that run at the same time share one computation: the
+ * first one searches the index, and the rest wait for its results.
+ *
+ * @see ThreadSafeWordIndex#generation()
+ */
+public class QueryCache {
+
+	/** The default number of results to keep when not specified. */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** Number of independently locked segments */
+	private static final int SEGMENTS = 16;
+
+	private final Segment[] segments;
+
+	/** Searches currently running, by cache key and index generation */
+	private final ConcurrentHashMap<String, CompletableFuture<Flight>> inFlight;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	private long invalidations;
+
+	private long coalesced;
+
+	/**
+	 * Initializes a cache with the default capacity.
+	 *
+	 * @see #QueryCache(int)
+	 */
+	public QueryCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Initializes a cache that keeps roughly the given number of results.
+	 *
+	 * @param capacity
+	 *            most results to keep before evicting the least recently used
+	 */
+	public QueryCache(int capacity) {
+		this.segments = new Segment[SEGMENTS];
+		this.inFlight = new ConcurrentHashMap<>();
+
+		for(int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+	}
+
+	/**
+	 * Returns the cache key for a query, search mode, ranking and result limit.
+	 *
+	 * @param sortedQueries
+	 *            cleaned, sorted query string
+	 * @param exact
+	 *            true for exact search, false for partial search
+	 * @param ranking
+	 *            how the results are ordered
+	 * @param limit
+	 *            number of results kept; zero or negative for all results
+	 * @return cache key
+	 */
+	public static String key(String sortedQueries, boolean exact, WordIndex.Ranking ranking, int limit) {
+		return (exact ? "exact:" : "partial:") + ranking.name().toLowerCase() + ":" + Math.max(0, limit) + ":"
+				+ sortedQueries;
+	}
+
+	/**
+	 * Returns the cached results for a key, as long as they were computed
+	 * against the given index generation.
+	 *
+	 * @param key
+	 *            cache key
+	 * @param generation
+	 *            current index generation
+	 * @return sorted results, or null if missing or out of date
+	 *
+	 * @see #key(String, boolean, WordIndex.Ranking, int)
+	 */
+	public List<Word> get(String key, long generation) {
+		Segment segment = segmentFor(key);
+		CachedResults entry;
+		boolean stale = false;
+
+		synchronized (segment) {
+			entry = segment.get(key);
+
+			if(entry != null && entry.generation != generation) {
+				segment.remove(key);
+				stale = true;
+				entry = null;
+			}
+		}
+
+		synchronized (this) {
+			if(entry != null) {
+				hits++;
+			}
+			else {
+				misses++;
+			}
+
+			if(stale) {
+				invalidations++;
+			}
+		}
+
+		return entry == null ? null : entry.results;
+	}
+
+	/**
+	 * Adds results to the cache.
+	 *
+	 * @param key
+	 *            cache key
+	 * @param generation
+	 *            index generation read before the search started
+	 * @param results
+	 *            sorted results of the search
+	 *
+	 * @see #key(String, boolean, WordIndex.Ranking, int)
+	 */
+	public void put(String key, long generation, List<Word> results) {
+		Segment segment = segmentFor(key);
+
+		synchronized (segment) {
+			segment.put(key, new CachedResults(generation, Collections.unmodifiableList(results)));
+		}
+	}
+
+	/**
+	 * Returns the cached results for a key if they are current. Otherwise, runs
+	 * the search and caches its results, unless an identical search against the
+	 * same index generation is already running, in which case this waits for and
+	 * returns that search's results instead.
+	 *
+	 * @param key
+	 *            cache key
+	 * @param generation
+	 *            index generation read before the search started
+	 * @param search
+	 *            search to run on a miss; should return sorted results
+	 * @return sorted results
+	 *
+	 * @see #key(String, boolean, WordIndex.Ranking, int)
+	 */
+	public List<Word> getOrSearch(String key, long generation, Supplier<List<Word>> search) {
+		return getOrSearch(key, generation, search, () -> true, () -> {});
+	}
+
+	/**
+	 * Same as {@link #getOrSearch(String, long, Supplier)}, for searches that
+	 * may be cut short. Searches waiting on this one still get its results
+	 * even if they are incomplete, but incomplete results are not cached.
+	 *
+	 * @param key
+	 *            cache key
+	 * @param generation
+	 *            index generation read before the search started
+	 * @param search
+	 *            search to run on a miss; should return sorted results
+	 * @param complete
+	 *            asked once the search has run; false if its results were cut
+	 *            short
+	 * @param partial
+	 *            run when the results returned, whether searched here or
+	 *            shared by another search, were cut short
+	 * @return sorted results
+	 *
+	 * @see #key(String, boolean, WordIndex.Ranking, int)
+	 */
+	public List<Word> getOrSearch(String key, long generation, Supplier<List<Word>> search, BooleanSupplier complete,
+			Runnable partial) {
+		List<Word> results = get(key, generation);
+
+		if(results != null) {
+			return results;
+		}
+
+		String flight = generation + "@" + key;
+		CompletableFuture<Flight> future = new CompletableFuture<>();
+		CompletableFuture<Flight> running = inFlight.putIfAbsent(flight, future);
+
+		if(running != null) {
+			synchronized (this) {
+				coalesced++;
+			}
+
+			try {
+				Flight shared = running.join();
+
+				if(!shared.complete) {
+					partial.run();
+				}
+
+				return shared.results;
+			}
+			catch (CompletionException e) {
+				throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+			}
+		}
+
+		try {
+			results = search.get();
+			boolean done = complete.getAsBoolean();
+
+			if(done) {
+				put(key, generation, results);
+			}
+			else {
+				partial.run();
+			}
+
+			future.complete(new Flight(results, done));
+			return results;
+		}
+		catch (RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			inFlight.remove(flight);
+		}
+	}
+
+	/**
+	 * Returns the segment responsible for a key.
+	 *
+	 * @param key
+	 *            cache key
+	 * @return segment for that key
+	 */
+	private Segment segmentFor(String key) {
+		return segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+	}
+
+	/**
+	 * Returns the fraction of lookups that were hits.
+	 *
+	 * @return hit ratio between 0 and 1
+	 */
+	public synchronized double hitRatio() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * Returns the number of cached results.
+	 *
+	 * @return number of entries
+	 */
+	public int size() {
+		int size = 0;
+
+		for(Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+
+		return size;
+	}
+
+	/**
+	 * Counts an entry evicted to stay within capacity.
+	 */
+	private synchronized void evicted() {
+		evictions++;
+	}
+
+	@Override
+	public String toString() {
+		// sized outside the lock, since segments lock this cache when evicting
+		int size = size();
+
+		synchronized (this) {
+			return String.format("entries: %d, hits: %d, misses: %d, hit ratio: %.1f%%, evictions: %d, invalidations: %d, "
+					+ "coalesced: %d", size, hits, misses, hitRatio() * 100, evictions, invalidations, coalesced);
+		}
+	}
+
+	/**
+	 * Cached results and the index generation they were computed against.
+	 */
+	private static class CachedResults {
+
+		private final long generation;
+
+		private final List<Word> results;
+
+		private CachedResults(long generation, List<Word> results) {
+			this.generation = generation;
+			this.results = results;
+		}
+	}
+
+	/**
+	 * Results of a running search, shared with identical searches waiting on
+	 * it.
+	 */
+	private static class Flight {
+
+		private final List<Word> results;
+
+		/** False if the search was cut short, so the results were not cached */
+		private final boolean complete;
+
+		private Flight(List<Word> results, boolean complete) {
+			this.results = results;
+			this.complete = complete;
+		}
+	}
+
+	/**
+	 * A least-recently-used map holding part of the cache. Not thread-safe; the
+	 * cache synchronizes on each segment.
+	 */
+	@SuppressWarnings("serial")
+	private class Segment extends LinkedHashMap<String, CachedResults> {
+
+		private final int capacity;
+
+		private Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedResults> eldest) {
+			if(size() > capacity) {
+				evicted();
+				return true;
+			}
+
+			return false;
+		}
+	}
+}
@@ -10,15 +10,17 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
- * Parses queries and saves the results into a HashSet.
+ * Parses queries and saves their sorted results.
  */
 public class QueryHelper {
 	
 	//TODO: make thread-safe
-	public Map<String, HashSet<Word>> queriesResults;
+	public Map<String, List<Word>> queriesResults;
 	
 	//Can be final if able to declare at initialization
 	private final Boolean exactSearch;
@@ -27,6 +29,48 @@ public class QueryHelper {
 	
 	private final WorkQueue queue;
 	
+	/** Search tasks created by this helper, so callers wait only for their own work */
+	private final WorkQueue.TaskGroup tasks;
+	
+	/** Queries already handed to a search task, so duplicates are searched once */
+	private final Set<String> searched;
+	
+	/** Results shared across helpers, or null to always search the index */
+	private final QueryCache cache;
+	
+	/** Number of results to keep per query; all results if zero or negative */
+	private final int limit;
+	
+	/** How results are ordered */
+	private final WordIndex.Ranking ranking;
+	
+	/** Largest edit distance for fuzzy search of plain words, or zero for none */
+	private final int fuzzy;
+	
+	/** Number of queries put together by each task of a batch */
+	private static final int BATCH_CHUNK = 64;
+	
+	/** Number of distinct queries read before a batch is searched */
+	private static final int BATCH_QUERIES = 8192;
+	
+	/** Where results are streamed to, or null to keep them in queriesResults */
+	private volatile SortedResultsWriter output;
+	
+	/** Milliseconds each query may search for; no limit if zero or negative */
+	private volatile long timeout;
+	
+	/** Queries whose search hit its deadline, so their results are incomplete */
+	private final Set<String> truncated;
+	
+	/** Deadlines of the searches still running, so they can be cancelled */
+	private final Set<Deadline> running;
+	
+	/** Set by cancel(), so searches that have not started yet stop right away */
+	private volatile boolean cancelled;
+	
+	/** Last result of the previous page, or null to start from the best result */
+	private volatile Word after;
+	
 	//TODO: Add and implement
 	//private ThreadSafeWordIndex idx;
 	
@@ -37,9 +81,7 @@ public class QueryHelper {
 	 * 			WorkQueue to use
 	 */
 	public QueryHelper(WorkQueue queue) {
-		this.queriesResults = new HashMap<>();
-		this.exactSearch = false;
-		this.queue = queue;
+		this(queue, false);
 	}
 	
 	/**
@@ -51,12 +93,214 @@ public class QueryHelper {
 	 * 			Sets exact search on or off.
 	 */
 	public QueryHelper(WorkQueue queue, boolean exactSearchOn) {
+		this(queue, exactSearchOn, null);
+	}
+	
+	/**
+	 * Initializes QueryHelper with a cache of results shared with other helpers.
+	 * 
+	 * @param queue
+	 * 			WorkQueue to use
+	 * @param exactSearchOn
+	 * 			Sets exact search on or off.
+	 * @param cache
+	 * 			cache of earlier results, or null to always search the index
+	 */
+	public QueryHelper(WorkQueue queue, boolean exactSearchOn, QueryCache cache) {
+		this(queue, exactSearchOn, cache, 0);
+	}
+	
+	/**
+	 * Initializes QueryHelper that keeps only the best results of each query.
+	 * 
+	 * @param queue
+	 * 			WorkQueue to use
+	 * @param exactSearchOn
+	 * 			Sets exact search on or off.
+	 * @param cache
+	 * 			cache of earlier results, or null to always search the index
+	 * @param limit
+	 * 			number of results to keep per query; all results if zero or negative
+	 * @see Word#topK(java.util.Collection, int)
+	 */
+	public QueryHelper(WorkQueue queue, boolean exactSearchOn, QueryCache cache, int limit) {
+		this(queue, exactSearchOn, cache, limit, WordIndex.Ranking.FREQUENCY);
+	}
+	
+	/**
+	 * Initializes QueryHelper that orders results by the given ranking.
+	 * 
+	 * @param queue
+	 * 			WorkQueue to use
+	 * @param exactSearchOn
+	 * 			Sets exact search on or off.
+	 * @param cache
+	 * 			cache of earlier results, or null to always search the index
+	 * @param limit
+	 * 			number of results to keep per query; all results if zero or negative
+	 * @param ranking
+	 * 			how results are ordered
+	 * @see WordIndex.Ranking
+	 */
+	public QueryHelper(WorkQueue queue, boolean exactSearchOn, QueryCache cache, int limit, WordIndex.Ranking ranking) {
+		this(queue, exactSearchOn, cache, limit, ranking, 0);
+	}
+	
+	/**
+	 * Initializes QueryHelper that can match misspelled words. With fuzzy
+	 * search on, each plain word of a query matches every word in the index
+	 * within the edit distance, and exact search is used for the rest.
+	 * 
+	 * @param queue
+	 * 			WorkQueue to use
+	 * @param exactSearchOn
+	 * 			Sets exact search on or off.
+	 * @param cache
+	 * 			cache of earlier results, or null to always search the index
+	 * @param limit
+	 * 			number of results to keep per query; all results if zero or negative
+	 * @param ranking
+	 * 			how results are ordered
+	 * @param fuzzy
+	 * 			largest edit distance for plain words, usually 1 or 2; zero to turn fuzzy search off
+	 * @see WordIndex#fuzzy(Query, int)
+	 */
+	public QueryHelper(WorkQueue queue, boolean exactSearchOn, QueryCache cache, int limit, WordIndex.Ranking ranking,
+			int fuzzy) {
 		this.queriesResults = new HashMap<>();
+		this.searched = ConcurrentHashMap.newKeySet();
 		this.exactSearch = exactSearchOn;
 		this.queue = queue;
+		this.tasks = queue.group(WorkQueue.Priority.INTERACTIVE);
+		this.cache = cache;
+		this.limit = limit;
+		this.ranking = ranking;
+		this.fuzzy = fuzzy;
+		this.timeout = 0;
+		this.truncated = ConcurrentHashMap.newKeySet();
+		this.running = ConcurrentHashMap.newKeySet();
+		this.cancelled = false;
 	}
 	
 	
+	/**
+	 * Streams results to a writer as each search finishes instead of keeping
+	 * them in queriesResults. Call before searching; the caller finishes the
+	 * writer once {@link #finish()} returns.
+	 * 
+	 * @param output
+	 * 			writer to add results to
+	 * @see SortedResultsWriter#finish()
+	 */
+	public void streamTo(SortedResultsWriter output) {
+		this.output = output;
+	}
+	
+	/**
+	 * Limits how long each query may search. A query that runs out of time keeps
+	 * the best results found so far and is marked as truncated. Call before
+	 * searching.
+	 * 
+	 * @param millis
+	 * 			milliseconds per query; zero or negative for no limit
+	 * @see #isTruncated(String)
+	 */
+	public void setTimeout(long millis) {
+		this.timeout = millis;
+	}
+	
+	/**
+	 * Keeps only the results that come after a given result, for showing the
+	 * next page of a search. Call before searching. With a cache, every result
+	 * of the query is ranked once and cached, and each page is cut from that.
+	 * 
+	 * @param after
+	 * 			last result of the previous page, or null to start from the best
+	 * @see Cursor
+	 */
+	public void setAfter(Word after) {
+		this.after = after;
+	}
+	
+	/**
+	 * Stops the searches of this helper. Searches running with a timeout stop
+	 * at their next check and keep the results found so far, and searches that
+	 * have not started yet stop at their first check. Either way their queries
+	 * are marked as truncated.
+	 */
+	public void cancel() {
+		cancelled = true;
+		
+		for(Deadline deadline : running)
+			deadline.cancel();
+	}
+	
+	/**
+	 * Tests whether the results of a query are incomplete because its search
+	 * hit the timeout or was cancelled.
+	 * 
+	 * @param query
+	 * 			query as returned by {@link #copyQueries()}
+	 * @return true if the results were cut short
+	 */
+	public boolean isTruncated(String query) {
+		return truncated.contains(query);
+	}
+	
+	/**
+	 * Returns a new deadline for one search and remembers it until the search
+	 * is done, so it can be cancelled.
+	 * 
+	 * @return deadline that expires after the timeout
+	 * @see #done(String, Deadline)
+	 */
+	private Deadline start() {
+		Deadline deadline = Deadline.after(timeout);
+		running.add(deadline);
+		
+		/** Checked after adding, so a cancel() in between is not missed */
+		if(cancelled)
+			deadline.cancel();
+		
+		return deadline;
+	}
+	
+	/**
+	 * Forgets the deadline of a finished search and marks its query if the
+	 * search was cut short.
+	 * 
+	 * @param query
+	 * 			query that was searched
+	 * @param deadline
+	 * 			deadline of the search
+	 */
+	private void done(String query, Deadline deadline) {
+		running.remove(deadline);
+		
+		if(deadline.truncated())
+			truncated.add(query);
+	}
+	
+	/**
+	 * Saves the results of a query, either to the stream or to queriesResults.
+	 * 
+	 * @param query
+	 * 			query the results are for
+	 * @param results
+	 * 			sorted results of the query, kept as they are
+	 */
+	private void save(String query, List<Word> results) {
+		
+		if(output != null) {
+			output.add(query, results, truncated.contains(query));
+			return;
+		}
+		
+		synchronized(queriesResults) {
+			queriesResults.put(query, results);
+		}
+	}
+	
 	/**
 	 * Sorts a string of queries alphabetically.
 	 * 
@@ -95,12 +339,11 @@ public class QueryHelper {
 				
 				//System.out.println("Original query: " + str);
 				
-				String cleanedTxt = cleanTxt(str);
+				Query query = Query.parse(str);
 				
-				if(!cleanedTxt.isEmpty()) {
-					String sortedQueries = sortQueries(cleanedTxt);
-					if(!queriesResults.containsKey(sortedQueries))
-						search(sortedQueries, wordIndex);
+				if(!query.isEmpty()) {
+					if(searched.add(query.toString()))
+						search(query, wordIndex);
 				}	
 					
 			}
@@ -110,75 +353,243 @@ public class QueryHelper {
 	}
 	
 	/**
-	 * Parses file and searches line by line and creates a new task for each query.
+	 * Parses the file and searches it in batches of {@link #BATCH_QUERIES}
+	 * distinct queries. Queries of only plain words share their work: each
+	 * distinct query word of a batch is expanded and its posting lists read
+	 * once, by one task per word, and then each query's results are put
+	 * together from the words it contains. Other queries, and every query when
+	 * ranking by score or searching fuzzily, get a search task of their own as
+	 * before.
 	 * 
 	 * @param path
 	 * 			Query file location
 	 * @param wordIndex
 	 * 			ThreadSafeWordIndex to search from
 	 * @throws IOException
-	 * @see {@link WorkQueue#execute(Runnable)}
+	 * @see WordIndex#matches(String, boolean)
+	 * @see WordIndex#search(List)
 	 */
 	public void parseAndSearchFile(Path path, ThreadSafeWordIndex wordIndex) throws IOException {
 		
+		List<Query> batch = new ArrayList<>();
+		
 		try(
 				BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
 		){
 			String str = null;
 			
-			while((str = reader.readLine()) != null)	
-				parseAndSearchString(str, wordIndex);					
+			while((str = reader.readLine()) != null) {
+				Query query = Query.parse(str);
+				
+				if(!batchable(query))
+					queueSearch(query, wordIndex);
+				else if(searched.add(query.toString()))
+					batch.add(query);
+				
+				if(batch.size() == BATCH_QUERIES) {
+					searchBatch(batch, wordIndex);
+					batch = new ArrayList<>();
+				}
+			}
 		}
 		
+		searchBatch(batch, wordIndex);
+	}
+	
+	/**
+	 * Tests whether a query can be searched as part of a batch.
+	 * 
+	 * @param query
+	 * 			parsed query
+	 * @return true if the query has only plain words, results are ranked by
+	 * 			frequency, and there is no timeout or cursor
+	 */
+	private boolean batchable(Query query) {
+		return ranking == WordIndex.Ranking.FREQUENCY && fuzzy == 0 && timeout <= 0 && after == null && !query.terms().isEmpty()
+				&& query.phrases().isEmpty() && query.near().isEmpty() && query.all().isEmpty()
+				&& query.excluded().isEmpty() && query.wildcards().isEmpty();
+	}
+	
+	/**
+	 * Searches a batch of distinct queries of plain words. Waits for every
+	 * query word to be matched, then queues tasks that put the results of the
+	 * queries together; call {@link #finish()} to wait for those.
+	 * 
+	 * @param batch
+	 * 			distinct queries of plain words
+	 * @param wordIndex
+	 * 			index to search
+	 */
+	private void searchBatch(List<Query> batch, ThreadSafeWordIndex wordIndex) {
+		
+		Map<String, WordIndex.Matches> matches = new ConcurrentHashMap<>();
+		Set<String> words = new HashSet<>();
+		
+		for(Query query : batch)
+			words.addAll(query.terms());
+		
+		WorkQueue.TaskGroup matching = queue.group(WorkQueue.Priority.INTERACTIVE);
+		
+		for(String word : words)
+			matching.execute(new MatchTask(word, matches, wordIndex));
+		
+		matching.finish();
+		
+		for(int i = 0; i < batch.size(); i += BATCH_CHUNK)
+			tasks.execute(new BatchSearchTask(batch.subList(i, Math.min(i + BATCH_CHUNK, batch.size())), matches, wordIndex));
 	}
 	
 	/**
-	 * Parses string and puts search tasks in the queue.
+	 * Parses string and puts search tasks in the queue. Besides plain words, the
+	 * string may contain quoted phrases and NEAR/k proximity clauses.
 	 * 
 	 * @param str
 	 * 			String to parse and search
 	 * @param wordIndex
 	 * 			index to populate
+	 * @see Query#parse(String)
 	 */
 	public void parseAndSearchString(String str, ThreadSafeWordIndex wordIndex) {
-		String cleanedTxt = cleanTxt(str);
+		queueSearch(Query.parse(str), wordIndex);
+	}
+	
+	/**
+	 * Puts a search task for a query in the queue, unless the query is empty or
+	 * was already searched.
+	 * 
+	 * @param query
+	 * 			parsed query
+	 * @param wordIndex
+	 * 			index to search
+	 */
+	private void queueSearch(Query query, ThreadSafeWordIndex wordIndex) {
 		
-		if(!cleanedTxt.isEmpty()) {
-			String sortedQueries = sortQueries(cleanedTxt);
-			if(!queriesResults.containsKey(sortedQueries)) {
+		if(!query.isEmpty()) {
+			/** Checked when queued rather than when finished, so duplicate lines never search twice */
+			if(searched.add(query.toString())) {
 				if(exactSearch)
-					queue.execute(new ExactSearchTask(sortedQueries, wordIndex));
+					tasks.execute(new ExactSearchTask(query, wordIndex));
 				else
-					queue.execute(new PartialSearchTask(sortedQueries, wordIndex));
+					tasks.execute(new PartialSearchTask(query, wordIndex));
 			}
 			
 		}
 	}
 	
+	/**
+	 * Waits for the searches started by this helper to finish. Other work in the
+	 * shared queue is not waited on.
+	 * 
+	 * @see WorkQueue.TaskGroup#finish()
+	 */
+	public void finish() {
+		tasks.finish();
+	}
+	
 	/** 
 	 * Use appropriate search from WordIndex and save results.
 	 * 
-	 * @param queriesStr
-	 * 			String of queries
+	 * @param query
+	 * 			parsed query
 	 * @param wordIndex
 	 * 			WordIndex to search from
-	 * @see WordIndex#exactSearch(List)
-	 * @see WordIndex#partialSearch(List)
+	 * @see WordIndex#search(Query, boolean, WordIndex.Ranking, int)
 	 */
-	private void search(String queriesStr, WordIndex wordIndex){
+	private void search(Query query, WordIndex wordIndex){
+		
+		Deadline deadline = start();
+		List<Word> results;
+		
+		if(fuzzy > 0)
+			results = wordIndex.search(wordIndex.fuzzy(query, fuzzy), true, ranking, limit, deadline, after);
+		else
+			results = wordIndex.search(query, exactSearch, ranking, limit, deadline, after);
+		
+		done(query.toString(), deadline);
+		save(query.toString(), results);
+	}
+
+	/**
+	 * Searches the index, using the cache when the cached results are still
+	 * current for this index.
+	 * 
+	 * @param query
+	 * 			parsed query
+	 * @param wordIndex
+	 * 			index to search
+	 * @return search results
+	 * @see QueryCache
+	 * @see ThreadSafeWordIndex#generation()
+	 */
+	private List<Word> search(Query query, ThreadSafeWordIndex wordIndex) {
+		
+		/** Read before searching, so a merge during the search leaves the entry out of date */
+		long generation = wordIndex.generation();
+		
+		/** A fuzzy query is an exact search for the words it expands to */
+		Query searched = fuzzy > 0 ? wordIndex.fuzzy(query, fuzzy) : query;
+		boolean exact = exactSearch || fuzzy > 0;
+		
+		/** Later pages rank every result once and cache that, then each page is a slice of it */
+		Word cursor = after;
+		int k = cursor == null ? limit : 0;
+		String key = QueryCache.key(searched.toString(), exact, ranking, k);
+		List<Word> results;
+		
+		if(timeout > 0 || cancelled) {
+			Deadline deadline = start();
 			
-		List<String> queriesList = Arrays.asList(queriesStr.split(" "));
+			if(cache == null) {
+				results = wordIndex.search(searched, exact, ranking, k, deadline);
+			}
+			else {
+				/** Identical searches still share one run, but results cut short are never cached */
+				results = cache.getOrSearch(key, generation, () -> wordIndex.search(searched, exact, ranking, k, deadline),
+						() -> !deadline.truncated(), () -> truncated.add(query.toString()));
+			}
+			
+			done(query.toString(), deadline);
+		}
+		else if(cache == null) {
+			results = wordIndex.search(searched, exact, ranking, k);
+		}
+		else {
+			results = cache.getOrSearch(key, generation, () -> wordIndex.search(searched, exact, ranking, k));
+		}
+		
+		return cursor == null ? results : page(results, cursor, limit);
+	}
+	
+	/**
+	 * Returns the results that come right after a cursor, from a sorted list
+	 * of all the results. The start of the page is found by binary search.
+	 * 
+	 * @param ranked
+	 * 			every result, sorted by natural order
+	 * @param after
+	 * 			last result of the previous page
+	 * @param limit
+	 * 			page size; all remaining results if zero or negative
+	 * @return
+	 * 			at most limit results after the cursor, sorted
+	 * @see Word#follows(Word)
+	 */
+	private static List<Word> page(List<Word> ranked, Word after, int limit) {
+		
+		int low = 0;
+		int high = ranked.size();
 		
-		HashSet<Word> resultsHashSet = new HashSet<>();
+		while(low < high) {
+			int mid = (low + high) >>> 1;
 			
-		if(exactSearch)	
-			resultsHashSet.addAll(wordIndex.exactSearch(queriesList));
-				
-		else	
-			resultsHashSet.addAll(wordIndex.partialSearch(queriesList));
-
-
-		queriesResults.put(queriesStr, resultsHashSet);
+			if(ranked.get(mid).follows(after))
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		
+		int end = limit > 0 ? Math.min(ranked.size(), low + limit) : ranked.size();
+		return new ArrayList<>(ranked.subList(low, end));
 	}
 
 	/**
@@ -195,8 +606,6 @@ public class QueryHelper {
 		
 		private List<String> queriesList;
 		
-		private HashSet<Word> resultsHashSet;
-		
 		/**
 		 * Initializes SearchTask
 		 * 
@@ -208,23 +617,24 @@ public class QueryHelper {
 		public SearchTask(String queriesStr, ThreadSafeWordIndex wordIndex) {
 			this.queriesStr = queriesStr;
 			this.queriesList = Arrays.asList(queriesStr.split(" "));
-			this.resultsHashSet = new HashSet<>();
 			this.idx = wordIndex;
 		}
 	
 		@Override
 		public void run() {
 			
+			List<Word> results;
+			
 			if(exactSearch) {
-				resultsHashSet.addAll(idx.exactSearch(queriesList));
+				results = idx.exactSearch(queriesList, limit);
 			}			
 			else	{
-				resultsHashSet.addAll(idx.partialSearch(queriesList));	
+				results = idx.partialSearch(queriesList, limit);	
 			}
 			
 			//safely update global results
 			synchronized(queriesResults) {
-				queriesResults.put(queriesStr, resultsHashSet);
+				queriesResults.put(queriesStr, results);
 				//System.out.println("queriesResults now: " + queriesResults.toString());
 			}
 			
@@ -232,62 +642,99 @@ public class QueryHelper {
 		
 	}
 	
-	public class ExactSearchTask implements Runnable{
-
-		private ThreadSafeWordIndex idx;
+	/**
+	 * Matches one query word of a batch.
+	 * 
+	 * @see WordIndex#matches(String, boolean)
+	 */
+	private class MatchTask implements Runnable{
 		
-		private String queriesStr;
+		private final String word;
 		
-		private List<String> queriesList;
+		private final Map<String, WordIndex.Matches> matches;
 		
-		private HashSet<Word> resultsHashSet;
+		private final ThreadSafeWordIndex idx;
 		
-		public ExactSearchTask(String queriesStr, ThreadSafeWordIndex wordIndex) {
-			this.queriesStr = queriesStr;
-			this.queriesList = Arrays.asList(queriesStr.split(" "));
-			this.resultsHashSet = new HashSet<>();
+		public MatchTask(String word, Map<String, WordIndex.Matches> matches, ThreadSafeWordIndex wordIndex) {
+			this.word = word;
+			this.matches = matches;
+			this.idx = wordIndex;
+		}
+		
+		@Override
+		public void run() {
+			matches.put(word, idx.matches(word, exactSearch));
+		}
+		
+	}
+	
+	/**
+	 * Puts together the results of some queries of a batch from the matches of
+	 * their words.
+	 * 
+	 * @see WordIndex#search(List)
+	 */
+	private class BatchSearchTask implements Runnable{
+		
+		private final List<Query> queries;
+		
+		private final Map<String, WordIndex.Matches> matches;
+		
+		private final ThreadSafeWordIndex idx;
+		
+		public BatchSearchTask(List<Query> queries, Map<String, WordIndex.Matches> matches, ThreadSafeWordIndex wordIndex) {
+			this.queries = queries;
+			this.matches = matches;
 			this.idx = wordIndex;
 		}
 		
 		@Override
 		public void run() {
-			resultsHashSet.addAll(idx.exactSearch(queriesList));
-			
 			
-			synchronized(queriesResults) {
-				queriesResults.put(queriesStr, resultsHashSet);
-				//System.out.println("queriesResults now: " + queriesResults.toString());
+			for(Query query : queries) {
+				List<WordIndex.Matches> list = new ArrayList<>();
+				
+				for(String term : query.terms())
+					list.add(matches.get(term));
+				
+				save(query.toString(), idx.search(list, limit));
 			}
 		}
 		
 	}
 	
-	public class PartialSearchTask implements Runnable{
+	public class ExactSearchTask implements Runnable{
 
 		private ThreadSafeWordIndex idx;
 		
-		private String queriesStr;
+		private Query query;
 		
-		private List<String> queriesList;
+		public ExactSearchTask(Query query, ThreadSafeWordIndex wordIndex) {
+			this.query = query;
+			this.idx = wordIndex;
+		}
+		
+		@Override
+		public void run() {
+			save(query.toString(), search(query, idx));
+		}
 		
-		private HashSet<Word> resultsHashSet;
+	}
+	
+	public class PartialSearchTask implements Runnable{
+
+		private ThreadSafeWordIndex idx;
 		
-		public PartialSearchTask(String queriesStr, ThreadSafeWordIndex wordIndex) {
-			this.queriesStr = queriesStr;
-			this.queriesList = Arrays.asList(queriesStr.split(" "));
-			this.resultsHashSet = new HashSet<>();
+		private Query query;
+		
+		public PartialSearchTask(Query query, ThreadSafeWordIndex wordIndex) {
+			this.query = query;
 			this.idx = wordIndex;
 		}
 		
 		@Override
 		public void run() {
-			resultsHashSet.addAll(idx.partialSearch(queriesList));
-			
-			
-			synchronized(queriesResults) {
-				queriesResults.put(queriesStr, resultsHashSet);
-				//System.out.println("queriesResults now: " + queriesResults.toString());
-			}
+			save(query.toString(), search(query, idx));
 		}
 		
 	}
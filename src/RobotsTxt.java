@@ -0,0 +1,190 @@
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The rules of one host's robots.txt that apply to this crawler.
+ *
+ * Rules are read the way RFC 9309 gives them. The crawler sends no
+ * User-agent of its own, so only the groups for "*" apply, and all of them
+ * are joined together. Of the Allow and Disallow rules that match a path, the
+ * longest wins, and Allow wins a tie. A rule's path may use "*" for any
+ * characters and end with "$" to match only at the end of the path. The
+ * Crawl-delay line most sites use is also kept, though it is not part of the
+ * standard.
+ *
+ * @see CrawlFrontier
+ */
+public class RobotsTxt {
+
+	/** Rules for a host with no robots.txt, which allow everything */
+	public static final RobotsTxt ALLOW_ALL = new RobotsTxt(new ArrayList<>(), 0);
+
+	/** Rules for a host whose robots.txt could not be read, which allow nothing */
+	public static final RobotsTxt DISALLOW_ALL;
+
+	static {
+		List<Rule> rules = new ArrayList<>();
+		rules.add(new Rule("/", false));
+		DISALLOW_ALL = new RobotsTxt(rules, 0);
+	}
+
+	/** Allow and Disallow rules, in the order they were read */
+	private final List<Rule> rules;
+
+	/** Delay asked for between requests, in milliseconds, or 0 */
+	private final long crawlDelay;
+
+	/**
+	 * Initializes rules.
+	 */
+	private RobotsTxt(List<Rule> rules, long crawlDelay) {
+		this.rules = rules;
+		this.crawlDelay = crawlDelay;
+	}
+
+	/**
+	 * Reads the rules for "*" out of a robots.txt file.
+	 *
+	 * @param text
+	 *            contents of robots.txt
+	 * @return rules that apply to this crawler
+	 */
+	public static RobotsTxt parse(String text) {
+		List<Rule> rules = new ArrayList<>();
+		long crawlDelay = 0;
+
+		/** A group starts with one or more User-agent lines */
+		boolean inAgents = false;
+		boolean applies = false;
+
+		for(String line : text.split("\r\n|\r|\n")) {
+			int hash = line.indexOf('#');
+
+			if(hash >= 0) {
+				line = line.substring(0, hash);
+			}
+
+			int colon = line.indexOf(':');
+
+			if(colon < 0) {
+				continue;
+			}
+
+			String key = line.substring(0, colon).trim().toLowerCase();
+			String value = line.substring(colon + 1).trim();
+
+			if(key.equals("user-agent")) {
+				if(!inAgents) {
+					applies = false;
+					inAgents = true;
+				}
+
+				applies = applies || value.equals("*");
+				continue;
+			}
+
+			inAgents = false;
+
+			if(!applies) {
+				continue;
+			}
+
+			if(key.equals("allow") || key.equals("disallow")) {
+				/** An empty Disallow disallows nothing */
+				if(!value.isEmpty()) {
+					rules.add(new Rule(value, key.equals("allow")));
+				}
+			}
+			else if(key.equals("crawl-delay")) {
+				try {
+					crawlDelay = Math.max(crawlDelay, (long) (Double.parseDouble(value) * 1000));
+				}
+				catch(NumberFormatException e) {
+					// Ignores a delay that is not a number
+				}
+			}
+		}
+
+		return new RobotsTxt(rules, crawlDelay);
+	}
+
+	/**
+	 * Tests whether the crawler may fetch a url.
+	 *
+	 * @param url
+	 *            url on the host these rules are for
+	 * @return true if allowed
+	 */
+	public boolean allowed(URL url) {
+		String path = url.getFile().isEmpty() ? "/" : url.getFile();
+		Rule best = null;
+
+		for(Rule rule : rules) {
+			if(rule.matches(path) && (best == null || rule.length > best.length
+					|| rule.length == best.length && rule.allow)) {
+				best = rule;
+			}
+		}
+
+		return best == null || best.allow;
+	}
+
+	/**
+	 * Returns the delay robots.txt asks for between requests.
+	 *
+	 * @return delay in milliseconds, or 0 if none was given
+	 */
+	public long crawlDelay() {
+		return crawlDelay;
+	}
+
+	/**
+	 * One Allow or Disallow line.
+	 */
+	private static class Rule {
+
+		/** Matches the start of the paths the rule is for */
+		private final Pattern pattern;
+
+		/** Length of the rule's path, which decides between rules */
+		private final int length;
+
+		/** True for Allow, false for Disallow */
+		private final boolean allow;
+
+		private Rule(String path, boolean allow) {
+			StringBuilder regex = new StringBuilder();
+			boolean end = path.endsWith("$");
+			String[] parts = (end ? path.substring(0, path.length() - 1) : path).split("\\*", -1);
+
+			for(int i = 0; i < parts.length; i++) {
+				if(i > 0) {
+					regex.append(".*");
+				}
+
+				regex.append(Pattern.quote(parts[i]));
+			}
+
+			if(end) {
+				regex.append("$");
+			}
+
+			this.pattern = Pattern.compile(regex.toString(), Pattern.DOTALL);
+			this.length = path.length();
+			this.allow = allow;
+		}
+
+		/**
+		 * Tests whether the rule is for a path.
+		 *
+		 * @param path
+		 *            path and query of a url
+		 * @return true if the rule matches the start of the path
+		 */
+		private boolean matches(String path) {
+			return pattern.matcher(path).lookingAt();
+		}
+	}
+}
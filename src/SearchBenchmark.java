@@ -0,0 +1,130 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares pruned and exhaustive BM25 top-k search on long multi-word
+ * queries. Builds an index, makes random queries out of the most common words,
+ * checks that both searches return the same results, and prints how long each
+ * took and how many documents each scored.
+ *
+ * Usage: <code>java SearchBenchmark -path dir [-queries n] [-words n] [-top k] [-exact]</code>
+ *
+ * @see WordIndex#search(Query, boolean, WordIndex.Ranking, int)
+ */
+public class SearchBenchmark {
+
+	/** Number of most common words to pick query words from */
+	private static final int COMMON = 200;
+
+	public static void main(String[] args) {
+
+		ArgumentMap argMap = new ArgumentMap(args);
+
+		if(!argMap.hasValue("-path")) {
+			System.out.println("usage: SearchBenchmark -path dir [-queries n] [-words n] [-top k] [-exact]");
+			return;
+		}
+
+		int queries = argMap.getInt("-queries", 200);
+		int words = argMap.getInt("-words", 8);
+		int top = argMap.getInt("-top", 10);
+		boolean exact = argMap.hasFlag("-exact");
+
+		WorkQueue queue = new WorkQueue();
+		ThreadSafeWordIndex index = new ThreadSafeWordIndex();
+
+		long start = System.nanoTime();
+		new IndexHelper(index, queue).dirTraverse(new File(argMap.getString("-path")));
+		queue.finish();
+		queue.shutdown();
+		System.out.printf("indexed %d words in %.1f ms%n", index.words(), (System.nanoTime() - start) / 1e6);
+
+		/** Common words make the most expensive queries */
+		List<String> vocabulary = index.copyWords();
+		vocabulary.sort((a, b) -> Integer.compare(index.copyPaths(b).size(), index.copyPaths(a).size()));
+		List<String> common = vocabulary.subList(0, Math.min(COMMON, vocabulary.size()));
+
+		Random random = new Random(42);
+		List<Query> list = new ArrayList<>();
+
+		for(int i = 0; i < queries; i++) {
+			List<String> terms = new ArrayList<>();
+
+			for(int j = 0; j < words; j++)
+				terms.add(common.get(random.nextInt(common.size())));
+
+			list.add(new Query(terms));
+		}
+
+		/** Once untimed, so both sides run warm and the score bounds are cached */
+		run(index, list, exact, top, true);
+		run(index, list, exact, top, false);
+
+		long exhaustiveScored = 0;
+		long exhaustiveNanos = 0;
+		long prunedNanos = 0;
+		long before = index.scoredDocuments();
+		int mismatches = 0;
+
+		for(Query query : list) {
+			long t0 = System.nanoTime();
+			List<Word> all = Word.topK(index.search(query, exact, WordIndex.Ranking.BM25), top);
+			long t1 = System.nanoTime();
+			List<Word> pruned = index.search(query, exact, WordIndex.Ranking.BM25, top);
+			long t2 = System.nanoTime();
+
+			exhaustiveNanos += t1 - t0;
+			prunedNanos += t2 - t1;
+			exhaustiveScored += index.search(query, exact, WordIndex.Ranking.BM25).size();
+
+			if(!same(all, pruned)) {
+				mismatches++;
+			}
+		}
+
+		long prunedScored = index.scoredDocuments() - before;
+
+		System.out.printf("%d queries of %d words, top %d, %s search%n", queries, words, top, exact ? "exact" : "partial");
+		System.out.printf("exhaustive: %.1f ms, %d documents scored%n", exhaustiveNanos / 1e6, exhaustiveScored);
+		System.out.printf("pruned:     %.1f ms, %d documents scored%n", prunedNanos / 1e6, prunedScored);
+		System.out.printf("mismatched results: %d%n", mismatches);
+	}
+
+	/**
+	 * Runs every query once with one kind of search, ignoring the results.
+	 */
+	private static void run(WordIndex index, List<Query> list, boolean exact, int top, boolean exhaustive) {
+		for(Query query : list) {
+			if(exhaustive) {
+				Word.topK(index.search(query, exact, WordIndex.Ranking.BM25), top);
+			}
+			else {
+				index.search(query, exact, WordIndex.Ranking.BM25, top);
+			}
+		}
+	}
+
+	/**
+	 * Tests whether two result lists have the same paths, counts, positions and
+	 * scores in the same order.
+	 */
+	private static boolean same(List<Word> a, List<Word> b) {
+		if(a.size() != b.size()) {
+			return false;
+		}
+
+		for(int i = 0; i < a.size(); i++) {
+			Word x = a.get(i);
+			Word y = b.get(i);
+
+			if(!x.getPath().equals(y.getPath()) || x.getFrequency() != y.getFrequency()
+					|| x.getPosition() != y.getPosition() || Double.compare(x.getScore(), y.getScore()) != 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -3,12 +3,14 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.TreeSet;
 
 import javax.servlet.ServletException;
@@ -29,10 +31,66 @@ public class SearchEngineServer {
 
 	public static final int PORT = 8080;
 	
-	private static WorkQueue queue = new WorkQueue(5);
+	private static WorkQueue queue = new WorkQueue(WorkQueue.DEFAULT, WorkQueue.DEFAULT_MAX);
 	
 	private static final int limit = 50;
 	
+	/** Number of results shown per search */
+	private static final int RESULTS = 50;
+	
+	/** Search results shared by every request, invalidated when the index changes */
+	private static final QueryCache cache = new QueryCache(QueryCache.DEFAULT_CAPACITY);
+	
+	/** Milliseconds each search may take before showing what it found so far; no limit if zero */
+	private static volatile long timeout = 0;
+	
+	/**
+	 * Sets the time limit for every search on the server. Searches that run out
+	 * of time show the best results found so far.
+	 * 
+	 * @param millis
+	 * 			milliseconds per search; zero or negative for no limit
+	 */
+	public static void setTimeout(long millis) {
+		timeout = millis;
+	}
+	
+	/** Cleaned text of the indexed documents for snippets, or null to show none */
+	private static volatile DocumentStore store = null;
+	
+	/**
+	 * Sets where the text of indexed documents is kept. Result pages show a
+	 * snippet of each document around its first match, and new crawls add to
+	 * the store.
+	 * 
+	 * @param documents
+	 * 			store of cleaned document text, or null to show no snippets
+	 */
+	public static void setDocumentStore(DocumentStore documents) {
+		store = documents;
+	}
+	
+	/** Least time between the starts of two fetches from a host in new crawls, in milliseconds */
+	private static volatile long crawlDelay = CrawlFrontier.DEFAULT_DELAY_MILLIS;
+	
+	/** Most fetches in flight to one host in new crawls */
+	private static volatile int crawlPerHost = CrawlFrontier.DEFAULT_PER_HOST;
+	
+	/**
+	 * Sets how gently new crawls started from the server treat each host.
+	 * 
+	 * @param delay
+	 * 			least time between the starts of two fetches from a host, in
+	 * 			milliseconds
+	 * @param perHost
+	 * 			most fetches in flight to one host
+	 * @see CrawlFrontier
+	 */
+	public static void setCrawlLimits(long delay, int perHost) {
+		crawlDelay = delay;
+		crawlPerHost = perHost;
+	}
+	
 	public static void main(String[] args) throws Exception {
 		
 		ServletContextHandler servletContext = new ServletContextHandler(ServletContextHandler.SESSIONS);
@@ -42,6 +100,7 @@ public class SearchEngineServer {
 		servletContext.addServlet(SearchHistoryServlet.class, "/searched");
 		servletContext.addServlet(SavedLinksServlet.class, "/saved");
 		servletContext.addServlet(VisitedHistoryServlet.class, "/visited");
+		servletContext.addServlet(MetricsServlet.class, "/metrics");
 		
 		// default handler for favicon.ico requests
 		DefaultHandler defaultHandler = new DefaultHandler();
@@ -62,11 +121,40 @@ public class SearchEngineServer {
 	}
 	
 	private static void buildIndexWith(ThreadSafeWordIndex idx, URL url) {
-		WebCrawler webCrawler = new WebCrawler(idx, queue, url, limit);
+		WebCrawler webCrawler = new WebCrawler(idx, queue, url, limit, store, crawlDelay, crawlPerHost);
 		webCrawler.crawl();
-		queue.finish();
+		webCrawler.finish();
 	}
 
+	@SuppressWarnings("serial")
+	public static class MetricsServlet extends HttpServlet {
+		
+		private static final String TITLE = "Work Queue Metrics";
+		
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response)
+				throws ServletException, IOException {
+			System.out.println(Thread.currentThread().getName() + ": " + request.getRequestURI());
+			
+			response.setContentType("text/html");
+			PrintWriter out = response.getWriter();
+			
+			out.printf("<html>%n");
+			out.printf("<head><title>%s</title></head>%n", TITLE);
+			out.printf("<body>%n");
+			out.printf("<h3>%s</h3>%n", TITLE);
+			out.printf("<pre>%s</pre>%n", queue.metrics());
+			out.printf("<h3>Query Cache</h3>%n");
+			out.printf("<pre>%s</pre>%n", cache);
+			out.printf("</body>%n");
+			out.printf("</html>%n");
+			
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.flushBuffer();
+		}
+		
+	}
+	
 	@SuppressWarnings("serial")
 	public static class NewCrawlServlet extends HttpServlet{
 		
@@ -114,6 +202,9 @@ public class SearchEngineServer {
 		
 		private static final String TITLE = "Search Engine";
 		
+		/** Words shown on each side of the first match in a snippet */
+		private static final int SNIPPET_RADIUS = 12;
+		
 		@Override
 		protected void doGet(HttpServletRequest request, HttpServletResponse response)
 				throws ServletException, IOException {
@@ -149,6 +240,16 @@ public class SearchEngineServer {
 			out.printf("<form>%n");
 			out.printf("<h3>Query: </h3>%n");
 			out.printf("<input type=\"text\" name=\"query\" size=\"30\"/>");
+			out.printf("<select name=\"rank\">");
+			out.printf("<option value=\"frequency\">Frequency</option>");
+			out.printf("<option value=\"bm25\">BM25</option>");
+			out.printf("<option value=\"bm25f\">BM25 with title boost</option>");
+			out.printf("</select>");
+			out.printf("<select name=\"fuzzy\">");
+			out.printf("<option value=\"0\">Exact spelling</option>");
+			out.printf("<option value=\"1\">Allow 1 typo</option>");
+			out.printf("<option value=\"2\">Allow 2 typos</option>");
+			out.printf("</select>");
 			out.printf("<input type=\"submit\" value=\"Search\">%n");
 			out.printf("</form>%n");
 			
@@ -229,21 +330,44 @@ public class SearchEngineServer {
 			
 			PrintWriter out = response.getWriter();
 			
-			QueryHelper queryHelper = new QueryHelper(queue, false);
+			WordIndex.Ranking ranking = WordIndex.Ranking.of(request.getParameter("rank"));
+			int fuzzy = fuzzyDistance(request);
+			QueryHelper queryHelper = new QueryHelper(queue, false, cache, RESULTS, ranking, fuzzy);
+			queryHelper.setTimeout(timeout);
+			
+			/** A cursor from the previous page starts this page right after its last result */
+			String search = query + "\t" + ranking + "\t" + fuzzy;
+			Cursor cursor = Cursor.decode(request.getParameter("cursor"), search);
+			long generation = Driver.wordIndex.generation();
+			
+			if(cursor != null)
+				queryHelper.setAfter(cursor.last());
 			
 			long start = System.currentTimeMillis();
 			queryHelper.parseAndSearchString(query, Driver.wordIndex);
-			queue.finish();
+			queryHelper.finish();
 			long totalTime = System.currentTimeMillis() - start;
 			
 			TreeSet<String> queriesTreeSet = new TreeSet<>(queryHelper.copyQueries());
 			
+			/** Fuzzy searches match the words their query words expand to, exactly */
+			Query parsed = Query.parse(query);
+			
+			if(fuzzy > 0)
+				parsed = Driver.wordIndex.fuzzy(parsed, fuzzy);
 			
 			//Note: TreeSet should only be one in size
 			for(String q : queriesTreeSet) {
 				
 				List<Word> resultsList = Word.listByNaturalOrder(queryHelper.copyResults(q));
-				out.printf("<h3>%d results for \"%s\" in %d milli seconds</h3>%n", resultsList.size(), query, totalTime);
+				out.printf("<h3>%s %d results for \"%s\" in %d milli seconds</h3>%n", cursor == null ? "Top" : "Next",
+						resultsList.size(), escape(query), totalTime);
+				
+				if(cursor != null && cursor.generation() != generation)
+					out.printf("<p>The index changed since the previous page, so some results may have moved.</p>%n");
+				
+				if(queryHelper.isTruncated(q))
+					out.printf("<p>This search took too long, so these are only the best results found in time.</p>%n");
 
 				for(int i= 0; i < resultsList.size(); i++) {
 					out.printf("<form method=\"post\" action=\"%s\">%n", request.getServletPath());
@@ -253,13 +377,117 @@ public class SearchEngineServer {
 					out.printf("<input type=\"hidden\" name=\"link\" value=\"%s\">", path);
 					//out.printf("<a href=\"%s\">%s</a> <input type=\"submit\" value=\"Save\"> <br>", path, getFileName(path));
 					out.printf("<a href=\"http://localhost:8080/visited?add=%s\">%s</a> <input type=\"submit\" value=\"Save\"> <br>", path, getFileName(path));
+					
+					if(store != null)
+						out.printf("<small>%s</small>%n", snippet(resultsList.get(i), parsed, fuzzy > 0));
+					
 					out.printf("</form>\n%n");
 				}
 				
+				/** A full page may have more after it */
+				if(resultsList.size() == RESULTS) {
+					String next = Cursor.encode(search, generation, resultsList.get(resultsList.size() - 1));
+					out.printf("<a href=\"%s?query=%s&rank=%s&fuzzy=%d&cursor=%s\">Next page</a>%n", request.getServletPath(),
+							URLEncoder.encode(query, "UTF-8"), ranking.name().toLowerCase(), fuzzy, next);
+				}
+				
 			}
 		
 		}
 
+		/**
+		 * Returns the stored text around the first match of a result as HTML,
+		 * with the words the query matches in bold. Only reads the blocks of
+		 * the document the snippet is in.
+		 * 
+		 * @param result
+		 * 			search result
+		 * @param query
+		 * 			parsed query
+		 * @param exact
+		 * 			true if plain words matched exactly, false if as prefixes
+		 * @return HTML snippet, or an empty string if the text was not stored
+		 * @see DocumentStore#words(String, int, int)
+		 */
+		private static String snippet(Word result, Query query, boolean exact) {
+			
+			int from = result.getPosition() - SNIPPET_RADIUS;
+			int to = result.getPosition() + SNIPPET_RADIUS;
+			String[] words;
+			
+			try {
+				words = store.words(result.getPath(), from, to);
+			}
+			catch(IOException e) {
+				e.printStackTrace();
+				return "";
+			}
+			
+			Set<String> matched = new HashSet<>();
+			
+			for(List<String> phrase : query.phrases())
+				matched.addAll(phrase);
+			
+			for(List<String> group : query.all())
+				matched.addAll(group);
+			
+			for(Query.Near near : query.near()) {
+				matched.add(near.left);
+				matched.add(near.right);
+			}
+			
+			if(exact)
+				matched.addAll(query.terms());
+			
+			StringBuilder snippet = new StringBuilder(from > 1 ? "... " : "");
+			
+			for(String word : words) {
+				boolean bold = matched.contains(word);
+				
+				for(String term : query.terms())
+					bold |= !exact && word.startsWith(term);
+				
+				for(String pattern : query.wildcards())
+					bold |= KGramIndex.matches(pattern, word);
+				
+				snippet.append(bold ? "<b>" + escape(word) + "</b>" : escape(word)).append(' ');
+			}
+			
+			/** A full window may have more text after it */
+			if(words.length == to - Math.max(from, 1) + 1)
+				snippet.append("...");
+			
+			return snippet.toString().trim();
+		}
+		
+		/**
+		 * Returns the edit distance chosen for fuzzy search, between 0 and 2.
+		 * 
+		 * @param request
+		 * 			search request
+		 * @return edit distance, or 0 if missing or invalid
+		 */
+		private static int fuzzyDistance(HttpServletRequest request) {
+			try {
+				return Math.max(0, Math.min(2, Integer.parseInt(request.getParameter("fuzzy"))));
+			}
+			catch(NumberFormatException e) {
+				return 0;
+			}
+		}
+
+		/**
+		 * Escapes text for use inside HTML, including attribute values. Queries
+		 * may contain quotes for phrase search.
+		 * 
+		 * @param text
+		 * 			text to escape
+		 * @return escaped text
+		 */
+		public static String escape(String text) {
+			return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+		}
+
 		public static String getFileName(String path) {
 			File file = new File(path);
 			return file.getName();
@@ -280,8 +508,8 @@ public class SearchEngineServer {
 				String q = history.get(i);
 				if(!recommended.contains(q)) {
 					out.printf("<form>%n");
-					out.printf("<input type=\"hidden\" value=\"%s\" name=\"query\"/>", history.get(i));
-					out.printf("<input type=\"submit\" value=\"%s\">%n", history.get(i));
+					out.printf("<input type=\"hidden\" value=\"%s\" name=\"query\"/>", escape(history.get(i)));
+					out.printf("<input type=\"submit\" value=\"%s\">%n", escape(history.get(i)));
 					out.printf("</form>%n");
 					
 					recommended.add(history.get(i));
@@ -0,0 +1,341 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Writes query results to a JSON file as the searches finish, in the same
+ * format as {@link JSONWriter#asQueriesResults(QueryHelper, Path)}, without
+ * keeping every query's results in memory.
+ *
+ * Each query's results are turned into JSON text as soon as they are added
+ * and kept in a map sorted by query. When the text in memory passes a limit,
+ * the map is written out to a temporary run file and cleared. Each run is
+ * sorted, so {@link #finish()} writes the results file by merging the runs and
+ * whatever is left in memory, reading one entry of each run at a time. Memory
+ * stays around the limit no matter how long the query file is.
+ *
+ * Safe to add to from many search tasks at once.
+ */
+public class SortedResultsWriter implements Closeable {
+
+	/** Characters of JSON text kept in memory before spilling a run */
+	public static final int DEFAULT_BUFFER = 1 << 24;
+
+	/** Results file to write */
+	private final Path path;
+
+	/** Characters of JSON text kept in memory before spilling a run */
+	private final int buffer;
+
+	/** JSON text of each query's results not spilled yet, by query */
+	private TreeMap<String, String> pending;
+
+	/** Characters of JSON text in pending */
+	private long pendingSize;
+
+	/** Sorted run files spilled so far */
+	private final List<Path> runs;
+
+	/** First error while spilling, thrown again by finish() */
+	private IOException failure;
+
+	/**
+	 * Initializes a writer that spills after {@link #DEFAULT_BUFFER} characters.
+	 *
+	 * @param path
+	 *            results file to write
+	 */
+	public SortedResultsWriter(Path path) {
+		this(path, DEFAULT_BUFFER);
+	}
+
+	/**
+	 * Initializes a writer.
+	 *
+	 * @param path
+	 *            results file to write
+	 * @param buffer
+	 *            characters of JSON text to keep in memory before spilling a run
+	 */
+	public SortedResultsWriter(Path path, int buffer) {
+		this.path = path;
+		this.buffer = buffer;
+		this.pending = new TreeMap<>();
+		this.pendingSize = 0;
+		this.runs = new ArrayList<>();
+		this.failure = null;
+	}
+
+	/**
+	 * Adds the results of a query. The JSON text is made before taking the
+	 * lock, so search tasks do that part in parallel. Each query should only be
+	 * added once; if it is added again, only one of its results is written.
+	 *
+	 * @param query
+	 *            query the results are for
+	 * @param results
+	 *            results of the query
+	 */
+	public void add(String query, List<Word> results) {
+		add(query, results, false);
+	}
+
+	/**
+	 * Adds the results of a query, marking them if they were cut short.
+	 *
+	 * @param query
+	 *            query the results are for
+	 * @param results
+	 *            results of the query
+	 * @param truncated
+	 *            true if the search stopped at its deadline
+	 * @see #add(String, List)
+	 */
+	public void add(String query, List<Word> results, boolean truncated) {
+		StringWriter text = new StringWriter();
+
+		try {
+			JSONWriter.asQueryResults(text, query, Word.listByNaturalOrder(results), truncated, 1);
+		}
+		catch(IOException e) {
+			// StringWriter does not throw
+		}
+
+		synchronized(this) {
+			String old = pending.put(query, text.toString());
+			pendingSize += text.getBuffer().length() - (old == null ? 0 : old.length());
+
+			if(pendingSize >= buffer && failure == null) {
+				try {
+					spill();
+				}
+				catch(IOException e) {
+					failure = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of runs spilled so far.
+	 *
+	 * @return number of run files
+	 */
+	public synchronized int runs() {
+		return runs.size();
+	}
+
+	/**
+	 * Writes the pending results to a new run file in sorted order.
+	 *
+	 * @throws IOException
+	 */
+	private void spill() throws IOException {
+		Path run = Files.createTempFile("results", ".run");
+		runs.add(run);
+
+		try(
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)));
+		){
+			for(Map.Entry<String, String> entry : pending.entrySet()) {
+				writeString(out, entry.getKey());
+				writeString(out, entry.getValue());
+			}
+		}
+
+		pending = new TreeMap<>();
+		pendingSize = 0;
+	}
+
+	/**
+	 * Writes the results file by merging the runs with the pending results, and
+	 * deletes the runs. Call after every search is done.
+	 *
+	 * @throws IOException
+	 *             if writing the results file or an earlier spill failed
+	 */
+	public synchronized void finish() throws IOException {
+		if(failure != null) {
+			throw failure;
+		}
+
+		PriorityQueue<Run> heap = new PriorityQueue<>((a, b) -> a.query.compareTo(b.query));
+
+		try(
+				BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+		){
+			for(Path file : runs) {
+				Run run = new Run(file);
+
+				if(run.next()) {
+					heap.add(run);
+				}
+				else {
+					run.close();
+				}
+			}
+
+			Run memory = new Run(pending);
+
+			if(memory.next()) {
+				heap.add(memory);
+			}
+
+			writer.write("[\n");
+
+			String last = null;
+
+			while(!heap.isEmpty()) {
+				Run run = heap.poll();
+
+				/** Write each query once, even if it was added to more than one run */
+				if(!run.query.equals(last)) {
+					if(last != null) {
+						writer.write(",\n");
+					}
+
+					writer.write(run.text);
+					last = run.query;
+				}
+
+				if(run.next()) {
+					heap.add(run);
+				}
+				else {
+					run.close();
+				}
+			}
+
+			if(last != null) {
+				writer.write("\n");
+			}
+
+			writer.write("]");
+		}
+		finally {
+			for(Run run : heap) {
+				run.close();
+			}
+
+			close();
+		}
+	}
+
+	/**
+	 * Deletes the runs and drops the pending results without writing them.
+	 */
+	@Override
+	public synchronized void close() {
+		for(Path run : runs) {
+			try {
+				Files.deleteIfExists(run);
+			}
+			catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		runs.clear();
+		pending = new TreeMap<>();
+		pendingSize = 0;
+	}
+
+	/**
+	 * Writes a string of any length as its length in bytes and its UTF-8 bytes.
+	 * {@link DataOutputStream#writeUTF(String)} is limited to 64 KB, which the
+	 * results of a common word easily pass.
+	 */
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The next entry of one sorted run, read from a file or from the pending
+	 * results in memory.
+	 */
+	private static class Run implements Closeable {
+
+		/** Reads the run file, or null for pending results */
+		private final DataInputStream in;
+
+		/** Pending results, or null for a run file */
+		private final Iterator<Map.Entry<String, String>> entries;
+
+		/** Query of the current entry */
+		private String query;
+
+		/** JSON text of the current entry */
+		private String text;
+
+		private Run(Path file) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+			this.entries = null;
+		}
+
+		private Run(TreeMap<String, String> pending) {
+			this.in = null;
+			this.entries = pending.entrySet().iterator();
+		}
+
+		/**
+		 * Moves to the next entry.
+		 *
+		 * @return false if the run has no more entries
+		 */
+		private boolean next() throws IOException {
+			if(entries != null) {
+				if(!entries.hasNext()) {
+					return false;
+				}
+
+				Map.Entry<String, String> entry = entries.next();
+				query = entry.getKey();
+				text = entry.getValue();
+				return true;
+			}
+
+			try {
+				query = readString(in);
+			}
+			catch(EOFException e) {
+				return false;
+			}
+
+			text = readString(in);
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(in != null) {
+				in.close();
+			}
+		}
+	}
+}
@@ -11,9 +11,24 @@ public class ThreadSafeWordIndex extends WordIndex {
 
 	private ReadWriteLock lock;
 	
+	/** Incremented on every change, so cached search results can tell they are out of date */
+	private volatile long generation;
+	
 	public ThreadSafeWordIndex() {
 		super();
 		this.lock = new ReadWriteLock();
+		this.generation = 0;
+	}
+	
+	/**
+	 * Returns the current generation of this index. The generation changes every
+	 * time words are added or another index is merged in.
+	 * 
+	 * @return current generation
+	 * @see QueryCache
+	 */
+	public long generation() {
+		return generation;
 	}
 	
 	@Override
@@ -22,20 +37,34 @@ public class ThreadSafeWordIndex extends WordIndex {
 		
 		try {
 			super.add(word, path, position);
+			generation++;
 		}
 		finally {
 			lock.unlockReadWrite();
 		}
 	}
 	
+	@Override
 	public void mergeWith(WordIndex idx) {
 		lock.lockReadWrite();
 		
 		try {
-			for(String word : idx.copyWords()) 
-				for(String path : idx.copyPaths(word)) 
-					for(Integer position : idx.copyPositions(word, path)) 
-						super.add(word, path, position);
+			super.mergeWith(idx);
+			generation++;
+		}
+		finally {
+			lock.unlockReadWrite();
+		}
+	}
+	
+	@Override
+	public void addAll(FieldedText text, String path) {
+		lock.lockReadWrite();
+		
+		try {
+			/** Safe to call super here; unlike addAll(String[], String), it never calls add */
+			super.addAll(text, path);
+			generation++;
 		}
 		finally {
 			lock.unlockReadWrite();
@@ -54,6 +83,8 @@ public class ThreadSafeWordIndex extends WordIndex {
 			for(int i = 0; i < words.length; i++) {	
 				super.add(words[i], path, i+1);
 			}
+			
+			generation++;
 		}
 		finally {
 			lock.unlockReadWrite();
@@ -165,6 +196,84 @@ public class ThreadSafeWordIndex extends WordIndex {
 		
 	}
 	
+	@Override
+	public Collection<Word> search(Query query, boolean exact, Ranking ranking, Deadline deadline) {
+		lock.lockReadOnly();
+		
+		try {
+			return super.search(query, exact, ranking, deadline);
+		}
+		finally {
+			lock.unlockReadOnly();
+		}
+		
+	}
+	
+	@Override
+	public List<Word> search(Query query, boolean exact, Ranking ranking, int k, Deadline deadline, Word after) {
+		lock.lockReadOnly();
+		
+		try {
+			return super.search(query, exact, ranking, k, deadline, after);
+		}
+		finally {
+			lock.unlockReadOnly();
+		}
+		
+	}
+	
+	@Override
+	public List<String> fuzzyTerms(String word, int distance) {
+		lock.lockReadOnly();
+		
+		try {
+			return super.fuzzyTerms(word, distance);
+		}
+		finally {
+			lock.unlockReadOnly();
+		}
+		
+	}
+	
+	@Override
+	public List<String> wildcardTerms(String pattern) {
+		lock.lockReadOnly();
+		
+		try {
+			return super.wildcardTerms(pattern);
+		}
+		finally {
+			lock.unlockReadOnly();
+		}
+		
+	}
+	
+	@Override
+	public Matches matches(String query, boolean exact) {
+		lock.lockReadOnly();
+		
+		try {
+			return super.matches(query, exact);
+		}
+		finally {
+			lock.unlockReadOnly();
+		}
+		
+	}
+	
+	@Override
+	public List<Word> search(List<Matches> matches, int k) {
+		lock.lockReadOnly();
+		
+		try {
+			return super.search(matches, k);
+		}
+		finally {
+			lock.unlockReadOnly();
+		}
+		
+	}
+	
 	@Override
 	public Collection<Word> partialSearch(List<String> queries){
 		lock.lockReadOnly();
@@ -1,16 +1,29 @@
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashSet;
 
 /**
  * Builds index from the web using a breadth-first manner.
+ * 
+ * Pages are downloaded by an {@link AsyncFetcher}, which keeps many fetches in
+ * flight on one thread. A {@link CrawlFrontier} in front of it keeps a queue
+ * per host, so each host gets a limited number of fetches at once, spaced
+ * out by a delay, and only the pages its robots.txt allows. Each page is
+ * parsed by an {@link HTMLStreamParser} as its body arrives, so its links
+ * start being fetched before the rest of it is downloaded, and it is never
+ * held whole. Its words are handed to the work
+ * queue to be indexed once the body is complete, so no worker sits waiting on
+ * the network.
  */
 public class WebCrawler {
 
 	/** Shared index */
 	private ThreadSafeWordIndex idx;
 	
-	private final WorkQueue queue;
+	/** Crawl tasks for this crawler, so callers wait only for this crawl */
+	private final WorkQueue.TaskGroup tasks;
 	
 	private final URL base;
 	
@@ -20,6 +33,21 @@ public class WebCrawler {
 	/** To avoid repeating urls and to keep count */
 	private HashSet<URL> urlSet; 
 	
+	/** Where the cleaned text of each page is kept for snippets, or null */
+	private final DocumentStore store;
+	
+	/** Least time between the starts of two fetches from a host, in milliseconds */
+	private final long delay;
+	
+	/** Most fetches in flight to one host */
+	private final int perHost;
+	
+	/** Schedules and downloads pages, or null until the crawl starts */
+	private CrawlFrontier frontier;
+	
+	/** Number of fetches that have not been handed to the work queue yet */
+	private int fetching;
+	
 	/**
 	 * Initialized the class with the index, work queue, url base, and limit of crawls.
 	 * 
@@ -33,11 +61,60 @@ public class WebCrawler {
 	 * 			the number of urls to parse
 	 */
 	public WebCrawler(ThreadSafeWordIndex idx, WorkQueue queue, URL base, int limit) {
+		this(idx, queue, base, limit, null);
+	}
+	
+	/**
+	 * Initialized the class with the index, work queue, url base, limit of
+	 * crawls, and a store for the cleaned text of each page.
+	 * 
+	 * @param idx
+	 * 			index to build
+	 * @param queue
+	 * 			WorkQueue to use
+	 * @param base
+	 * 			URL to start from
+	 * @param limit
+	 * 			the number of urls to parse
+	 * @param store
+	 * 			store for the cleaned text, or null to not keep it
+	 */
+	public WebCrawler(ThreadSafeWordIndex idx, WorkQueue queue, URL base, int limit, DocumentStore store) {
+		this(idx, queue, base, limit, store, CrawlFrontier.DEFAULT_DELAY_MILLIS, CrawlFrontier.DEFAULT_PER_HOST);
+	}
+	
+	/**
+	 * Initialized the class with the index, work queue, url base, limit of
+	 * crawls, a store for the cleaned text of each page, and how hard each
+	 * host may be crawled.
+	 * 
+	 * @param idx
+	 * 			index to build
+	 * @param queue
+	 * 			WorkQueue to use
+	 * @param base
+	 * 			URL to start from
+	 * @param limit
+	 * 			the number of urls to parse
+	 * @param store
+	 * 			store for the cleaned text, or null to not keep it
+	 * @param delay
+	 * 			least time between the starts of two fetches from a host, in milliseconds
+	 * @param perHost
+	 * 			most fetches in flight to one host
+	 */
+	public WebCrawler(ThreadSafeWordIndex idx, WorkQueue queue, URL base, int limit, DocumentStore store,
+			long delay, int perHost) {
 		this.idx = idx;
-		this.queue = queue;
+		this.tasks = queue.group(WorkQueue.Priority.BULK);
 		this.base = base;
 		this.limit = limit;
 		this.urlSet = new HashSet<URL>();
+		this.store = store;
+		this.delay = delay;
+		this.perHost = perHost;
+		this.frontier = null;
+		this.fetching = 0;
 	}
 	
 	/**
@@ -51,67 +128,114 @@ public class WebCrawler {
 	 * 			path to use
 	 */
 	public void buildIndex(WordIndex wordIndex, String file, URL url) {
-		
-		String cleanedTxt = HTMLCleaner.stripHTML(file);
-		
-		if(!cleanedTxt.equals("")) 
-			wordIndex.addAll(cleanedTxt.split(" "), url.toString());
+		buildIndex(wordIndex, FieldedText.parse(file), url);
 	}
 	
 	/**
-	 * Web crawler using recursion.
+	 * Populates wordIndex with the words of a page that was already parsed.
 	 * 
-	 * @param target
-	 * 			URL to crawl
+	 * @param wordIndex
+	 * 			index to populate
+	 * @param text
+	 * 			cleaned words of the page with their fields
+	 * @param url
+	 * 			path to use
 	 */
-	public void crawlRec(URL target) {		
-		
-		System.out.println("target: " + target.toString());
+	public void buildIndex(WordIndex wordIndex, FieldedText text, URL url) {
 		
-		if(urlSet.size() < limit && IndexHelper.isHTMLorHTM(target.toString())) {
+		if(text.words.length > 0) {
+			wordIndex.addAll(text, url.toString());
 			
-			urlSet.add(target);
-			
-			String html = LinkParser.fetchHTML(target);
-			
-			WordIndex tempIdx = new WordIndex();
-			buildIndex(tempIdx, html, target);
-			this.idx.mergeWith(tempIdx);
-			
-			ArrayList<URL> urls = LinkParser.listLinks(base, html);
-			System.out.println("Found " + urls.size() + " urls");
-			
-			for(URL url : urls) {	
-				if(!urlSet.contains(url)) {
-					crawlRec(url);
-				}
-				else {
-					System.out.println("Url has already been processed");
+			if(store != null) {
+				try {
+					store.add(url.toString(), text.words);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-			}//for
-			
-		}
-		else if(urlSet.size() == limit) {
-			System.out.println("Counter reached limit");
+			}
 		}
+	}
 	
+	/**
+	 * Starts the web crawling and places any found links into the queue. Returns
+	 * right away; call {@link #finish()} to wait for the crawl.
+	 */
+	public void crawl() {
+		
+		if(frontier == null) {
+			try {
+				frontier = new CrawlFrontier(delay, perHost);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+		
+		synchronized(urlSet) {
+			urlSet.add(base);
+		}
+		
+		fetch(base);
 	}
 
 	/**
-	 * Starts the web crawling and places any found links into the queue.
+	 * Waits for every page found by this crawl to be fetched and merged into the
+	 * index, then stops the frontier. Other work in the shared queue is not
+	 * waited on.
+	 * 
+	 * @see WorkQueue.TaskGroup#finish()
 	 */
-	public void crawl() {
-		String html = LinkParser.fetchHTML(base);
-		ArrayList<URL> urls = LinkParser.listLinks(base, html);
+	public void finish() {
 		
-		urlSet.add(base);
+		/** Parse tasks start more fetches, and fetches add more parse tasks */
+		do {
+			waitForFetches();
+			tasks.finish();
+		} while(fetching() > 0);
 		
-		if(urls.size() > 0)
-			updateUrlSet(urls);
-			
-		WordIndex tempIdx = new WordIndex();
-		buildIndex(tempIdx, html, base);
-		this.idx.mergeWith(tempIdx);
+		if(frontier != null) {
+			frontier.close();
+			frontier = null;
+		}
+	}
+	
+	/**
+	 * Starts fetching a page. The page is handed to the work queue to be
+	 * indexed before the fetch stops counting as pending, so {@link #finish()}
+	 * never sees a moment where neither is pending.
+	 * 
+	 * @param url
+	 * 			url to fetch
+	 */
+	private void fetch(URL url) {
+		
+		synchronized(this) {
+			fetching++;
+		}
+		
+		frontier.fetch(url, new PageListener());
+	}
+	
+	/**
+	 * Returns the number of fetches that have not finished.
+	 * 
+	 * @return pending fetches
+	 */
+	private synchronized int fetching() {
+		return fetching;
+	}
+	
+	/**
+	 * Waits until no fetch is pending.
+	 */
+	private synchronized void waitForFetches() {
+		try {
+			while(fetching > 0) {
+				this.wait();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
@@ -124,38 +248,73 @@ public class WebCrawler {
 		synchronized(urlSet) {
 			for(URL url : urls)	
 				if(urlSet.size() < limit && !urlSet.contains(url) && IndexHelper.isHTMLorHTM(url.toString())) {
-					queue.execute(new WebCrawlTask(url));
 					urlSet.add(url);
+					fetch(url);
 				}
 		}	
 	}
 	
 	/**
-	 * Creates a Runnable task that parses html files given a url.
+	 * Parses one page as it is fetched. Its links are added to the url set as
+	 * soon as their tags arrive, and its words are handed to the work queue
+	 * once the whole page is in. Runs on the fetcher's thread.
+	 */
+	private class PageListener implements AsyncFetcher.Listener {
+		
+		/** Parses the page, or null if it is not HTML */
+		private HTMLStreamParser parser;
+		
+		@Override
+		public OutputStream open(URL url, HTTPResponse response) {
+			
+			if(!response.header("Content-Type").toLowerCase().contains("html")) {
+				return null;
+			}
+			
+			parser = new HTMLStreamParser(base, links -> updateUrlSet(links));
+			return parser;
+		}
+		
+		@Override
+		public void fetched(URL url, boolean complete) {
+			
+			if(complete && parser != null) {
+				tasks.execute(new WebCrawlTask(url, parser.text()));
+			}
+			
+			synchronized(WebCrawler.this) {
+				fetching--;
+				
+				if(fetching == 0) {
+					WebCrawler.this.notifyAll();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Creates a Runnable task that indexes a fetched html page.
 	 * Populates a temporary index and merges with shared index when done.
 	 */
 	private class WebCrawlTask implements Runnable{
 
 		private final URL target;
 		
+		/** Cleaned words of the page with their fields */
+		private final FieldedText text;
+		
 		/** Temporary index that will merge with shared index when done being populated */
 		private WordIndex tempIdx;
 		
-		public WebCrawlTask(URL target) {
+		public WebCrawlTask(URL target, FieldedText text) {
 			this.target = target;
+			this.text = text;
 			this.tempIdx = new WordIndex();
 		}
 		
 		@Override
 		public void run() {
-				
-			String html = LinkParser.fetchHTML(target);
-			ArrayList<URL> urls = LinkParser.listLinks(base, html);
-			
-			if(urls.size() > 0)
-				updateUrlSet(urls);
-				
-			buildIndex(tempIdx, html, target);
+			buildIndex(tempIdx, text, target);
 			idx.mergeWith(tempIdx);
 		}
 
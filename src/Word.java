@@ -2,9 +2,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 
 /**
- * Uses frequency, position, and path to compare words.
+ * Uses score, frequency, position, and path to compare words. The score is
+ * only set when ranking by BM25; otherwise every score is zero and words are
+ * compared by frequency first, as always.
  * 
  * @see Comparable
  */
@@ -16,6 +19,9 @@ public class Word implements Comparable<Word> {
 	/** Initial position */
 	private int position;
 	
+	/** Relevance score, or zero when not ranking by score */
+	private double score;
+	
 	/** Path of file where the word was found */
 	private final String path;
 	
@@ -36,6 +42,23 @@ public class Word implements Comparable<Word> {
 		this.path = path;
 	}
 	
+	/**
+	 * Initializes a word with a relevance score.
+	 * 
+	 * @param path
+	 *            Location
+	 * @param frequency
+	 *            Frequency of word
+	 * @param position
+	 *            Initial position
+	 * @param score
+	 *            Relevance score
+	 */
+	public Word(String path, int frequency, int position, double score) {
+		this(path, frequency, position);
+		this.score = score;
+	}
+	
 	public String getPath() {
 		return path;
 	}
@@ -48,6 +71,10 @@ public class Word implements Comparable<Word> {
 		return position;
 	}
 	
+	public double getScore() {
+		return score;
+	}
+	
 	@Override
 	public String toString() {
 		return String.format("%d times, %d position, at path: %s.", this.frequency, this.position, this.path);
@@ -69,7 +96,20 @@ public class Word implements Comparable<Word> {
 	}
 	
 	/**
-	 * Compares Word by frequency in descending order. If frequency is the same,
+	 * Updates position, frequency and score appropriately.
+	 * 
+	 * @param frequency
+	 * @param position
+	 * @param score
+	 */
+	public void update(int frequency, int position, double score) {
+		update(frequency, position);
+		this.score += score;
+	}
+	
+	/**
+	 * Compares Word by score in descending order. If score is the same,
+	 * compares Word by frequency in descending order. If frequency is the same,
 	 * compares Word by position in ascending order. If position is the same,
 	 * compares Word by path in ascending order.
 	 * 
@@ -78,6 +118,12 @@ public class Word implements Comparable<Word> {
 	 */
 	public int compareTo(Word other) { //Natural order
 		
+		int scoreCompare = Double.compare(other.score, this.score);
+		
+		if(scoreCompare != 0) {
+			return scoreCompare;
+		}
+		
 		int frequencyCompare = Integer.compare(other.frequency, this.frequency);
 		
 		if(frequencyCompare == 0) {
@@ -98,6 +144,20 @@ public class Word implements Comparable<Word> {
 		
 	}
 	
+	/**
+	 * Tests whether this Word comes after another by natural order. Words that
+	 * compare as equal are told apart by the exact path, so every Word is
+	 * either before or after any other.
+	 * 
+	 * @param other
+	 * 			Word to compare to
+	 * @return true if this Word comes after the other
+	 */
+	public boolean follows(Word other) {
+		int compare = compareTo(other);
+		return compare != 0 ? compare > 0 : path.compareTo(other.path) > 0;
+	}
+	
 	/**
 	 * Returns an ArrayList of Words by natural order
 	 * 
@@ -122,5 +182,146 @@ public class Word implements Comparable<Word> {
 		
 	}
 	
+	/**
+	 * Returns the best k Words by natural order, sorted. Keeps a bounded heap of
+	 * the k best Words seen so far instead of sorting every Word, so this takes
+	 * O(n log k) time and O(k) extra space. Words that compare as equal keep
+	 * the order they had in the collection, exactly as the stable sort in
+	 * {@link #listByNaturalOrder(Collection)} does.
+	 * 
+	 * @param words
+	 * 			collection of words to select from
+	 * @param k
+	 * 			number of words to return; all words if zero or negative
+	 * @return sorted list of at most k Words
+	 */
+	public static final List<Word> topK(Collection<Word> words, int k) {
+		return topK(words, k, null);
+	}
+	
+	/**
+	 * Returns the best k Words that come after a given Word by natural order,
+	 * sorted. Used for the next page of results: only the Words after the last
+	 * one shown are kept, and then only the best k of those are sorted.
+	 * 
+	 * @param words
+	 * 			collection of words to select from
+	 * @param k
+	 * 			number of words to return; all words if zero or negative
+	 * @param after
+	 * 			last Word of the previous page, or null to start from the best
+	 * @return sorted list of at most k Words
+	 * @see #follows(Word)
+	 */
+	public static final List<Word> topK(Collection<Word> words, int k, Word after) {
+		
+		if(after != null) {
+			List<Word> rest = new ArrayList<>();
+			
+			for(Word word : words)
+				if(word.follows(after))
+					rest.add(word);
+			
+			words = rest;
+		}
+		
+		if(k <= 0 || k >= words.size()) {
+			return listByNaturalOrder(words);
+		}
+		
+		Word[] all = words.toArray(new Word[words.size()]);
+		
+		/** Max-heap of indexes into all, with the worst of the best k at the root */
+		int[] heap = new int[k];
+		int size = 0;
+		
+		for(int i = 0; i < all.length; i++) {
+			if(size < k) {
+				heap[size] = i;
+				siftUp(all, heap, size++);
+			}
+			else if(compare(all, i, heap[0]) < 0) {
+				heap[0] = i;
+				siftDown(all, heap, size);
+			}
+		}
+		
+		/** Pop the worst remaining into the end of the list */
+		Word[] sorted = new Word[size];
+		
+		while(size > 0) {
+			sorted[size - 1] = all[heap[0]];
+			heap[0] = heap[--size];
+			siftDown(all, heap, size);
+		}
+		
+		List<Word> list = new ArrayList<>(sorted.length);
+		Collections.addAll(list, sorted);
+		return list;
+	}
+	
+	/**
+	 * Compares two Words by natural order, breaking ties by their index.
+	 * 
+	 * @param all
+	 * 			words being selected from
+	 * @param i
+	 * 			index of the first word
+	 * @param j
+	 * 			index of the second word
+	 * @return negative if the first word comes first
+	 */
+	private static int compare(Word[] all, int i, int j) {
+		int compare = all[i].compareTo(all[j]);
+		return compare != 0 ? compare : Integer.compare(i, j);
+	}
+	
+	/**
+	 * Moves the entry at the given heap slot up until its parent comes after it.
+	 */
+	private static void siftUp(Word[] all, int[] heap, int slot) {
+		while(slot > 0) {
+			int parent = (slot - 1) / 2;
+			
+			if(compare(all, heap[slot], heap[parent]) <= 0) {
+				return;
+			}
+			
+			int temp = heap[slot];
+			heap[slot] = heap[parent];
+			heap[parent] = temp;
+			slot = parent;
+		}
+	}
+	
+	/**
+	 * Moves the root of the heap down until both children come before it.
+	 */
+	private static void siftDown(Word[] all, int[] heap, int size) {
+		int slot = 0;
+		
+		while(true) {
+			int worst = slot;
+			int left = 2 * slot + 1;
+			int right = left + 1;
+			
+			if(left < size && compare(all, heap[left], heap[worst]) > 0) {
+				worst = left;
+			}
+			
+			if(right < size && compare(all, heap[right], heap[worst]) > 0) {
+				worst = right;
+			}
+			
+			if(worst == slot) {
+				return;
+			}
+			
+			int temp = heap[slot];
+			heap[slot] = heap[worst];
+			heap[worst] = temp;
+			slot = worst;
+		}
+	}
 	
 }
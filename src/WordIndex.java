@@ -1,22 +1,120 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Data structure to store words and their positions.
+ * 
+ * Paths are stored once and referred to by document ID. Each word maps to a
+ * {@link PostingList} of the documents it was found in, sorted by ID, with the
+ * sorted positions it was found at in each.
+ * 
+ * The index also keeps the length of every document, so results can be ranked
+ * by BM25 instead of raw frequency. A word's document frequency is just the
+ * size of its posting list, so nothing extra is needed for that.
+ * 
+ * Ranked top-k searches of plain words use MaxScore pruning: each word keeps an
+ * upper bound on the score of any one of its matches, and documents that
+ * cannot reach the current top k are skipped without scoring them.
+ * 
+ * The words are also kept in a sorted dictionary, so fuzzy search can walk it
+ * with a {@link LevenshteinAutomaton}, skipping every word that shares a
+ * prefix that is already too far from the query word. Prefix search reads
+ * only the range of the dictionary that starts with the prefix, and a
+ * {@link KGramIndex} of the words answers suffix and infix wildcard patterns.
  */
 public class WordIndex {
 
+	/** How results are ordered */
+	public enum Ranking {
+		/** By frequency, then position, then path */
+		FREQUENCY,
+		/** By BM25 score, using document lengths and document frequencies */
+		BM25,
+		/** By BM25 score, counting matches in the title, headings and links as extra matches */
+		BM25F;
+		
+		/**
+		 * Returns the ranking with the given name, ignoring case.
+		 * 
+		 * @param name
+		 * 		name of a ranking, like "bm25", or null
+		 * @return
+		 * 		the named ranking, or FREQUENCY if the name is null or unknown
+		 */
+		public static Ranking of(String name) {
+			for(Ranking ranking : values())
+				if(ranking.name().equalsIgnoreCase(name))
+					return ranking;
+			
+			return FREQUENCY;
+		}
+	}
+	
+	/** BM25 term frequency saturation */
+	private static final double K1 = 1.2;
+	
+	/** BM25 document length normalization */
+	private static final double B = 0.75;
+	
+	/** Extra matches a word counts for with BM25F when it is in the title */
+	private static final double TITLE_BOOST = 3;
+	
+	/** Extra matches a word counts for with BM25F when it is in a heading */
+	private static final double HEADING_BOOST = 2;
+	
+	/** Extra matches a word counts for with BM25F when it is in the text of a link */
+	private static final double ANCHOR_BOOST = 1;
+	
+	/** Number of postings a search loop reads between looks at its deadline */
+	private static final int CHECK_EVERY = 1024;
+
+	/** Result arrays of each searching thread, reused by its searches */
+	private static final ThreadLocal<Accumulator> ACCUMULATORS = ThreadLocal.withInitial(Accumulator::new);
+
 	/**
 	 * Stores a mapping of words to the positions the words were found according to path.
 	 */
 	
-	private Map<String, Map<String, Set<Integer>>> idx;
+	private Map<String, PostingList> idx;
+	
+	/** Paths by document ID */
+	private List<String> paths;
+	
+	/** Document IDs by path */
+	private Map<String, Integer> ids;
+	
+	/** Every word in the index, sorted */
+	private TreeSet<String> terms;
+	
+	/** Words by the k-grams they contain, for wildcard patterns */
+	private KGramIndex kgrams;
+	
+	/** Array copy of the sorted words, or null after new words were added */
+	private volatile Dictionary dictionary;
+	
+	/** Number of positions in each document, by document ID */
+	private int[] lengths;
+	
+	/** Sum of all document lengths */
+	private long totalLength;
+	
+	/** Number of positions ever added, so cached score bounds can tell they are out of date */
+	private long changes;
+	
+	/** Upper bounds on the BM25 score of one match, by word */
+	private final Map<String, Bound> bounds;
+	
+	/** Documents fully scored by pruned searches */
+	private final LongAdder scored;
 	
 
 	/**
@@ -25,6 +123,50 @@ public class WordIndex {
 	public WordIndex() {
 		//idx = new TreeMap<>();
 		idx = new HashMap<>();
+		paths = new ArrayList<>();
+		ids = new HashMap<>();
+		terms = new TreeSet<>();
+		kgrams = new KGramIndex(3);
+		lengths = new int[16];
+		totalLength = 0;
+		changes = 0;
+		bounds = new ConcurrentHashMap<>();
+		scored = new LongAdder();
+	}
+	
+	/**
+	 * Returns the document ID of a path, assigning the next ID if the path is new.
+	 * 
+	 * @param path
+	 * 			String of where in the directory a word was found
+	 * @return document ID
+	 */
+	private int idFor(String path) {
+		Integer id = ids.get(path);
+		
+		if(id == null) {
+			id = paths.size();
+			paths.add(path);
+			ids.put(path, id);
+		}
+		
+		return id;
+	}
+	
+	/**
+	 * Counts one more position towards the length of a document.
+	 * 
+	 * @param doc
+	 * 			document ID
+	 */
+	private void lengthen(int doc) {
+		if(doc >= lengths.length) {
+			lengths = Arrays.copyOf(lengths, Math.max(doc + 1, lengths.length * 2));
+		}
+		
+		lengths[doc]++;
+		totalLength++;
+		changes++;
 	}
 
 	/**
@@ -38,72 +180,38 @@ public class WordIndex {
 	 *            position word was found
 	 */
 	public void add(String word, String path, int position) {
+		insert(word, idFor(path), position);
+	}
 	
-		if(idx.containsKey(word)) {
-			//already has key
-			
-			//check if path is set
-			if(idx.get(word).containsKey(path)) {
-				//contains word and path
-				
-				if(idx.get(word).get(path) != null) {
-					//insert position into existing set
-					Set <Integer> set = idx.get(word).get(path);
-					set.add(position);
-					
-				} else {
-					//create a new set and initialize with position
-					Set <Integer> set = new HashSet<>();
-					set.add(position);
-					idx.get(word).put(path, set);
-				}
-				
-			} else if(!idx.get(word).isEmpty()) {
-				
-				//should update current pathMap
-				
-				Set <Integer> set = new HashSet<>();
-				
-				set.add(position);
-				
-				idx.get(word).putIfAbsent(path, set);
-				
-				
-			} else { //does not have path
-				
-				//create a new pathMap
-				
-//				Map<String, Set<Integer>> pathMap = new TreeMap<>();
-				Map<String, Set<Integer>> pathMap = new HashMap<>();
-				
-				Set <Integer> set = new HashSet<>();
-				
-				set.add(position);
-				
-				pathMap.put(path, set);
-				
-				idx.put(word, pathMap);
-			}
-			
-			
-		} else {
-			//does not contain key
-			//insert key
-			//create a new set and initialize with position
-			
-			Set <Integer> set = new HashSet<>();
-			set.add(position); //adds to set if not already present
-			
-			
-//			Map<String, Set<Integer>> pathMap = new TreeMap<>();
-			Map<String, Set<Integer>> pathMap = new HashMap<>();
-			
-			pathMap.put(path, set);
-			
-			idx.put(word, pathMap);
-			
+	/**
+	 * Adds a position of a word in a document.
+	 * 
+	 * @param word
+	 * 		cleaned word
+	 * @param doc
+	 * 		document ID
+	 * @param position
+	 * 		position the word was found
+	 * @return
+	 * 		posting list of the word
+	 */
+	private PostingList insert(String word, int doc, int position) {
+		
+		PostingList postings = idx.get(word);
+		
+		if(postings == null) {
+			postings = new PostingList();
+			idx.put(word, postings);
+			terms.add(word);
+			kgrams.add(word);
+			dictionary = null;
+		}
+		
+		if(postings.add(doc, position)) {
+			lengthen(doc);
 		}
 		
+		return postings;
 	}
 
 	/**
@@ -120,6 +228,88 @@ public class WordIndex {
 			add(words[i], path, i+1);
 		}
 	}
+	
+	/**
+	 * Adds the cleaned words of a document along with the fields they are in.
+	 * Positions are the same as {@link #addAll(String[], String)} gives, and
+	 * each posting also records the fields its word was found in. Title words
+	 * that are also in the body are only marked, so their positions and counts
+	 * do not change. Title words that are not in the body are added after the
+	 * last word of the body, in title order, so a page can be found by its
+	 * title alone.
+	 * 
+	 * @param text
+	 * 		cleaned words with their fields
+	 * @param path
+	 * 		path or URL of the document
+	 * 
+	 * @see PostingList#mark(int, byte)
+	 */
+	public void addAll(FieldedText text, String path) {
+		
+		if(text.words.length == 0 && text.title.isEmpty()) {
+			return;
+		}
+		
+		int doc = idFor(path);
+		
+		for(int i = 0; i < text.words.length; i++)
+			insert(text.words[i], doc, i + 1).mark(doc, text.fields[i]);
+		
+		int position = text.words.length;
+		
+		for(String word : text.title) {
+			PostingList postings = idx.get(word);
+			
+			if(postings != null && postings.find(doc) >= 0) {
+				postings.mark(doc, FieldedText.TITLE);
+			}
+			else {
+				insert(word, doc, ++position).mark(doc, FieldedText.TITLE);
+			}
+		}
+	}
+	
+	/**
+	 * Adds everything in another index to this one. Reads the other index's
+	 * postings directly instead of copying them out word by word, so the other
+	 * index must not be changed while merging.
+	 * 
+	 * @param other
+	 * 			index to add from
+	 */
+	public void mergeWith(WordIndex other) {
+		
+		/** Document IDs in the other index mapped to IDs in this one */
+		int[] mapped = new int[other.paths.size()];
+		
+		for(int doc = 0; doc < mapped.length; doc++)
+			mapped[doc] = idFor(other.paths.get(doc));
+		
+		for(Map.Entry<String, PostingList> entry : other.idx.entrySet()) {
+			
+			PostingList from = entry.getValue();
+			PostingList to = idx.get(entry.getKey());
+			
+			if(to == null) {
+				to = new PostingList();
+				idx.put(entry.getKey(), to);
+				terms.add(entry.getKey());
+				kgrams.add(entry.getKey());
+				dictionary = null;
+			}
+			
+			for(int i = 0; i < from.size(); i++) {
+				int[] positions = from.positions(i);
+				
+				for(int j = 0; j < from.count(i); j++)
+					if(to.add(mapped[from.doc(i)], positions[j]))
+						lengthen(mapped[from.doc(i)]);
+				
+				to.mark(mapped[from.doc(i)], from.fields(i));
+			}
+		}
+	}
 
 
 	/**
@@ -135,13 +325,16 @@ public class WordIndex {
 	 */
 	public int count(String word, String path) {
 		
-		//check if the word is even in the index
-		if(idx.get(word) == null) {
+		PostingList postings = idx.get(word);
+		Integer id = ids.get(path);
+		
+		//check if the word and path are even in the index
+		if(postings == null || id == null) {
 			return 0;
 		} 
 		
-		Set <Integer> set = idx.get(word).get(path);
-		return set.size();
+		int i = postings.find(id);
+		return i < 0 ? 0 : postings.count(i);
 	}
 
 	/**
@@ -153,6 +346,125 @@ public class WordIndex {
 		return idx.size();
 	}
 
+	/**
+	 * Returns the words in the index within an edit distance of a word, in
+	 * sorted order. Walks the sorted dictionary one character at a time with a
+	 * {@link LevenshteinAutomaton}, reusing the work for the prefix each word
+	 * shares with the one before it. As soon as a prefix is too far from the
+	 * word, skips every word starting with that prefix without looking at it,
+	 * so the automaton only runs on a small part of the dictionary.
+	 * 
+	 * @param word
+	 * 			cleaned word, possibly misspelled
+	 * @param distance
+	 * 			largest allowed edit distance, usually 1 or 2
+	 * @return words within the distance, sorted
+	 */
+	public List<String> fuzzyTerms(String word, int distance) {
+		
+		Dictionary dictionary = dictionary();
+		String[] sorted = dictionary.words;
+		byte[] shared = dictionary.shared;
+		
+		LevenshteinAutomaton automaton = new LevenshteinAutomaton(word, distance);
+		List<String> matches = new ArrayList<>();
+		
+		/** states[j] is the state after reading the first j characters of the current word */
+		int[][] states = new int[16][];
+		states[0] = automaton.start();
+		
+		/** Number of leading characters whose states are still correct for the next word */
+		int depth = 0;
+		int i = 0;
+		
+		while(i < sorted.length) {
+			String term = sorted[i];
+			
+			if(term.length() >= states.length) {
+				states = Arrays.copyOf(states, term.length() * 2);
+			}
+			
+			int dead = -1;
+			
+			for(int j = depth; j < term.length(); j++) {
+				if(states[j + 1] == null) {
+					states[j + 1] = new int[word.length() + 1];
+				}
+				
+				automaton.step(states[j], term.charAt(j), states[j + 1]);
+				
+				if(!automaton.canMatch(states[j + 1])) {
+					dead = j + 1;
+					break;
+				}
+			}
+			
+			if(dead < 0) {
+				if(automaton.isMatch(states[term.length()])) {
+					matches.add(term);
+				}
+				
+				i++;
+				depth = i < sorted.length ? Math.min(term.length(), shared[i]) : 0;
+			}
+			else {
+				/** Nothing starting with this prefix can match; skip every word that shares it */
+				i++;
+				
+				while(i < sorted.length && shared[i] >= dead) {
+					i++;
+				}
+				
+				depth = i < sorted.length ? shared[i] : 0;
+			}
+		}
+		
+		return matches;
+	}
+	
+	/**
+	 * Returns the dictionary as a sorted array, copying it from the sorted set
+	 * only after new words were added.
+	 * 
+	 * @return every word in the index, sorted
+	 */
+	private Dictionary dictionary() {
+		
+		Dictionary sorted = dictionary;
+		
+		/** Searches may build it at the same time; they build the same thing */
+		if(sorted == null) {
+			sorted = new Dictionary(terms.toArray(new String[terms.size()]));
+			dictionary = sorted;
+		}
+		
+		return sorted;
+	}
+	
+	/**
+	 * Returns a copy of a query whose plain words are replaced by the words in
+	 * the index within an edit distance of them. Phrases, proximity clauses,
+	 * groups and exclusions are kept as they are. Searching the copy with exact
+	 * search gives the fuzzy results of the original query.
+	 * 
+	 * @param query
+	 * 			parsed query
+	 * @param distance
+	 * 			largest allowed edit distance
+	 * @return query with the plain words expanded
+	 * 
+	 * @see #fuzzyTerms(String, int)
+	 */
+	public Query fuzzy(Query query, int distance) {
+		
+		List<String> expanded = new ArrayList<>();
+		
+		for(String term : query.terms())
+			expanded.addAll(fuzzyTerms(term, distance));
+		
+		return query.withTerms(expanded);
+	}
+	
 	/**
 	 * Tests whether the index contains the specified word.
 	 *
@@ -199,19 +511,24 @@ public class WordIndex {
 	 * @return sorted list of positions for that word
 	 *
 	 * @see ArrayList#ArrayList(java.util.Collection)
-	 * @see Collections#sort(List)
 	 */
 	public List<Integer> copyPositions(String word, String path) {
 		
-		if(idx.get(word).equals(null)) {
+		PostingList postings = idx.get(word);
+		Integer id = ids.get(path);
+		
+		if(postings == null || id == null || postings.find(id) < 0) {
 			return null;
 		}
 		
-		List <Integer> list = new ArrayList<>();
-	
-		list.addAll(idx.get(word).get(path));
+		int i = postings.find(id);
+		int[] positions = postings.positions(i);
 		
-		Collections.sort(list);
+		List <Integer> list = new ArrayList<>(postings.count(i));
+		
+		/** Positions are kept sorted */
+		for(int j = 0; j < postings.count(i); j++)
+			list.add(positions[j]);
 		
 		return list;
 	}
@@ -228,25 +545,40 @@ public class WordIndex {
 	 */
 	public List<String> copyPaths(String word){
 		
+		PostingList postings = idx.get(word);
+		
 		List <String> list = new ArrayList<>();
 		
-		list.addAll(idx.get(word).keySet());
+		if(postings == null) {
+			return list;
+		}
+		
+		for(int i = 0; i < postings.size(); i++)
+			list.add(paths.get(postings.doc(i)));
 		
 		Collections.sort(list);
 		
 		return list;
 	}
 	
-//	public Set<Entry<String, Map<String, Set<Integer>>>> wordsEntrySet() {
-//		return idx.entrySet();
-//	}
-	
 	/**
 	 * Returns a string representation of this index.
 	 */
 	@Override
 	public String toString() {
-		return idx.toString();
+		
+		Map<String, Map<String, List<Integer>>> map = new HashMap<>();
+		
+		for(String word : idx.keySet()) {
+			Map<String, List<Integer>> pathMap = new HashMap<>();
+			
+			for(String path : copyPaths(word))
+				pathMap.put(path, copyPositions(word, path));
+			
+			map.put(word, pathMap);
+		}
+		
+		return map.toString();
 	}
 	
 	/**
@@ -259,13 +591,26 @@ public class WordIndex {
 	 */
 	public Collection<Word> exactSearch(List<String> queries) {
 		
-		HashMap<String, Word> resultsMap = new HashMap<>();
-		
-		for(String query : queries)
-			if(idx.containsKey(query))
-				searchHandler(query, resultsMap);
-		
-		return resultsMap.values();
+		try(Results resultsMap = new Results(Ranking.FREQUENCY)) {
+			termsHandler(queries, true, resultsMap);
+			return resultsMap.words();
+		}
+	}
+	
+	/**
+	 * Returns the best k results of an exact search, sorted by natural order.
+	 * 
+	 * @param queries
+	 * 		list of words alphabetically ordered
+	 * @param k
+	 * 		number of results to return; all results if zero or negative
+	 * @return
+	 * 		sorted list of at most k search results
+	 * 
+	 * @see Word#topK(Collection, int)
+	 */
+	public List<Word> exactSearch(List<String> queries, int k) {
+		return Word.topK(exactSearch(queries), k);
 	}
 	
 	/**
@@ -278,46 +623,1530 @@ public class WordIndex {
 	 */
 	public Collection<Word> partialSearch(List<String> queries){
 		
-		List<String> words = copyWords();
-		HashMap<String, Word> resultsMap = new HashMap<>();
-		
-		for(String query : queries)
-			for(String w : words)
-				if(w.indexOf(query) == 0) /** Partial search */
-					searchHandler(w, resultsMap);
-
-		return resultsMap.values();
+		try(Results resultsMap = new Results(Ranking.FREQUENCY)) {
+			termsHandler(queries, false, resultsMap);
+			return resultsMap.words();
+		}
 	}
 	
 	
-	/** 
-	 * Retrieves the information needed from the index of the found word and updates the resultsMap.
+	/**
+	 * Returns the best k results of a partial search, sorted by natural order.
 	 * 
-	 * @param w
-	 * 		word that is found from the search
+	 * @param queries
+	 * 		list of words alphabetically ordered
+	 * @param k
+	 * 		number of results to return; all results if zero or negative
+	 * @return
+	 * 		sorted list of at most k search results
+	 * 
+	 * @see Word#topK(Collection, int)
+	 */
+	public List<Word> partialSearch(List<String> queries, int k) {
+		return Word.topK(partialSearch(queries), k);
+	}
+	
+	/**
+	 * Searches for the plain words, phrases and proximity clauses of a query.
+	 * Each clause adds to the results of the documents it matches. A phrase
+	 * counts once per place its words appear consecutively, starting at the
+	 * position of its first word. A proximity clause counts once per position of
+	 * one word with the other word within the distance, starting at the smaller
+	 * position of the first such pair. A group of words joined by AND counts the
+	 * frequencies of all its words, starting at the first position of any of
+	 * them, in the documents that contain every word. Finally, documents that
+	 * contain any excluded word are removed. Words inside phrases, proximity
+	 * clauses, groups and exclusions always match exactly.
+	 * 
+	 * @param query
+	 * 		parsed query
+	 * @param exact
+	 * 		true to match plain words exactly, false to match them as prefixes
+	 * @return
+	 * 		a collection of search results
+	 */
+	public Collection<Word> search(Query query, boolean exact) {
+		return search(query, exact, Ranking.FREQUENCY);
+	}
+	
+	/**
+	 * Searches for a query, scoring the results for the given ranking. With
+	 * BM25, every match also adds to the score of its document, using the
+	 * document frequency of the word. Phrases and proximity clauses use the
+	 * document frequency of their rarest word, and a group joined by AND adds the
+	 * score of each of its words.
+	 * 
+	 * @param query
+	 * 		parsed query
+	 * @param exact
+	 * 		true to match plain words exactly, false to match them as prefixes
+	 * @param ranking
+	 * 		how the results will be ordered
+	 * @return
+	 * 		a collection of search results
+	 * 
+	 * @see #search(Query, boolean)
+	 */
+	public Collection<Word> search(Query query, boolean exact, Ranking ranking) {
+		return search(query, exact, ranking, Deadline.none());
+	}
+	
+	/**
+	 * Searches for a query until a deadline. Once the deadline expires, the
+	 * search stops at its next check and returns what it found so far, and
+	 * {@link Deadline#truncated()} is true. Excluded words are still removed
+	 * from those results, since that only reads short lists.
+	 * 
+	 * @param query
+	 * 		parsed query
+	 * @param exact
+	 * 		true to match plain words exactly, false to match them as prefixes
+	 * @param ranking
+	 * 		how the results will be ordered
+	 * @param deadline
+	 * 		when to stop searching
+	 * @return
+	 * 		a collection of search results, possibly incomplete
+	 * 
+	 * @see #search(Query, boolean, Ranking)
+	 */
+	public Collection<Word> search(Query query, boolean exact, Ranking ranking, Deadline deadline) {
+		try(Results resultsMap = new Results(ranking, deadline)) {
+			collect(query, exact, resultsMap);
+			return resultsMap.words();
+		}
+	}
+	
+	/**
+	 * Runs every clause of a query into results that have not been read yet,
+	 * stopping at their deadline. The caller closes the results, even if this
+	 * throws.
+	 * 
+	 * @param query
+	 * 		parsed query
+	 * @param exact
+	 * 		true to match plain words exactly, false to match them as prefixes
 	 * @param resultsMap
-	 * 		Holds the results of the search
+	 * 		empty results to add to
 	 * 
-	 * @see Word#update(int, int)
+	 * @see #search(Query, boolean, Ranking, Deadline)
 	 */
-	private void searchHandler(String w, Map<String, Word> resultsMap) {
+	private void collect(Query query, boolean exact, Results resultsMap) {
 		
-		for(String p : copyPaths(w)) {
-			
-			List<Integer> positions = copyPositions(w, p);
-			
-			int frequency = positions.size();
+		Deadline deadline = resultsMap.deadline;
+		
+		for(String w : words(query, exact)) {
+			if(deadline.expired())
+				break;
 			
-			/** Assuming the list is already sorted */
-			int initPosition = positions.get(0);
-				
-			if(resultsMap.containsKey(p)) {
-				resultsMap.get(p).update(frequency, initPosition);
-			} else {
-				Word newWord = new Word(p, frequency, initPosition);
-				resultsMap.put(p, newWord);
-			}	
-		}	
+			searchHandler(w, resultsMap);
+		}
+		
+		for(List<String> phrase : query.phrases())
+			if(!deadline.expired())
+				phraseHandler(phrase, resultsMap);
+		
+		for(Query.Near near : query.near())
+			if(!deadline.expired())
+				nearHandler(near, resultsMap);
+		
+		for(List<String> group : query.all())
+			if(!deadline.expired())
+				allHandler(group, resultsMap);
+		
+		for(String word : query.excluded())
+			excludeHandler(word, resultsMap);
+	}
+	
+	/**
+	 * Returns the best k results of a query, sorted by natural order.
+	 * 
+	 * @param query
+	 * 		parsed query
+	 * @param exact
+	 * 		true to match plain words exactly, false to match them as prefixes
+	 * @param k
+	 * 		number of results to return; all results if zero or negative
+	 * @return
+	 * 		sorted list of at most k search results
+	 * 
+	 * @see #search(Query, boolean)
+	 * @see Word#topK(Collection, int)
+	 */
+	public List<Word> search(Query query, boolean exact, int k) {
+		return search(query, exact, Ranking.FREQUENCY, k);
+	}
+	
+	/**
+	 * Returns the best k results of a query for the given ranking, sorted.
+	 * 
+	 * @param query
+	 * 		parsed query
+	 * @param exact
+	 * 		true to match plain words exactly, false to match them as prefixes
+	 * @param ranking
+	 * 		how the results are ordered
+	 * @param k
+	 * 		number of results to return; all results if zero or negative
+	 * @return
+	 * 		sorted list of at most k search results
+	 * 
+	 * @see #search(Query, boolean, Ranking)
+	 * @see Word#topK(Collection, int)
+	 */
+	public List<Word> search(Query query, boolean exact, Ranking ranking, int k) {
+		return search(query, exact, ranking, k, Deadline.none());
+	}
+	
+	/**
+	 * Returns the best k results of a query found before a deadline, sorted.
+	 * 
+	 * @param query
+	 * 		parsed query
+	 * @param exact
+	 * 		true to match plain words exactly, false to match them as prefixes
+	 * @param ranking
+	 * 		how the results are ordered
+	 * @param k
+	 * 		number of results to return; all results if zero or negative
+	 * @param deadline
+	 * 		when to stop searching
+	 * @return
+	 * 		sorted list of at most k search results, possibly incomplete
+	 * 
+	 * @see #search(Query, boolean, Ranking, Deadline)
+	 */
+	public List<Word> search(Query query, boolean exact, Ranking ranking, int k, Deadline deadline) {
+		return search(query, exact, ranking, k, deadline, null);
+	}
+	
+	/**
+	 * Returns one page of results: the best k results of a query that come
+	 * after the last result of the previous page, sorted. The results before
+	 * the cursor are skipped without being sorted, so any page costs about the
+	 * same as the first. Only the results on the page are made into Words.
+	 * 
+	 * @param query
+	 * 		parsed query
+	 * @param exact
+	 * 		true to match plain words exactly, false to match them as prefixes
+	 * @param ranking
+	 * 		how the results are ordered
+	 * @param k
+	 * 		page size; all remaining results if zero or negative
+	 * @param deadline
+	 * 		when to stop searching
+	 * @param after
+	 * 		last result of the previous page, or null for the first page
+	 * @return
+	 * 		sorted list of at most k search results, possibly incomplete
+	 * 
+	 * @see Word#topK(Collection, int, Word)
+	 * @see Cursor
+	 */
+	public List<Word> search(Query query, boolean exact, Ranking ranking, int k, Deadline deadline, Word after) {
+		
+		boolean plain = query.phrases().isEmpty() && query.near().isEmpty() && query.all().isEmpty()
+				&& query.excluded().isEmpty();
+		
+		/** Pruning only helps the first page, whose results have the highest scores */
+		if(ranking != Ranking.FREQUENCY && k > 0 && plain && after == null) {
+			return maxScore(words(query, exact), k, ranking, deadline);
+		}
+		
+		try(Results resultsMap = new Results(ranking, deadline)) {
+			collect(query, exact, resultsMap);
+			return resultsMap.top(k, after);
+		}
+	}
+	
+	/**
+	 * Returns the documents one query word matches, with the combined frequency
+	 * and first position of every word it expands to in each. Lets a batch of
+	 * queries expand each distinct query word and read its posting lists once,
+	 * then reuse the result for every query that contains it.
+	 * 
+	 * @param query
+	 * 		cleaned query word
+	 * @param exact
+	 * 		true to match the word exactly, false to match it as a prefix
+	 * @return
+	 * 		matched documents, sorted by document ID
+	 * 
+	 * @see #search(List)
+	 */
+	public Matches matches(String query, boolean exact) {
+		
+		List<String> words = expand(Collections.singletonList(query), exact);
+		
+		if(words.size() <= 1) {
+			return new Matches(words.isEmpty() ? null : idx.get(words.get(0)));
+		}
+		
+		/** Dense accumulators by document ID, plus the IDs that were touched */
+		int[] counts = new int[paths.size()];
+		int[] firsts = new int[paths.size()];
+		int[] touched = new int[paths.size()];
+		int size = 0;
+		
+		for(String w : words) {
+			PostingList postings = idx.get(w);
+			
+			for(int i = 0; i < postings.size(); i++) {
+				int doc = postings.doc(i);
+				
+				if(counts[doc] == 0) {
+					touched[size++] = doc;
+					firsts[doc] = postings.first(i);
+				}
+				else {
+					firsts[doc] = Math.min(firsts[doc], postings.first(i));
+				}
+				
+				counts[doc] += postings.count(i);
+			}
+		}
+		
+		Arrays.sort(touched, 0, size);
+		Matches matches = new Matches(size);
+		
+		for(int i = 0; i < size; i++) {
+			matches.docs[i] = touched[i];
+			matches.counts[i] = counts[touched[i]];
+			matches.firsts[i] = firsts[touched[i]];
+		}
+		
+		return matches;
+	}
+	
+	/**
+	 * Combines the matches of the plain words of one query into its results.
+	 * Gives the same results as searching for the words with
+	 * {@link #search(Query, boolean)}, including counting a repeated word twice.
+	 * 
+	 * @param matches
+	 * 		matches of each plain word of the query, in order
+	 * @return
+	 * 		a collection of search results
+	 * 
+	 * @see #matches(String, boolean)
+	 */
+	public Collection<Word> search(List<Matches> matches) {
+		return search(matches, 0);
+	}
+	
+	/**
+	 * Returns the best k results of one query of a batch, sorted by natural
+	 * order.
+	 * 
+	 * @param matches
+	 * 		matches of each plain word of the query, in order
+	 * @param k
+	 * 		number of results to return; all results if zero or negative
+	 * @return
+	 * 		sorted list of at most k search results
+	 * 
+	 * @see #search(List)
+	 */
+	public List<Word> search(List<Matches> matches, int k) {
+		
+		try(Results resultsMap = new Results(Ranking.FREQUENCY)) {
+			for(Matches match : matches)
+				for(int i = 0; i < match.size; i++)
+					resultsMap.add(match.docs[i], match.counts[i], match.firsts[i], 0);
+			
+			return resultsMap.top(k, null);
+		}
+	}
+	
+	/**
+	 * Returns the number of documents fully scored by pruned top-k searches so
+	 * far. Useful for seeing how much work pruning saves.
+	 * 
+	 * @return
+	 * 		number of documents scored
+	 */
+	public long scoredDocuments() {
+		return scored.sum();
+	}
+	
+	/**
+	 * Searches for plain words and updates the resultsMap.
+	 * 
+	 * @param queries
+	 * 		list of words
+	 * @param exact
+	 * 		true to match words exactly, false to match them as prefixes
+	 * @param resultsMap
+	 * 		Holds the results of the search
+	 */
+	private void termsHandler(List<String> queries, boolean exact, Results resultsMap) {
+		for(String w : expand(queries, exact))
+			searchHandler(w, resultsMap);
+	}
+	
+	/**
+	 * Returns the words of the index that the query words match, in the order
+	 * they are searched. A query word that is repeated is matched again.
+	 * 
+	 * @param queries
+	 * 		list of words
+	 * @param exact
+	 * 		true to match words exactly, false to match them as prefixes
+	 * @return
+	 * 		matching words in the index
+	 */
+	private List<String> expand(List<String> queries, boolean exact) {
+		
+		List<String> words = new ArrayList<>();
+		
+		if(exact) {
+			for(String query : queries)
+				if(idx.containsKey(query))
+					words.add(query);
+		}
+		else {
+			/** Partial search; words starting with the query are together in the dictionary */
+			for(String query : queries)
+				for(String w : terms.tailSet(query))
+					if(w.startsWith(query))
+						words.add(w);
+					else
+						break;
+		}
+		
+		return words;
+	}
+	
+	/**
+	 * Returns the words of the index that the plain words and wildcard patterns
+	 * of a query match, in the order they are searched.
+	 * 
+	 * @param query
+	 * 		parsed query
+	 * @param exact
+	 * 		true to match plain words exactly, false to match them as prefixes
+	 * @return
+	 * 		matching words in the index
+	 */
+	private List<String> words(Query query, boolean exact) {
+		
+		List<String> words = expand(query.terms(), exact);
+		
+		for(String pattern : query.wildcards())
+			words.addAll(wildcardTerms(pattern));
+		
+		return words;
+	}
+	
+	/**
+	 * Returns the words in the index that match a wildcard pattern, sorted. Uses
+	 * the k-gram index, so only words sharing every gram of the pattern are
+	 * checked, even when its fixed parts are shorter than a k-gram, like
+	 * <code>*ab*</code>.
+	 * 
+	 * @param pattern
+	 * 		cleaned pattern with * for any characters
+	 * @return
+	 * 		matching words, sorted
+	 * 
+	 * @see KGramIndex#match(String)
+	 */
+	public List<String> wildcardTerms(String pattern) {
+		
+		return kgrams.match(pattern);
+	}
+	
+	/**
+	 * Returns the best k BM25 results for some words using MaxScore pruning.
+	 * 
+	 * The words are sorted by their score bounds. Once k results are found,
+	 * the words with the smallest bounds whose bounds add up to less than the
+	 * k-th best score become non-essential: a document that only contains
+	 * those words cannot make the top k, so documents are only taken from the
+	 * essential words' lists. For each one, the non-essential lists are skipped
+	 * ahead with {@link PostingList#advance(int, int)}, largest bound first, and
+	 * the document is dropped as soon as its bound falls below the k-th best
+	 * score. Surviving documents are scored exactly as an exhaustive search
+	 * would score them, in the same order, so the results are identical.
+	 * 
+	 * @param words
+	 * 		words in the index, in search order
+	 * @param k
+	 * 		number of results to return
+	 * @param deadline
+	 * 		when to stop and return the best results so far
+	 * @return
+	 * 		sorted list of at most k search results
+	 * 
+	 * @see #search(Query, boolean, Ranking)
+	 */
+	private List<Word> maxScore(List<String> words, int k, Ranking ranking, Deadline deadline) {
+		
+		Results resultsMap = new Results(ranking, deadline);
+		
+		int m = words.size();
+		PostingList[] lists = new PostingList[m];
+		double[] idf = new double[m];
+		double[] bound = new double[m];
+		
+		for(int i = 0; i < m; i++) {
+			lists[i] = idx.get(words.get(i));
+			idf[i] = resultsMap.idf(lists[i].size());
+			bound[i] = bound(words.get(i), lists[i], resultsMap);
+		}
+		
+		/** Word indexes by bound, smallest first, and the running sums of their bounds */
+		int[] order = new int[m];
+		double[] prefix = new double[m + 1];
+		List<Integer> sorted = new ArrayList<>();
+		
+		for(int i = 0; i < m; i++)
+			sorted.add(i);
+		
+		sorted.sort((a, b) -> Double.compare(bound[a], bound[b]));
+		
+		for(int j = 0; j < m; j++) {
+			order[j] = sorted.get(j);
+			prefix[j + 1] = prefix[j] + bound[order[j]];
+		}
+		
+		int[] cursors = new int[m];
+		
+		/** The k best results so far, worst first */
+		PriorityQueue<Word> best = new PriorityQueue<>(k, Collections.reverseOrder());
+		double threshold = 0;
+		
+		/** order[essential] through order[m - 1] are essential */
+		int essential = 0;
+		
+		while(!resultsMap.stop()) {
+			int doc = Integer.MAX_VALUE;
+			
+			for(int j = essential; j < m; j++) {
+				int i = order[j];
+				
+				if(cursors[i] < lists[i].size()) {
+					doc = Math.min(doc, lists[i].doc(cursors[i]));
+				}
+			}
+			
+			if(doc == Integer.MAX_VALUE) {
+				break;
+			}
+			
+			double upper = prefix[essential];
+			
+			for(int j = essential; j < m; j++) {
+				int i = order[j];
+				
+				if(cursors[i] < lists[i].size() && lists[i].doc(cursors[i]) == doc) {
+					upper += bound[i];
+				}
+			}
+			
+			/** Check the non-essential words, largest bound first, until the document cannot make it */
+			boolean full = best.size() == k;
+			
+			for(int j = essential - 1; j >= 0 && !(full && below(upper, threshold)); j--) {
+				int i = order[j];
+				cursors[i] = lists[i].advance(cursors[i], doc);
+				
+				if(cursors[i] == lists[i].size() || lists[i].doc(cursors[i]) != doc) {
+					upper -= bound[i];
+				}
+			}
+			
+			if(!full || !below(upper, threshold)) {
+				
+				/** Same sums in the same order as Word#update, so the score matches exactly */
+				int frequency = 0;
+				int first = Integer.MAX_VALUE;
+				double score = 0;
+				
+				for(int i = 0; i < m; i++) {
+					cursors[i] = lists[i].advance(cursors[i], doc);
+					
+					if(cursors[i] < lists[i].size() && lists[i].doc(cursors[i]) == doc) {
+						int count = lists[i].count(cursors[i]);
+						frequency += count;
+						first = Math.min(first, lists[i].first(cursors[i]));
+						score += resultsMap.score(count, idf[i], doc, lists[i].fields(cursors[i]));
+					}
+				}
+				
+				scored.increment();
+				Word result = new Word(paths.get(doc), frequency, first, score);
+				
+				if(!full) {
+					best.add(result);
+				}
+				else if(result.compareTo(best.peek()) < 0) {
+					best.poll();
+					best.add(result);
+				}
+				
+				if(best.size() == k) {
+					threshold = best.peek().getScore();
+					
+					while(essential < m && below(prefix[essential + 1], threshold)) {
+						essential++;
+					}
+				}
+			}
+			
+			for(int j = essential; j < m; j++) {
+				int i = order[j];
+				
+				if(cursors[i] < lists[i].size() && lists[i].doc(cursors[i]) == doc) {
+					cursors[i]++;
+				}
+			}
+		}
+		
+		return Word.listByNaturalOrder(best);
+	}
+	
+	/**
+	 * Tests whether a score bound is certainly below the threshold, leaving
+	 * room for rounding in the sums of bounds.
+	 */
+	private static boolean below(double upper, double threshold) {
+		return upper * (1 + 1e-9) < threshold;
+	}
+	
+	/**
+	 * Returns the largest BM25 score of any one match of a word. Computed once
+	 * per word and cached until the index changes, since it depends on the
+	 * document lengths and the number of documents.
+	 * 
+	 * @param word
+	 * 		word in the index
+	 * @param postings
+	 * 		posting list of the word
+	 * @param resultsMap
+	 * 		results that do the scoring
+	 * @return
+	 * 		upper bound on the score of one match
+	 */
+	private double bound(String word, PostingList postings, Results resultsMap) {
+		
+		/** BM25F bounds include the field boosts, so each ranking has its own */
+		String key = resultsMap.ranking + " " + word;
+		Bound cached = bounds.get(key);
+		
+		if(cached != null && cached.changes == changes) {
+			return cached.value;
+		}
+		
+		double idf = resultsMap.idf(postings.size());
+		double value = 0;
+		
+		for(int i = 0; i < postings.size(); i++)
+			value = Math.max(value, resultsMap.score(postings.count(i), idf, postings.doc(i), postings.fields(i)));
+		
+		bounds.put(key, new Bound(changes, value));
+		return value;
+	}
+	
+	
+	/** 
+	 * Retrieves the information needed from the index of the found word and updates the resultsMap.
+	 * 
+	 * @param w
+	 * 		word that is found from the search
+	 * @param resultsMap
+	 * 		Holds the results of the search
+	 * 
+	 * @see Word#update(int, int)
+	 */
+	private void searchHandler(String w, Results resultsMap) {
+		
+		PostingList postings = idx.get(w);
+		
+		double idf = resultsMap.idf(postings.size());
+		
+		/** Positions are kept sorted, so the first is the initial position */
+		for(int i = 0; i < postings.size() && !resultsMap.stop(); i++)
+			resultsMap.add(postings.doc(i), postings.count(i), postings.first(i),
+					resultsMap.score(postings.count(i), idf, postings.doc(i), postings.fields(i)));
+	}
+	
+	/**
+	 * Returns the posting lists of some words.
+	 * 
+	 * @param words
+	 * 		words to look up
+	 * @return
+	 * 		posting lists in the same order, or null if any word is not in the index
+	 */
+	private PostingList[] postings(List<String> words) {
+		
+		PostingList[] lists = new PostingList[words.size()];
+		
+		for(int i = 0; i < lists.length; i++) {
+			lists[i] = idx.get(words.get(i));
+			
+			if(lists[i] == null) {
+				return null;
+			}
+		}
+		
+		return lists;
+	}
+	
+	/**
+	 * Returns the index of the shortest posting list.
+	 * 
+	 * @param lists
+	 * 		posting lists
+	 * @return
+	 * 		index of the list with the fewest documents
+	 */
+	private static int rarest(PostingList[] lists) {
+		
+		int rare = 0;
+		
+		for(int i = 1; i < lists.length; i++)
+			if(lists[i].size() < lists[rare].size())
+				rare = i;
+		
+		return rare;
+	}
+	
+	/**
+	 * Moves every cursor to the next document that all the posting lists
+	 * contain, starting from the current document of the rarest list. Only the
+	 * rarest list is walked one document at a time; the others skip ahead with
+	 * {@link PostingList#advance(int, int)}, so the work depends on the rarest
+	 * list rather than the longest.
+	 * 
+	 * @param lists
+	 * 		posting lists to intersect
+	 * @param cursors
+	 * 		current index into each list, updated in place
+	 * @param rare
+	 * 		index of the rarest list
+	 * @return
+	 * 		true if the cursors now point to a shared document, false if there are none left
+	 */
+	private static boolean align(PostingList[] lists, int[] cursors, int rare) {
+		
+		while(cursors[rare] < lists[rare].size()) {
+			int doc = lists[rare].doc(cursors[rare]);
+			int next = doc;
+			
+			for(int i = 0; i < lists.length && next == doc; i++) {
+				if(i == rare) {
+					continue;
+				}
+				
+				cursors[i] = lists[i].advance(cursors[i], doc);
+				
+				if(cursors[i] == lists[i].size()) {
+					return false;
+				}
+				
+				next = lists[i].doc(cursors[i]);
+			}
+			
+			if(next == doc) {
+				return true;
+			}
+			
+			/** Some other word is missing from this document; skip ahead to where it appears */
+			cursors[rare] = lists[rare].advance(cursors[rare], next);
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Finds the documents that contain every word of a group and updates the
+	 * resultsMap.
+	 * 
+	 * @param group
+	 * 		words that must all appear
+	 * @param resultsMap
+	 * 		Holds the results of the search
+	 * 
+	 * @see #align(PostingList[], int[], int)
+	 */
+	private void allHandler(List<String> group, Results resultsMap) {
+		
+		PostingList[] lists = postings(group);
+		
+		if(lists == null) {
+			return;
+		}
+		
+		int rare = rarest(lists);
+		int[] cursors = new int[lists.length];
+		
+		while(!resultsMap.stop() && align(lists, cursors, rare)) {
+			int doc = lists[rare].doc(cursors[rare]);
+			int frequency = 0;
+			int first = Integer.MAX_VALUE;
+			double score = 0;
+			
+			for(int i = 0; i < lists.length; i++) {
+				frequency += lists[i].count(cursors[i]);
+				first = Math.min(first, lists[i].first(cursors[i]));
+				score += resultsMap.score(lists[i].count(cursors[i]), resultsMap.idf(lists[i].size()), doc,
+						lists[i].fields(cursors[i]));
+			}
+			
+			resultsMap.add(doc, frequency, first, score);
+			cursors[rare]++;
+		}
+	}
+	
+	/**
+	 * Removes the documents that contain a word from the resultsMap.
+	 * 
+	 * @param word
+	 * 		word that must not appear
+	 * @param resultsMap
+	 * 		Holds the results of the search
+	 */
+	private void excludeHandler(String word, Results resultsMap) {
+		
+		PostingList postings = idx.get(word);
+		
+		if(postings == null) {
+			return;
+		}
+		
+		/** Walk whichever side is smaller */
+		if(postings.size() <= resultsMap.size()) {
+			for(int i = 0; i < postings.size(); i++)
+				resultsMap.remove(postings.doc(i));
+		}
+		else {
+			for(int doc : resultsMap.documents())
+				if(postings.find(doc) >= 0)
+					resultsMap.remove(doc);
+		}
+	}
+	
+	/**
+	 * Finds where the words of a phrase appear consecutively and updates the
+	 * resultsMap. Walks the documents every word shares, then does the same with
+	 * the positions inside each of them, galloping through the positions of the
+	 * other words from those of the rarest word.
+	 * 
+	 * @param phrase
+	 * 		words that must appear in order
+	 * @param resultsMap
+	 * 		Holds the results of the search
+	 * 
+	 * @see #align(PostingList[], int[], int)
+	 */
+	private void phraseHandler(List<String> phrase, Results resultsMap) {
+		
+		PostingList[] lists = postings(phrase);
+		
+		if(lists == null) {
+			return;
+		}
+		
+		int n = lists.length;
+		int rare = rarest(lists);
+		
+		int[] cursors = new int[n];
+		int[] positionCursors = new int[n];
+		
+		while(!resultsMap.stop() && align(lists, cursors, rare)) {
+			int r = cursors[rare];
+			int doc = lists[rare].doc(r);
+			
+			int frequency = 0;
+			int first = 0;
+			
+			int[] rarePositions = lists[rare].positions(r);
+			Arrays.fill(positionCursors, 0);
+			
+			for(int j = 0; j < lists[rare].count(r); j++) {
+				int start = rarePositions[j] - rare;
+				boolean match = start > 0;
+				
+				for(int i = 0; i < n && match; i++) {
+					if(i == rare) {
+						continue;
+					}
+					
+					int[] positions = lists[i].positions(cursors[i]);
+					int count = lists[i].count(cursors[i]);
+					
+					positionCursors[i] = PostingList.gallop(positions, positionCursors[i], count, start + i);
+					match = positionCursors[i] < count && positions[positionCursors[i]] == start + i;
+				}
+				
+				if(match) {
+					if(frequency == 0) {
+						first = start;
+					}
+					
+					frequency++;
+				}
+			}
+			
+			if(frequency > 0) {
+				/** Only a field every word of the phrase is in counts */
+				byte fields = -1;
+				
+				for(int i = 0; i < n; i++)
+					fields &= lists[i].fields(cursors[i]);
+				
+				resultsMap.add(doc, frequency, first,
+						resultsMap.score(frequency, resultsMap.idf(lists[rare].size()), doc, fields));
+			}
+			
+			cursors[rare]++;
+		}
+	}
+	
+	/**
+	 * Finds where two words appear within a distance of each other and updates
+	 * the resultsMap. Intersects the two posting lists with galloping search,
+	 * then walks the positions of one word while galloping through the other's.
+	 * 
+	 * @param near
+	 * 		proximity clause
+	 * @param resultsMap
+	 * 		Holds the results of the search
+	 */
+	private void nearHandler(Query.Near near, Results resultsMap) {
+		
+		PostingList left = idx.get(near.left);
+		PostingList right = idx.get(near.right);
+		
+		if(left == null || right == null) {
+			return;
+		}
+		
+		boolean same = near.left.equals(near.right);
+		int l = 0;
+		int r = 0;
+		
+		while(l < left.size() && r < right.size() && !resultsMap.stop()) {
+			
+			if(left.doc(l) < right.doc(r)) {
+				l = left.advance(l, right.doc(r));
+				continue;
+			}
+			
+			if(right.doc(r) < left.doc(l)) {
+				r = right.advance(r, left.doc(l));
+				continue;
+			}
+			
+			int[] leftPositions = left.positions(l);
+			int[] rightPositions = right.positions(r);
+			int rightCount = right.count(r);
+			
+			int frequency = 0;
+			int first = Integer.MAX_VALUE;
+			int cursor = 0;
+			
+			for(int j = 0; j < left.count(l); j++) {
+				int p = leftPositions[j];
+				cursor = PostingList.gallop(rightPositions, cursor, rightCount, p - near.distance);
+				
+				/** The same word cannot be near itself at the same position */
+				int k = cursor;
+				
+				if(same && k < rightCount && rightPositions[k] == p) {
+					k++;
+				}
+				
+				if(k < rightCount && rightPositions[k] <= p + near.distance) {
+					frequency++;
+					first = Math.min(first, Math.min(p, rightPositions[k]));
+				}
+			}
+			
+			if(frequency > 0) {
+				int df = Math.min(left.size(), right.size());
+				byte fields = (byte) (left.fields(l) & right.fields(r));
+				resultsMap.add(left.doc(l), frequency, first, resultsMap.score(frequency, resultsMap.idf(df), left.doc(l), fields));
+			}
+			
+			l++;
+			r++;
+		}
+	}
+	
+	/**
+	 * The sorted words of the index in an array, with the length of the prefix
+	 * each word shares with the word before it. Words that start with a prefix
+	 * are consecutive, so skipping all of them only reads the small shared
+	 * lengths instead of comparing strings.
+	 */
+	private static class Dictionary {
+		
+		private final String[] words;
+		
+		/** Length of the prefix shared with the previous word, capped at Byte.MAX_VALUE */
+		private final byte[] shared;
+		
+		private Dictionary(String[] words) {
+			this.words = words;
+			this.shared = new byte[words.length];
+			
+			for(int i = 1; i < words.length; i++) {
+				String a = words[i - 1];
+				String b = words[i];
+				int max = Math.min(Byte.MAX_VALUE, Math.min(a.length(), b.length()));
+				int n = 0;
+				
+				while(n < max && a.charAt(n) == b.charAt(n)) {
+					n++;
+				}
+				
+				shared[i] = (byte) n;
+			}
+		}
+	}
+	
+	/**
+	 * The documents a query word matches, sorted by document ID, with the
+	 * combined frequency and first position of its matches in each.
+	 * 
+	 * @see WordIndex#matches(String, boolean)
+	 */
+	public static class Matches {
+		
+		private final int[] docs;
+		
+		private final int[] counts;
+		
+		private final int[] firsts;
+		
+		private final int size;
+		
+		/**
+		 * Initializes matches for a number of documents, to be filled in.
+		 */
+		private Matches(int size) {
+			this.docs = new int[size];
+			this.counts = new int[size];
+			this.firsts = new int[size];
+			this.size = size;
+		}
+		
+		/**
+		 * Copies the matches of a single word out of its posting list, or makes
+		 * empty matches if there is none.
+		 */
+		private Matches(PostingList postings) {
+			this(postings == null ? 0 : postings.size());
+			
+			for(int i = 0; i < size; i++) {
+				docs[i] = postings.doc(i);
+				counts[i] = postings.count(i);
+				firsts[i] = postings.first(i);
+			}
+		}
+		
+		/**
+		 * Returns the number of documents matched.
+		 * 
+		 * @return number of documents
+		 */
+		public int size() {
+			return size;
+		}
+	}
+	
+	/**
+	 * A cached score bound and the number of changes to the index when it was
+	 * computed.
+	 */
+	private static class Bound {
+		
+		private final long changes;
+		
+		private final double value;
+		
+		private Bound(long changes, double value) {
+			this.changes = changes;
+			this.value = value;
+		}
+	}
+	
+	/**
+	 * Sums of the matches of one search, in arrays indexed by document ID.
+	 * Adding a match only writes a few array slots, so a search makes no
+	 * objects per matched document. The IDs of the documents that were
+	 * touched are listed, so only those need to be read or cleared.
+	 * 
+	 * Each thread keeps one accumulator and reuses it for every search it runs,
+	 * growing it when the index grows.
+	 */
+	private static class Accumulator {
+		
+		/** Frequency of each document, or zero if it has no results */
+		private int[] frequency;
+		
+		/** First position of each document with results */
+		private int[] position;
+		
+		/** Score of each document with results */
+		private double[] score;
+		
+		/** IDs of the documents with results, in the order they were first added */
+		private int[] touched;
+		
+		/** Number of IDs in touched */
+		private int size;
+		
+		/** True while a search is using this accumulator */
+		private boolean busy;
+		
+		private Accumulator() {
+			this.frequency = new int[0];
+			this.position = new int[0];
+			this.score = new double[0];
+			this.touched = new int[0];
+		}
+		
+		/**
+		 * Returns this thread's accumulator, or a new one if a search on this
+		 * thread is already using it.
+		 * 
+		 * @param documents
+		 * 		number of documents in the index
+		 * @return
+		 * 		empty accumulator with room for every document
+		 */
+		private static Accumulator acquire(int documents) {
+			Accumulator sums = ACCUMULATORS.get();
+			
+			if(sums.busy) {
+				sums = new Accumulator();
+			}
+			
+			if(sums.frequency.length < documents) {
+				int length = Math.max(documents, sums.frequency.length * 2);
+				sums.frequency = new int[length];
+				sums.position = new int[length];
+				sums.score = new double[length];
+				sums.touched = new int[length];
+			}
+			
+			sums.busy = true;
+			return sums;
+		}
+		
+		/**
+		 * Clears the touched documents so the next search starts empty.
+		 */
+		private void release() {
+			for(int i = 0; i < size; i++)
+				frequency[touched[i]] = 0;
+			
+			size = 0;
+			busy = false;
+		}
+	}
+	
+	/**
+	 * Results of one search, and how they are scored. Matches are summed by
+	 * document ID in an {@link Accumulator}, and a {@link Word} is only made for
+	 * each result that is returned, so a search for the best k results makes k
+	 * Words no matter how many documents match.
+	 * 
+	 * The results are read once, by {@link #words()} or {@link #top(int, Word)},
+	 * which also hands the accumulator back for the next search. Searches open
+	 * them in a try-with-resources block, so the accumulator is handed back
+	 * even if the search throws before the results are read.
+	 */
+	private class Results implements AutoCloseable {
+		
+		/** Sums of the matches, or null until the first match is added */
+		private Accumulator sums;
+		
+		/** Number of touched documents that were removed */
+		private int removed;
+		
+		private final Ranking ranking;
+		
+		/** Average document length when the search started */
+		private final double averageLength;
+		
+		/** When to stop searching */
+		private final Deadline deadline;
+		
+		/** Steps taken by the search loops, for checking the deadline */
+		private int steps;
+		
+		/**
+		 * Initializes empty results.
+		 * 
+		 * @param ranking
+		 * 		how the results will be ordered
+		 */
+		private Results(Ranking ranking) {
+			this(ranking, Deadline.none());
+		}
+		
+		/**
+		 * Initializes empty results for a search with a deadline.
+		 * 
+		 * @param ranking
+		 * 		how the results will be ordered
+		 * @param deadline
+		 * 		when to stop searching
+		 */
+		private Results(Ranking ranking, Deadline deadline) {
+			this.ranking = ranking;
+			this.averageLength = paths.isEmpty() ? 0 : (double) totalLength / paths.size();
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * Counts a step of a search loop and tests whether the loop should stop.
+		 * Only looks at the clock every {@link #CHECK_EVERY} steps, since a step
+		 * is much cheaper.
+		 * 
+		 * @return
+		 * 		true if the deadline expired
+		 */
+		private boolean stop() {
+			return ++steps % CHECK_EVERY == 0 && deadline.expired();
+		}
+		
+		/**
+		 * Returns the inverse document frequency of a word, which weighs the
+		 * score of its matches. Rare words weigh more.
+		 * 
+		 * @param df
+		 * 		number of documents the word appears in, which is the size of its posting list
+		 * @return
+		 * 		inverse document frequency
+		 */
+		private double idf(int df) {
+			int n = paths.size();
+			return Math.log(1 + (n - df + 0.5) / (df + 0.5));
+		}
+		
+		/**
+		 * Returns the BM25 score of a match, or zero when ranking by frequency.
+		 * Only reads the stored document length, so scoring costs the same no
+		 * matter how large the index is. With BM25F, being in the title, a
+		 * heading or a link counts as a few extra matches, which still saturate
+		 * like any other matches.
+		 * 
+		 * @param frequency
+		 * 		number of matches in the document
+		 * @param idf
+		 * 		inverse document frequency of the word
+		 * @param doc
+		 * 		document ID
+		 * @param fields
+		 * 		{@link FieldedText} bits of the match
+		 * @return
+		 * 		score to add to the document
+		 * 
+		 * @see #idf(int)
+		 */
+		private double score(int frequency, double idf, int doc, byte fields) {
+			
+			if(ranking == Ranking.FREQUENCY) {
+				return 0;
+			}
+			
+			double tf = frequency;
+			
+			if(ranking == Ranking.BM25F) {
+				tf += (fields & FieldedText.TITLE) != 0 ? TITLE_BOOST : 0;
+				tf += (fields & FieldedText.HEADING) != 0 ? HEADING_BOOST : 0;
+				tf += (fields & FieldedText.ANCHOR) != 0 ? ANCHOR_BOOST : 0;
+			}
+			
+			double norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+			
+			return idf * tf * (K1 + 1) / (tf + norm);
+		}
+		
+		/**
+		 * Adds a match in a document.
+		 * 
+		 * @param doc
+		 * 		document ID
+		 * @param frequency
+		 * 		number of matches in the document, at least one
+		 * @param position
+		 * 		position of the first match
+		 * @param score
+		 * 		score of the match
+		 * 
+		 * @see Word#update(int, int, double)
+		 */
+		private void add(int doc, int frequency, int position, double score) {
+			
+			if(sums == null) {
+				sums = Accumulator.acquire(paths.size());
+			}
+			
+			if(sums.frequency[doc] == 0) {
+				sums.touched[sums.size++] = doc;
+				sums.frequency[doc] = frequency;
+				sums.position[doc] = position;
+				sums.score[doc] = score;
+			} else {
+				sums.frequency[doc] += frequency;
+				sums.position[doc] = Math.min(sums.position[doc], position);
+				sums.score[doc] += score;
+			}
+		}
+		
+		/**
+		 * Returns the number of documents with results.
+		 * 
+		 * @return
+		 * 		number of results
+		 */
+		private int size() {
+			return sums == null ? 0 : sums.size - removed;
+		}
+		
+		/**
+		 * Tests whether a document has results.
+		 * 
+		 * @param doc
+		 * 		document ID
+		 * @return
+		 * 		true if a match was added and not removed
+		 */
+		private boolean contains(int doc) {
+			return sums != null && sums.frequency[doc] != 0;
+		}
+		
+		/**
+		 * Returns the IDs of the documents with results.
+		 * 
+		 * @return
+		 * 		document IDs, in the order they were first added
+		 */
+		private int[] documents() {
+			
+			int[] docs = new int[size()];
+			int n = 0;
+			
+			for(int i = 0; sums != null && i < sums.size; i++)
+				if(contains(sums.touched[i]))
+					docs[n++] = sums.touched[i];
+			
+			return docs;
+		}
+		
+		/**
+		 * Removes the results of a document. Only used for exclusions, after
+		 * every match is added, so a removed document is not added again.
+		 * 
+		 * @param doc
+		 * 		document ID
+		 */
+		private void remove(int doc) {
+			if(contains(doc)) {
+				sums.frequency[doc] = 0;
+				removed++;
+			}
+		}
+		
+		/**
+		 * Hands the accumulator back for the next search on this thread. Safe
+		 * to call more than once, and after the results were read.
+		 */
+		@Override
+		public void close() {
+			
+			if(sums != null) {
+				sums.release();
+				sums = null;
+			}
+		}
+		
+		/**
+		 * Makes a Word for every result, unsorted.
+		 * 
+		 * @return
+		 * 		a collection of search results
+		 */
+		private Collection<Word> words() {
+			
+			List<Word> words = new ArrayList<>(size());
+			
+			if(sums == null) {
+				return words;
+			}
+			
+			for(int i = 0; i < sums.size; i++)
+				if(contains(sums.touched[i]))
+					words.add(word(sums.touched[i]));
+			
+			close();
+			return words;
+		}
+		
+		/**
+		 * Returns the best k results that come after a given result, sorted by
+		 * natural order. The best k document IDs are picked with a bounded heap
+		 * that compares the arrays directly, and only those become Words.
+		 * 
+		 * @param k
+		 * 		number of results to return; all results if zero or negative
+		 * @param after
+		 * 		last result of the previous page, or null to start from the best
+		 * @return
+		 * 		sorted list of at most k search results
+		 * 
+		 * @see Word#topK(Collection, int, Word)
+		 */
+		private List<Word> top(int k, Word after) {
+			
+			if(sums == null) {
+				return new ArrayList<>();
+			}
+			
+			int[] heap = new int[k > 0 ? Math.min(k, size()) : size()];
+			int size = 0;
+			
+			for(int i = 0; i < sums.size; i++) {
+				int doc = sums.touched[i];
+				
+				if(!contains(doc) || after != null && compare(doc, after) <= 0) {
+					continue;
+				}
+				
+				if(size < heap.length) {
+					heap[size] = doc;
+					siftUp(heap, size++);
+				}
+				else if(size > 0 && compare(doc, heap[0]) < 0) {
+					heap[0] = doc;
+					siftDown(heap, size);
+				}
+			}
+			
+			/** Pop the worst remaining into the end of the list */
+			Word[] sorted = new Word[size];
+			
+			while(size > 0) {
+				sorted[size - 1] = word(heap[0]);
+				heap[0] = heap[--size];
+				siftDown(heap, size);
+			}
+			
+			close();
+			
+			List<Word> list = new ArrayList<>(sorted.length);
+			Collections.addAll(list, sorted);
+			return list;
+		}
+		
+		/**
+		 * Makes the Word of a document's results.
+		 */
+		private Word word(int doc) {
+			return new Word(paths.get(doc), sums.frequency[doc], sums.position[doc], sums.score[doc]);
+		}
+		
+		/**
+		 * Compares the results of two documents by the natural order of Words,
+		 * telling paths that only differ in case apart as {@link Word#follows(Word)}
+		 * does.
+		 * 
+		 * @return
+		 * 		negative if the first document comes first
+		 */
+		private int compare(int a, int b) {
+			
+			int compare = Double.compare(sums.score[b], sums.score[a]);
+			
+			if(compare == 0)
+				compare = Integer.compare(sums.frequency[b], sums.frequency[a]);
+			
+			if(compare == 0)
+				compare = Integer.compare(sums.position[a], sums.position[b]);
+			
+			if(compare == 0)
+				compare = paths.get(a).compareToIgnoreCase(paths.get(b));
+			
+			return compare != 0 ? compare : paths.get(a).compareTo(paths.get(b));
+		}
+		
+		/**
+		 * Compares the results of a document with a Word the same way.
+		 * 
+		 * @return
+		 * 		positive if the document comes after the Word
+		 */
+		private int compare(int doc, Word word) {
+			
+			int compare = Double.compare(word.getScore(), sums.score[doc]);
+			
+			if(compare == 0)
+				compare = Integer.compare(word.getFrequency(), sums.frequency[doc]);
+			
+			if(compare == 0)
+				compare = Integer.compare(sums.position[doc], word.getPosition());
+			
+			if(compare == 0)
+				compare = paths.get(doc).compareToIgnoreCase(word.getPath());
+			
+			return compare != 0 ? compare : paths.get(doc).compareTo(word.getPath());
+		}
+		
+		/**
+		 * Moves the entry at the given heap slot up until its parent comes after it.
+		 */
+		private void siftUp(int[] heap, int slot) {
+			while(slot > 0) {
+				int parent = (slot - 1) / 2;
+				
+				if(compare(heap[slot], heap[parent]) <= 0) {
+					return;
+				}
+				
+				int temp = heap[slot];
+				heap[slot] = heap[parent];
+				heap[parent] = temp;
+				slot = parent;
+			}
+		}
+		
+		/**
+		 * Moves the root of the heap down until both children come before it.
+		 */
+		private void siftDown(int[] heap, int size) {
+			int slot = 0;
+			
+			while(true) {
+				int worst = slot;
+				int left = 2 * slot + 1;
+				int right = left + 1;
+				
+				if(left < size && compare(heap[left], heap[worst]) > 0) {
+					worst = left;
+				}
+				
+				if(right < size && compare(heap[right], heap[worst]) > 0) {
+					worst = right;
+				}
+				
+				if(worst == slot) {
+					return;
+				}
+				
+				int temp = heap[slot];
+				heap[slot] = heap[worst];
+				heap[worst] = temp;
+				slot = worst;
+			}
+		}
 	}
 
-}
\ No newline at end of file
+}
@@ -1,10 +1,27 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
 import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A simple work queue implementation based on the IBM developerWorks article by
  * Brian Goetz. It is up to the user of this class to keep track of whether
  * there is any pending work remaining.
  *
+ * Work is queued in one of several {@link Priority} lanes. Workers always take
+ * work from the most urgent non-empty lane, unless work in a less urgent lane
+ * has waited longer than the starvation limit, in which case the oldest such
+ * work is taken first.
+ *
+ * The number of workers is elastic between a minimum and a maximum. A worker is
+ * added when work is queued, no worker is idle, and work has been waiting
+ * longer than {@link #GROW_WAIT_MILLIS}. A worker exits after sitting idle for
+ * {@link #KEEP_ALIVE_MILLIS}. When recent tasks are CPU-bound (most of their
+ * run time is spent on the CPU rather than waiting on I/O), the pool is capped
+ * at the number of processors, since more threads would only add contention.
+ *
  * @see <a href=
  *      "http://www.ibm.com/developerworks/library/j-jtp0730/index.html">Java
  *      Theory and Practice: Thread Pools and Work Queues</a>
@@ -12,13 +29,22 @@ import java.util.LinkedList;
 public class WorkQueue {
 
 	/**
-	 * Pool of worker threads that will wait in the background until work is
-	 * available.
+	 * Number of worker threads that are waiting in the background or running
+	 * work. Guarded by the queue.
 	 */
-	private final PoolWorker[] workers;
+	private int workers;
+
+	/** Number of workers waiting for work. Guarded by the queue. */
+	private int idle;
+
+	/** Fewest workers to keep, even when idle */
+	private final int minimum;
 
-	/** Queue of pending work requests. */
-	private final LinkedList<Runnable> queue;
+	/** Most workers to start, even under load */
+	private final int maximum;
+
+	/** Queue of pending work requests, one lane per priority. */
+	private final Lanes queue;
 
 	/** Used to signal the queue should be shutdown. */
 	private volatile boolean shutdown;
@@ -26,9 +52,48 @@ public class WorkQueue {
 	/** The default number of threads to use when not specified. */
 	public static final int DEFAULT = 5;
 
+	/** Number of processors available, used to cap CPU-bound work. */
+	public static final int CORES = Runtime.getRuntime().availableProcessors();
+
+	/** The default maximum number of threads for an elastic queue. */
+	public static final int DEFAULT_MAX = Math.max(DEFAULT, 4 * CORES);
+
+	/** How long work may wait before another worker is started. */
+	public static final long GROW_WAIT_MILLIS = 50;
+
+	/** How long a worker above the minimum may sit idle before it exits. */
+	public static final long KEEP_ALIVE_MILLIS = 5000;
+
+	/** Fraction of run time spent on the CPU above which work is considered CPU-bound. */
+	public static final double CPU_BOUND_RATIO = 0.75;
+
+	/** How long work may wait in a lower priority lane before it is run ahead of more urgent work. */
+	public static final long STARVATION_MILLIS = 1000;
+
+	/** Most urgent tasks taken for each starved task taken ahead of them. */
+	public static final int STARVED_EVERY = 8;
+
+	/**
+	 * Priority classes for work requests, from most to least urgent.
+	 */
+	public static enum Priority {
+		/** Work someone is waiting on right now, such as a search */
+		INTERACTIVE,
+		/** Large batches of work, such as indexing files or crawling */
+		BULK,
+		/** Work that can run whenever workers are otherwise idle */
+		BACKGROUND
+	};
+
 	/** Number of requests waiting in queue */
 	private int pending;
 	
+	/** Wait and run times of the tasks run by this queue */
+	private final WorkQueueMetrics metrics;
+
+	/** Used to measure how much of each task's run time is spent on the CPU */
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	
 	/**
 	 * Starts a work queue with the default number of threads.
 	 *
@@ -39,40 +104,221 @@ public class WorkQueue {
 	}
 
 	/**
-	 * Starts a work queue with the specified number of threads.
+	 * Starts a work queue with the specified, fixed number of threads.
 	 *
 	 * @param threads
 	 *            number of worker threads; should be greater than 1
+	 * @see #WorkQueue(int, int)
 	 */
 	public WorkQueue(int threads) {
-		this.queue = new LinkedList<Runnable>();
-		this.workers = new PoolWorker[threads];
+		this(threads, threads);
+	}
+
+	/**
+	 * Starts a work queue that keeps at least the minimum number of threads and
+	 * grows up to the maximum number of threads under load.
+	 *
+	 * @param minimum
+	 *            number of worker threads to keep; should be at least 1
+	 * @param maximum
+	 *            most worker threads to start; raised to the minimum if lower
+	 */
+	public WorkQueue(int minimum, int maximum) {
+		this.queue = new Lanes(TimeUnit.MILLISECONDS.toNanos(STARVATION_MILLIS), STARVED_EVERY);
+		this.metrics = new WorkQueueMetrics();
+		this.minimum = Math.max(1, minimum);
+		this.maximum = Math.max(this.minimum, maximum);
 
 		this.shutdown = false;
 		this.pending = 0;
+		this.workers = 0;
+		this.idle = 0;
+
+		if(THREADS.isCurrentThreadCpuTimeSupported() && !THREADS.isThreadCpuTimeEnabled()) {
+			THREADS.setThreadCpuTimeEnabled(true);
+		}
 
 		// start the threads so they are waiting in the background
-		for (int i = 0; i < threads; i++) {
-			workers[i] = new PoolWorker();
-			workers[i].start();
+		synchronized (queue) {
+			for (int i = 0; i < this.minimum; i++) {
+				startWorker();
+			}
 		}
 	}
 
 	/**
-	 * Adds a work request to the queue. A thread will process this request when
-	 * available.
+	 * Adds a work request to the queue with {@link Priority#BULK} priority. A
+	 * thread will process this request when available.
 	 *
 	 * @param r
 	 *            work request (in the form of a {@link Runnable} object)
 	 */
 	public void execute(Runnable r) {
+		execute(Priority.BULK, r);
+	}
+
+	/**
+	 * Adds a work request to the lane for the given priority. A thread will
+	 * process this request when available.
+	 *
+	 * @param priority
+	 *            priority of the work request
+	 * @param r
+	 *            work request (in the form of a {@link Runnable} object)
+	 */
+	public void execute(Priority priority, Runnable r) {
+		execute(priority, r, typeOf(r));
+	}
+
+	/**
+	 * Adds a work request to the queue, recording its metrics under the given
+	 * task type.
+	 *
+	 * @param priority
+	 *            priority of the work request
+	 * @param r
+	 *            work request (in the form of a {@link Runnable} object)
+	 * @param type
+	 *            task type used to group run times
+	 */
+	private void execute(Priority priority, Runnable r, String type) {
+		// since a task is being added to the queue; counted first so finish()
+		// cannot return between the task being queued and it being counted
+		incrementPending();
+		metrics.taskSubmitted();
+
 		synchronized (queue) {
-			queue.addLast(r);
+			queue.addLast(new Task(priority, r, type));
 			queue.notifyAll();
+			grow();
 		}
-		
-		// since a task is being added to the queue
-		incrementPending();
+	}
+
+	/**
+	 * Adds a work request to the queue with {@link Priority#BULK} priority and
+	 * returns a future that completes once the request has been run. If the
+	 * request throws a runtime exception, the future completes exceptionally
+	 * with it.
+	 *
+	 * @param r
+	 *            work request (in the form of a {@link Runnable} object)
+	 * @return future completed when the request is done
+	 */
+	public CompletableFuture<Void> submit(Runnable r) {
+		return submit(Priority.BULK, r);
+	}
+
+	/**
+	 * Adds a work request to the lane for the given priority and returns a
+	 * future that completes once the request has been run.
+	 *
+	 * @param priority
+	 *            priority of the work request
+	 * @param r
+	 *            work request (in the form of a {@link Runnable} object)
+	 * @return future completed when the request is done
+	 * @see #submit(Runnable)
+	 */
+	public CompletableFuture<Void> submit(Priority priority, Runnable r) {
+		return submit(priority, r, typeOf(r));
+	}
+
+	/**
+	 * Adds a work request to the queue and returns a future that completes once
+	 * the request has been run, recording its metrics under the given task type.
+	 *
+	 * @param priority
+	 *            priority of the work request
+	 * @param r
+	 *            work request (in the form of a {@link Runnable} object)
+	 * @param type
+	 *            task type used to group run times
+	 * @return future completed when the request is done
+	 */
+	private CompletableFuture<Void> submit(Priority priority, Runnable r, String type) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+
+		execute(priority, new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					r.run();
+					future.complete(null);
+				}
+				catch (RuntimeException ex) {
+					future.completeExceptionally(ex);
+					throw ex;
+				}
+			}
+
+		}, type);
+
+		return future;
+	}
+
+	/**
+	 * Returns the task type used to group metrics, which is the simple name of
+	 * the task's class (for example, ParseFileTask or WebCrawlTask).
+	 *
+	 * @param r
+	 *            work request
+	 * @return name of the task type
+	 */
+	private static String typeOf(Runnable r) {
+		String name = r.getClass().getSimpleName();
+		return name.isEmpty() || name.contains("$") ? "Runnable" : name;
+	}
+
+	/**
+	 * Returns the current queue depth, wait times, run times by task type and
+	 * worker utilization.
+	 *
+	 * @return point-in-time copy of this queue's metrics
+	 */
+	public WorkQueueMetrics.Snapshot metrics() {
+		int queued;
+
+		synchronized (queue) {
+			queued = queue.size();
+		}
+
+		return metrics.snapshot(pending(), queued, size(), minimum, maximum);
+	}
+
+	/**
+	 * Returns the number of requests queued or running.
+	 *
+	 * @return pending work
+	 */
+	public synchronized int pending() {
+		return pending;
+	}
+
+	/**
+	 * Creates a new group of {@link Priority#BULK} tasks that share this queue's
+	 * workers but can be waited on independently of any other work in the
+	 * queue.
+	 *
+	 * @return new, empty task group
+	 * @see TaskGroup#finish()
+	 */
+	public TaskGroup group() {
+		return group(Priority.BULK);
+	}
+
+	/**
+	 * Creates a new group of tasks with the given priority that share this
+	 * queue's workers but can be waited on independently of any other work in
+	 * the queue.
+	 *
+	 * @param priority
+	 *            priority of every task in the group
+	 * @return new, empty task group
+	 * @see TaskGroup#finish()
+	 */
+	public TaskGroup group(Priority priority) {
+		return new TaskGroup(priority);
 	}
 	
 	/**
@@ -134,57 +380,414 @@ public class WorkQueue {
 	 * @return number of worker threads
 	 */
 	public int size() {
-		return workers.length;
+		synchronized (queue) {
+			return workers;
+		}
+	}
+
+	/**
+	 * Starts another worker thread. Must be called while holding the queue.
+	 */
+	private void startWorker() {
+		workers++;
+		new PoolWorker().start();
+	}
+
+	/**
+	 * Starts another worker if work is waiting, no worker is idle to take it,
+	 * work has been waiting longer than {@link #GROW_WAIT_MILLIS}, and the pool
+	 * is below its current limit. Must be called while holding the queue.
+	 *
+	 * @see #limit()
+	 */
+	private void grow() {
+		if(shutdown || queue.isEmpty() || idle > 0 || workers >= limit()) {
+			return;
+		}
+
+		long waited = Math.max(metrics.recentWaitNanos(), queue.oldestWait(System.nanoTime()));
+
+		if(waited > TimeUnit.MILLISECONDS.toNanos(GROW_WAIT_MILLIS)) {
+			startWorker();
+		}
+	}
+
+	/**
+	 * Returns the current limit on the number of workers. This is the maximum,
+	 * unless recent work is CPU-bound, in which case it is the number of
+	 * processors (but never below the minimum).
+	 *
+	 * @return current limit on the number of workers
+	 */
+	private int limit() {
+		if(metrics.recentCpuRatio() >= CPU_BOUND_RATIO) {
+			return Math.max(minimum, Math.min(maximum, CORES));
+		}
+
+		return maximum;
+	}
+
+	/**
+	 * Returns the CPU time used by the current thread, or 0 if not supported.
+	 *
+	 * @return CPU time in nanoseconds
+	 */
+	private static long cpuTime() {
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+	}
+
+	/**
+	 * A set of related tasks run by this queue. Each group keeps track of its
+	 * own pending work, so waiting on a group does not wait for work added by
+	 * anyone else (for example, other searches or a running crawl).
+	 */
+	public class TaskGroup {
+
+		/** Number of tasks from this group that have not finished */
+		private int pending;
+
+		/** Priority of every task in this group */
+		private final Priority priority;
+
+		/**
+		 * Initializes an empty group. Use {@link WorkQueue#group(Priority)}
+		 * instead.
+		 *
+		 * @param priority
+		 *            priority of every task in the group
+		 */
+		private TaskGroup(Priority priority) {
+			this.pending = 0;
+			this.priority = priority;
+		}
+
+		/**
+		 * Adds a work request belonging to this group to the queue.
+		 *
+		 * @param r
+		 *            work request (in the form of a {@link Runnable} object)
+		 */
+		public void execute(Runnable r) {
+			submit(r);
+		}
+
+		/**
+		 * Adds a work request belonging to this group to the queue and returns
+		 * a future that completes once the request has been run.
+		 *
+		 * @param r
+		 *            work request (in the form of a {@link Runnable} object)
+		 * @return future completed when the request is done
+		 * @see WorkQueue#submit(Runnable)
+		 */
+		public CompletableFuture<Void> submit(Runnable r) {
+			incrementPending();
+
+			return WorkQueue.this.submit(priority, new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						r.run();
+					}
+					finally {
+						decrementPending();
+					}
+				}
+
+			}, typeOf(r));
+		}
+
+		/**
+		 * Increments pending work in this group.
+		 */
+		private synchronized void incrementPending() {
+			pending++;
+		}
+
+		/**
+		 * Decrements pending work in this group and notifies waiting threads
+		 * once it reaches zero.
+		 */
+		private synchronized void decrementPending() {
+			pending--;
+
+			if(pending <= 0) {
+				this.notifyAll();
+			}
+		}
+
+		/**
+		 * Waits for all pending work in this group to be finished. Tasks may add
+		 * more work to the same group while running; this waits for that work as
+		 * well.
+		 */
+		public synchronized void finish() {
+			try {
+				while(pending > 0) {
+					this.wait();
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Returns the number of tasks in this group that have not finished.
+		 *
+		 * @return pending work in this group
+		 */
+		public synchronized int pending() {
+			return pending;
+		}
 	}
 
 	/**
 	 * Waits until work is available in the work queue. When work is found, will
 	 * remove the work from the queue and run it. If a shutdown is detected,
 	 * will exit instead of grabbing new work from the queue. These threads will
-	 * continue running in the background until a shutdown is requested.
+	 * continue running in the background until a shutdown is requested, or until
+	 * they sit idle too long or the pool is above its limit.
 	 */
 	private class PoolWorker extends Thread {
 
 		@Override
 		public void run() {
-			Runnable r = null;
+			Task task = null;
+			int running = 0;
+			long started = System.nanoTime();
+			metrics.workerStarted(started);
 
 			while (true) {
 				synchronized (queue) {
-					while (queue.isEmpty() && !shutdown) {
+					if (workers > limit()) {
+						// pool grew for I/O-bound work that has become CPU-bound
+						workers--;
+						break;
+					}
+
+					long idleSince = System.nanoTime();
+					boolean expired = false;
+					idle++;
+
+					while (queue.isEmpty() && !shutdown && !expired) {
 						/** There is no work yet or not shutting down, wait for work */
 						try {
-							queue.wait();
+							queue.wait(KEEP_ALIVE_MILLIS);
 						}
 						catch (InterruptedException ex) {
 							System.err.println("Warning: Work queue interrupted.");
 							Thread.currentThread().interrupt();
 						}
+
+						expired = workers > minimum
+								&& System.nanoTime() - idleSince >= TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_MILLIS);
 					}
 
-					// exit while for one of two reasons:
-					// (a) queue has work, or (b) shutdown has been called
+					idle--;
+
+					// exit while for one of three reasons:
+					// (a) queue has work, (b) shutdown has been called, or
+					// (c) this worker sat idle too long while above the minimum
 
-					if (shutdown) {
+					if (shutdown || queue.isEmpty()) {
 						//System.out.println("Shutting down PoolWorker");
+						workers--;
 						break;
 					}
 					else {
-						r = queue.removeFirst();
+						task = queue.removeFirst();
+						running = workers - idle;
+
+						// more work is waiting behind this task
+						grow();
 					}
 				}
 
+				long start = System.nanoTime();
+				long cpuStart = cpuTime();
+				metrics.taskStarted(task.priority.name(), start - task.queued);
+				boolean success = false;
+
 				try {
-					r.run();
-					
-					// since a request is being removed from the queue
-					decrementPending();
+					task.runnable.run();
+					success = true;
 				}
 				catch (RuntimeException ex) {
 					// catch runtime exceptions to avoid leaking threads
 					System.err.println("Warning: Work queue encountered an " + "exception while running.");
 				}
+				finally {
+					// with more running workers than processors, each task only gets
+					// part of a processor, so scale its CPU ratio to compensate
+					long runNanos = System.nanoTime() - start;
+					long cpuNanos = (long) ((cpuTime() - cpuStart) * Math.max(1.0, (double) running / CORES));
+					metrics.taskFinished(task.type, runNanos, cpuNanos, success);
+
+					// since a request is being removed from the queue
+					decrementPending();
+				}
+			}
+
+			metrics.workerStopped(started);
+		}
+	}
+
+	/**
+	 * A work request waiting in the queue, along with what is needed to measure
+	 * it once a worker picks it up.
+	 */
+	private static class Task {
+
+		/** Lane the request waits in */
+		private final Priority priority;
+
+		/** Work to run */
+		private final Runnable runnable;
+
+		/** Task type used to group run times */
+		private final String type;
+
+		/** Time the request was added to the queue, in nanoseconds */
+		private final long queued;
+
+		/**
+		 * Initializes a task queued now.
+		 *
+		 * @param priority
+		 *            lane the request waits in
+		 * @param runnable
+		 *            work to run
+		 * @param type
+		 *            task type used to group run times
+		 */
+		private Task(Priority priority, Runnable runnable, String type) {
+			this.priority = priority;
+			this.runnable = runnable;
+			this.type = type;
+			this.queued = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Pending work split into one FIFO lane per priority. Not thread-safe; the
+	 * work queue synchronizes on this object.
+	 */
+	private static class Lanes {
+
+		/** Pending work by priority */
+		private final EnumMap<Priority, LinkedList<Task>> lanes;
+
+		/** How long work may wait before it is taken ahead of more urgent work */
+		private final long starvationNanos;
+
+		/** Most urgent tasks taken for each starved task taken ahead of them */
+		private final int starvedEvery;
+
+		/** Urgent tasks taken while starved work waited, since a starved task was last taken */
+		private int urgentRun;
+
+		/** Total number of queued tasks across all lanes */
+		private int size;
+
+		/**
+		 * Initializes empty lanes.
+		 *
+		 * @param starvationNanos
+		 *            how long work may wait before it is taken ahead of more
+		 *            urgent work
+		 * @param starvedEvery
+		 *            most urgent tasks taken for each starved task taken ahead
+		 *            of them
+		 */
+		private Lanes(long starvationNanos, int starvedEvery) {
+			this.lanes = new EnumMap<>(Priority.class);
+			this.starvationNanos = starvationNanos;
+			this.starvedEvery = Math.max(1, starvedEvery);
+			this.urgentRun = 0;
+			this.size = 0;
+
+			for(Priority priority : Priority.values())
+				lanes.put(priority, new LinkedList<Task>());
+		}
+
+		/**
+		 * Adds a task to the end of the lane for its priority.
+		 *
+		 * @param task
+		 *            task to add
+		 */
+		private void addLast(Task task) {
+			lanes.get(task.priority).addLast(task);
+			size++;
+		}
+
+		/**
+		 * Removes the next task to run. This is the head of the most urgent
+		 * non-empty lane, unless the head of a less urgent lane has waited past
+		 * the starvation limit, in which case the oldest such head is taken.
+		 * A backlog of less urgent work is all past the limit, so a starved
+		 * task only jumps ahead once per {@link #starvedEvery} urgent tasks;
+		 * otherwise a long crawl would keep searches waiting behind it.
+		 *
+		 * @return next task to run
+		 */
+		private Task removeFirst() {
+			long now = System.nanoTime();
+			LinkedList<Task> urgent = null;
+			LinkedList<Task> starved = null;
+
+			for(LinkedList<Task> lane : lanes.values()) {
+				if(lane.isEmpty()) {
+					continue;
+				}
+
+				if(urgent == null) {
+					urgent = lane;
+				}
+				else if(now - lane.getFirst().queued > starvationNanos
+						&& (starved == null || lane.getFirst().queued < starved.getFirst().queued)) {
+					starved = lane;
+				}
 			}
+
+			size--;
+
+			if(starved != null && urgentRun >= starvedEvery) {
+				urgentRun = 0;
+				return starved.removeFirst();
+			}
+
+			if(starved != null) {
+				urgentRun++;
+			}
+
+			return urgent.removeFirst();
+		}
+
+		/**
+		 * Returns how long the oldest queued task has been waiting.
+		 *
+		 * @param now
+		 *            current time in nanoseconds
+		 * @return wait time of the oldest task, or 0 if empty
+		 */
+		private long oldestWait(long now) {
+			long oldest = 0;
+
+			for(LinkedList<Task> lane : lanes.values())
+				if(!lane.isEmpty())
+					oldest = Math.max(oldest, now - lane.getFirst().queued);
+
+			return oldest;
+		}
+
+		private boolean isEmpty() {
+			return size == 0;
+		}
+
+		private int size() {
+			return size;
 		}
 	}
 }
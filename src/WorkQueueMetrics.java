@@ -0,0 +1,416 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects timing information for a {@link WorkQueue}: how long tasks wait in
+ * the queue before a worker picks them up, how long each type of task runs,
+ * and how busy the workers are.
+ *
+ * @see WorkQueue#metrics()
+ */
+public class WorkQueueMetrics {
+
+	/** Time spent in the queue before a worker started the task */
+	private final Histogram waitTimes;
+
+	/** Time spent in the queue, by priority lane */
+	private final Map<String, Histogram> laneWaitTimes;
+
+	/** Time spent running, by task type (simple class name of the task) */
+	private final Map<String, Histogram> runTimes;
+
+	/** Creation time of the queue, in nanoseconds */
+	private final long created;
+
+	/** Number of tasks added to the queue */
+	private long submitted;
+
+	/** Number of tasks that finished running */
+	private long completed;
+
+	/** Number of tasks that threw an exception */
+	private long failed;
+
+	/** Total time workers spent running tasks, in nanoseconds */
+	private long busyNanos;
+
+	/** Total lifetime of workers that already exited, in nanoseconds */
+	private long retiredNanos;
+
+	/** Number of workers currently alive */
+	private int liveWorkers;
+
+	/** Sum of the start times of the workers currently alive */
+	private long liveStartSum;
+
+	/** Weight given to the newest sample in the recent averages */
+	private static final double RECENT_WEIGHT = 0.2;
+
+	/** Moving average of recent wait times, in nanoseconds */
+	private volatile double recentWait;
+
+	/** Moving average of the fraction of recent run times spent on the CPU */
+	private volatile double recentCpuRatio;
+
+	/**
+	 * Initializes empty metrics.
+	 */
+	public WorkQueueMetrics() {
+		this.waitTimes = new Histogram();
+		this.laneWaitTimes = new ConcurrentHashMap<>();
+		this.runTimes = new ConcurrentHashMap<>();
+		this.created = System.nanoTime();
+	}
+
+	/**
+	 * Records that a task was added to the queue.
+	 */
+	public synchronized void taskSubmitted() {
+		submitted++;
+	}
+
+	/**
+	 * Records that a worker took a task off the queue.
+	 *
+	 * @param lane
+	 *            priority lane the task waited in
+	 * @param waitNanos
+	 *            time the task spent in the queue
+	 */
+	public void taskStarted(String lane, long waitNanos) {
+		waitTimes.record(waitNanos);
+		laneWaitTimes.computeIfAbsent(lane, l -> new Histogram()).record(waitNanos);
+
+		synchronized (this) {
+			recentWait += RECENT_WEIGHT * (waitNanos - recentWait);
+		}
+	}
+
+	/**
+	 * Records that a worker finished running a task.
+	 *
+	 * @param type
+	 *            type of task, used to group run times
+	 * @param runNanos
+	 *            time spent running the task
+	 * @param cpuNanos
+	 *            CPU time used while running the task
+	 * @param success
+	 *            false if the task threw an exception
+	 */
+	public void taskFinished(String type, long runNanos, long cpuNanos, boolean success) {
+		runTimes.computeIfAbsent(type, t -> new Histogram()).record(runNanos);
+
+		synchronized (this) {
+			completed++;
+			busyNanos += runNanos;
+
+			if(runNanos > 0) {
+				double ratio = Math.min(1.0, (double) cpuNanos / runNanos);
+				recentCpuRatio += RECENT_WEIGHT * (ratio - recentCpuRatio);
+			}
+
+			if(!success) {
+				failed++;
+			}
+		}
+	}
+
+	/**
+	 * Records that a worker thread started.
+	 *
+	 * @param start
+	 *            start time in nanoseconds
+	 */
+	public synchronized void workerStarted(long start) {
+		liveWorkers++;
+		liveStartSum += start;
+	}
+
+	/**
+	 * Records that a worker thread exited.
+	 *
+	 * @param start
+	 *            start time of the worker in nanoseconds
+	 */
+	public synchronized void workerStopped(long start) {
+		liveWorkers--;
+		liveStartSum -= start;
+		retiredNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Returns the fraction of worker time spent running tasks since the queue
+	 * was created.
+	 *
+	 * @return utilization between 0 and 1
+	 */
+	public synchronized double utilization() {
+		long alive = retiredNanos + liveWorkers * System.nanoTime() - liveStartSum;
+		return alive <= 0 ? 0 : Math.min(1.0, (double) busyNanos / alive);
+	}
+
+	/**
+	 * Returns a moving average of recent wait times.
+	 *
+	 * @return recent wait time in nanoseconds
+	 */
+	public long recentWaitNanos() {
+		return (long) recentWait;
+	}
+
+	/**
+	 * Returns a moving average of the fraction of recent run times spent on the
+	 * CPU. Values near 1 mean recent work was CPU-bound; values near 0 mean it
+	 * was mostly waiting, for example on network I/O.
+	 *
+	 * @return recent CPU ratio between 0 and 1
+	 */
+	public double recentCpuRatio() {
+		return recentCpuRatio;
+	}
+
+	/**
+	 * Returns a point-in-time copy of these metrics.
+	 *
+	 * @param pending
+	 *            tasks queued or running
+	 * @param queued
+	 *            tasks waiting for a worker
+	 * @param workers
+	 *            number of worker threads
+	 * @param minimum
+	 *            fewest worker threads the queue keeps
+	 * @param maximum
+	 *            most worker threads the queue starts
+	 * @return snapshot of the metrics
+	 */
+	public Snapshot snapshot(int pending, int queued, int workers, int minimum, int maximum) {
+		synchronized (this) {
+			return new Snapshot(pending, queued, workers, minimum, maximum, recentWaitNanos(), recentCpuRatio(), submitted, completed, failed, utilization(),
+					waitTimes.summary(), summarize(laneWaitTimes), summarize(runTimes), System.nanoTime() - created);
+		}
+	}
+
+	/**
+	 * Summarizes each histogram in a map, sorted by key.
+	 *
+	 * @param histograms
+	 *            histograms to summarize
+	 * @return summaries by key
+	 */
+	private static Map<String, Histogram.Summary> summarize(Map<String, Histogram> histograms) {
+		Map<String, Histogram.Summary> summaries = new TreeMap<>();
+
+		for(Map.Entry<String, Histogram> entry : histograms.entrySet())
+			summaries.put(entry.getKey(), entry.getValue().summary());
+
+		return summaries;
+	}
+
+	/**
+	 * A histogram of durations using power-of-two microsecond buckets. Bucket i
+	 * holds durations in [2^i, 2^(i+1)) microseconds, so percentiles are
+	 * accurate to within a factor of two while recording stays constant time.
+	 */
+	public static class Histogram {
+
+		/** Number of buckets; the last bucket holds anything larger */
+		private static final int BUCKETS = 40;
+
+		private final long[] counts;
+
+		private long count;
+
+		private long sumNanos;
+
+		private long maxNanos;
+
+		/**
+		 * Initializes an empty histogram.
+		 */
+		public Histogram() {
+			this.counts = new long[BUCKETS];
+		}
+
+		/**
+		 * Adds a duration to the histogram.
+		 *
+		 * @param nanos
+		 *            duration in nanoseconds
+		 */
+		public synchronized void record(long nanos) {
+			long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+			int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+
+			counts[bucket]++;
+			count++;
+			sumNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+		}
+
+		/**
+		 * Returns the count, mean, percentiles and maximum of this histogram.
+		 *
+		 * @return summary of the recorded durations
+		 */
+		public synchronized Summary summary() {
+			double mean = count == 0 ? 0 : sumNanos / (double) count;
+			return new Summary(count, mean, percentile(0.5), percentile(0.9), percentile(0.99), maxNanos);
+		}
+
+		/**
+		 * Estimates a percentile as the upper bound of the bucket it falls in.
+		 *
+		 * @param p
+		 *            percentile between 0 and 1
+		 * @return estimated duration in nanoseconds
+		 */
+		private long percentile(double p) {
+			if(count == 0) {
+				return 0;
+			}
+
+			long rank = (long) Math.ceil(p * count);
+			long seen = 0;
+
+			for(int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+
+				if(seen >= rank) {
+					return Math.min(maxNanos, TimeUnit.MICROSECONDS.toNanos(1L << (i + 1)));
+				}
+			}
+
+			return maxNanos;
+		}
+
+		/**
+		 * Summary statistics of a histogram at one point in time.
+		 */
+		public static class Summary {
+
+			public final long count;
+
+			public final double meanNanos;
+
+			public final long p50Nanos;
+
+			public final long p90Nanos;
+
+			public final long p99Nanos;
+
+			public final long maxNanos;
+
+			private Summary(long count, double meanNanos, long p50Nanos, long p90Nanos, long p99Nanos,
+					long maxNanos) {
+				this.count = count;
+				this.meanNanos = meanNanos;
+				this.p50Nanos = p50Nanos;
+				this.p90Nanos = p90Nanos;
+				this.p99Nanos = p99Nanos;
+				this.maxNanos = maxNanos;
+			}
+
+			@Override
+			public String toString() {
+				return String.format("count %d, mean %.3f ms, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms",
+						count, meanNanos / 1e6, p50Nanos / 1e6, p90Nanos / 1e6, p99Nanos / 1e6, maxNanos / 1e6);
+			}
+		}
+	}
+
+	/**
+	 * Metrics of a work queue at one point in time.
+	 */
+	public static class Snapshot {
+
+		/** Tasks queued or running */
+		public final int pending;
+
+		/** Tasks waiting for a worker */
+		public final int queued;
+
+		/** Number of worker threads */
+		public final int workers;
+
+		/** Fewest worker threads the queue keeps */
+		public final int minimum;
+
+		/** Most worker threads the queue starts */
+		public final int maximum;
+
+		/** Moving average of recent wait times */
+		public final long recentWaitNanos;
+
+		/** Moving average of the fraction of recent run times spent on the CPU */
+		public final double recentCpuRatio;
+
+		public final long submitted;
+
+		public final long completed;
+
+		public final long failed;
+
+		/** Fraction of worker time spent running tasks */
+		public final double utilization;
+
+		/** Time between a task being queued and a worker starting it */
+		public final Histogram.Summary waitTimes;
+
+		/** Wait times by priority lane */
+		public final Map<String, Histogram.Summary> laneWaitTimes;
+
+		/** Run times by task type */
+		public final Map<String, Histogram.Summary> runTimes;
+
+		/** Age of the queue in nanoseconds */
+		public final long uptimeNanos;
+
+		private Snapshot(int pending, int queued, int workers, int minimum, int maximum, long recentWaitNanos,
+				double recentCpuRatio, long submitted, long completed, long failed,
+				double utilization, Histogram.Summary waitTimes, Map<String, Histogram.Summary> laneWaitTimes,
+				Map<String, Histogram.Summary> runTimes, long uptimeNanos) {
+			this.pending = pending;
+			this.queued = queued;
+			this.workers = workers;
+			this.minimum = minimum;
+			this.maximum = maximum;
+			this.recentWaitNanos = recentWaitNanos;
+			this.recentCpuRatio = recentCpuRatio;
+			this.submitted = submitted;
+			this.completed = completed;
+			this.failed = failed;
+			this.utilization = utilization;
+			this.waitTimes = waitTimes;
+			this.laneWaitTimes = Collections.unmodifiableMap(laneWaitTimes);
+			this.runTimes = Collections.unmodifiableMap(runTimes);
+			this.uptimeNanos = uptimeNanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+
+			builder.append(String.format("uptime: %.3f s%n", uptimeNanos / 1e9));
+			builder.append(String.format("workers: %d (min %d, max %d), utilization: %.1f%%%n", workers, minimum,
+					maximum, utilization * 100));
+			builder.append(String.format("recent wait: %.3f ms, recent cpu ratio: %.2f%n", recentWaitNanos / 1e6,
+					recentCpuRatio));
+			builder.append(String.format("pending: %d, queued: %d%n", pending, queued));
+			builder.append(String.format("submitted: %d, completed: %d, failed: %d%n", submitted, completed, failed));
+			builder.append(String.format("wait time: %s%n", waitTimes));
+
+			for(Map.Entry<String, Histogram.Summary> entry : laneWaitTimes.entrySet())
+				builder.append(String.format("wait time (%s): %s%n", entry.getKey(), entry.getValue()));
+
+			for(Map.Entry<String, Histogram.Summary> entry : runTimes.entrySet())
+				builder.append(String.format("run time (%s): %s%n", entry.getKey(), entry.getValue()));
+
+			return builder.toString();
+		}
+	}
+}